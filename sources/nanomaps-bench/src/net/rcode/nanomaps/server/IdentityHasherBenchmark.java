@@ -0,0 +1,55 @@
+package net.rcode.nanomaps.server;
+
+import java.util.concurrent.TimeUnit;
+
+import net.rcode.nanomaps.server.util.IdentityHasher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IdentityHasher over short per-request strings (as for tile cache variants)
+ * and over whole map files (as for etags).
+ * 
+ * @author stella
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class IdentityHasherBenchmark {
+	@Param({"64", "65536"})
+	public int length;
+	
+	private String contents;
+	
+	@Setup
+	public void setup() {
+		StringBuilder builder=new StringBuilder(length);
+		for (int i=0; i<length; i++) {
+			builder.append((char)('a' + i%26));
+		}
+		contents=builder.toString();
+	}
+	
+	@Benchmark
+	public String hash() {
+		IdentityHasher hasher=new IdentityHasher();
+		hasher.append("mapnik:");
+		hasher.append(contents);
+		hasher.appendSep();
+		return hasher.getHash();
+	}
+}
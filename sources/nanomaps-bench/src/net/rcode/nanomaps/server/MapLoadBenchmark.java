@@ -0,0 +1,56 @@
+package net.rcode.nanomaps.server;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a map pool miss: parsing the map xml again (loadMap) versus
+ * copying the parsed template (copyTemplate).  Defaults to world_sample; pass
+ * -p mapFile=... to try a bigger stylesheet.  Must be started from the
+ * instance directory.
+ * 
+ * @author stella
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class MapLoadBenchmark {
+	@Param({"repository/world_sample.mapnik.xml"})
+	public String mapFile;
+	
+	private MapnikMapResource resource;
+	
+	@Setup
+	public void setup() throws Exception {
+		ProcessSetup.initEnvironment();
+		resource=new MapnikMapResource(new File(mapFile));
+		resource.initialize(new StaticMapRepository(new HashMap<String, MapLocator>()));
+	}
+	
+	@Benchmark
+	public void loadXml() {
+		resource.loadMap().dispose();
+	}
+	
+	@Benchmark
+	public void copyTemplate() {
+		resource.copyTemplate().dispose();
+	}
+}
@@ -0,0 +1,71 @@
+package net.rcode.nanomaps.server;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import mapnik.MapDefinition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MapnikMapResource.createMap/recycleMap churn on the pool of loaded maps,
+ * as done around every render.  Runs against the world_sample map, so it
+ * must be started from the instance directory.
+ * 
+ * @author stella
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class MapPoolBenchmark {
+	private static final Object RECYCLE_TAG=MapPoolBenchmark.class;
+	
+	private MapnikMapResource resource;
+	
+	@Setup
+	public void setup() throws Exception {
+		ProcessSetup.initEnvironment();
+		resource=new MapnikMapResource(new File("repository/world_sample.mapnik.xml"));
+		resource.initialize(new StaticMapRepository(new HashMap<String, MapLocator>()));
+		
+		// Enough pooled maps that threads don't fall through to loading new ones
+		MapDefinition[] maps=new MapDefinition[16];
+		for (int i=0; i<maps.length; i++) {
+			maps[i]=resource.createMap(RECYCLE_TAG);
+		}
+		for (MapDefinition m: maps) {
+			resource.recycleMap(RECYCLE_TAG, m);
+		}
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public MapDefinition createAndRecycle() {
+		MapDefinition m=resource.createMap(RECYCLE_TAG);
+		resource.recycleMap(RECYCLE_TAG, m);
+		return m;
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public MapDefinition createAndRecycleContended() {
+		MapDefinition m=resource.createMap(RECYCLE_TAG);
+		resource.recycleMap(RECYCLE_TAG, m);
+		return m;
+	}
+}
@@ -0,0 +1,84 @@
+package net.rcode.nanomaps.server;
+
+import java.util.concurrent.TimeUnit;
+
+import mapnik.Box2d;
+import mapnik.Coord;
+import net.rcode.nanomaps.server.projection.RenderProjection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * RenderProjection creation, projectTile and forward, which run on every tile
+ * request.  WebMercator (3857) is done in Java, lat/lng (4326) calls into
+ * proj4 through JNI.
+ * 
+ * @author stella
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ProjectionBenchmark {
+	/**
+	 * EPSG code of the projection: WebMercator or lat/lng
+	 */
+	@Param({"3857", "4326"})
+	public int epsg;
+	
+	@Param({"3", "12", "18"})
+	public int level;
+	
+	private RenderProjection projection;
+	private Coord coord=new Coord();
+	private int counter;
+	
+	@Setup
+	public void setup() {
+		ProcessSetup.initEnvironment();
+		projection=RenderProjection.createFromEpsgCode(epsg);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		projection.dispose();
+	}
+	
+	@Benchmark
+	public Box2d projectTile() {
+		int n=counter++;
+		int mask=(1<<level)-1;
+		return projection.projectTile(level, n & mask, (n>>>4) & mask, 256, 256);
+	}
+	
+	@Benchmark
+	public Coord forward() {
+		int n=counter++;
+		coord.x=-179.0 + (n%358);
+		coord.y=-80.0 + (n%160);
+		projection.forward(coord);
+		return coord;
+	}
+	
+	@Benchmark
+	public String create() {
+		RenderProjection created=RenderProjection.createFromEpsgCode(epsg);
+		String srs=created.getSrs();
+		created.dispose();
+		return srs;
+	}
+}
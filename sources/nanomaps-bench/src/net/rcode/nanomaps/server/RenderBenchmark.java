@@ -0,0 +1,510 @@
+package net.rcode.nanomaps.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.rcode.core.util.JsonBuilder;
+import net.rcode.nanomaps.server.metrics.LatencyHistogram;
+import net.rcode.nanomaps.server.projection.RenderProjection;
+import net.rcode.nanomaps.server.projection.WebMercatorRenderProjection;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * End to end render benchmark.  Renders a fixed set of tiles around a handful
+ * of cities at every zoom level through MapnikMapResource and
+ * MapRequestHandler.doRender (map setup, renderAgg and encode), for each
+ * combination of request mode (tile or wms), pixel ratio and thread count.
+ * <p>
+ * Prints a summary and writes a JSON report with throughput, latency
+ * percentiles and bytes per tile.  Given a baseline report from an earlier
+ * run, flags scenarios whose throughput dropped or whose p99 latency rose by
+ * more than the tolerance and exits with status 1.
+ * <p>
+ * Run from the instance directory (see the render-bench target).  Options:
+ * <pre>
+ *   -map FILE          map to render (repository/world_sample.mapnik.xml)
+ *   -levels MIN-MAX    zoom levels (0-10)
+ *   -ratios R,...      pixel ratios (1,2)
+ *   -modes M,...       tile and/or wms (tile,wms)
+ *   -threads N,...     render thread counts (1,2,4.. up to the number of cpus)
+ *   -repeat N          passes over the tile set per scenario (3)
+ *   -out FILE          report to write (render-report.json)
+ *   -baseline FILE     report to compare against
+ *   -tolerance F       allowed fractional regression (0.1)
+ * </pre>
+ *
+ * @author stella
+ *
+ */
+public class RenderBenchmark {
+	/**
+	 * Lng/lat of the places tiles are rendered around.  Spread over the
+	 * world so that higher levels don't just render empty ocean.
+	 */
+	private static final double[][] PLACES={
+		{ -0.1278, 51.5074 },		// London
+		{ -74.0060, 40.7128 },		// New York
+		{ 139.6917, 35.6895 },		// Tokyo
+		{ -43.1729, -22.9068 },		// Rio de Janeiro
+		{ 28.0473, -26.2041 },		// Johannesburg
+		{ 151.2093, -33.8688 },		// Sydney
+		{ 77.2090, 28.6139 },		// New Delhi
+		{ -99.1332, 19.4326 },		// Mexico City
+	};
+
+	private static final int TILE_SIZE=256;
+	private static final int WMS_SIZE=512;
+
+	private static class Work {
+		final int level;
+		final int x;
+		final int y;
+
+		Work(int level, int x, int y) {
+			this.level=level;
+			this.x=x;
+			this.y=y;
+		}
+	}
+
+	private static class Scenario {
+		final String mode;
+		final double pixelRatio;
+		final int threads;
+
+		Scenario(String mode, double pixelRatio, int threads) {
+			this.mode=mode;
+			this.pixelRatio=pixelRatio;
+			this.threads=threads;
+		}
+
+		String getName() {
+			return mode + "@" + pixelRatio + "x/" + threads + "t";
+		}
+	}
+
+	private static class Result {
+		final Scenario scenario;
+		final LatencyHistogram latency=new LatencyHistogram();
+		final Map<Integer, LatencyHistogram> levelLatency=new TreeMap<Integer, LatencyHistogram>();
+		final Map<Integer, AtomicLong> levelBytes=new HashMap<Integer, AtomicLong>();
+		final AtomicLong bytes=new AtomicLong();
+		final AtomicLong errors=new AtomicLong();
+		final AtomicReference<String> firstError=new AtomicReference<String>();
+		double seconds;
+
+		Result(Scenario scenario, int minLevel, int maxLevel) {
+			this.scenario=scenario;
+			for (int level=minLevel; level<=maxLevel; level++) {
+				levelLatency.put(level, new LatencyHistogram());
+				levelBytes.put(level, new AtomicLong());
+			}
+		}
+
+		double getTilesPerSecond() {
+			return latency.getCount() / seconds;
+		}
+
+		double getBytesPerTile() {
+			return latency.getCount()==0 ? 0 : (double)bytes.get() / latency.getCount();
+		}
+	}
+
+	private File mapFile=new File("repository/world_sample.mapnik.xml");
+	private int minLevel=0;
+	private int maxLevel=10;
+	private List<Double> ratios=new ArrayList<Double>();
+	private List<String> modes=new ArrayList<String>();
+	private List<Integer> threadCounts=new ArrayList<Integer>();
+	private int repeat=3;
+	private File outFile=new File("render-report.json");
+	private File baselineFile;
+	private double tolerance=0.1;
+
+	private MapnikMapResource resource;
+	private MapRequestHandler handler;
+
+	private void parseArgs(String[] args) {
+		for (int i=0; i<args.length; i++) {
+			String arg=args[i];
+			if (i+1>=args.length) throw new IllegalArgumentException("Missing value for " + arg);
+			String value=args[++i];
+
+			if ("-map".equals(arg)) mapFile=new File(value);
+			else if ("-levels".equals(arg)) {
+				int dash=value.indexOf('-');
+				if (dash<0) {
+					minLevel=maxLevel=Integer.parseInt(value);
+				} else {
+					minLevel=Integer.parseInt(value.substring(0, dash));
+					maxLevel=Integer.parseInt(value.substring(dash+1));
+				}
+			}
+			else if ("-ratios".equals(arg)) {
+				for (String s: value.split(",")) ratios.add(Double.parseDouble(s));
+			}
+			else if ("-modes".equals(arg)) {
+				for (String s: value.split(",")) {
+					if (!"tile".equals(s) && !"wms".equals(s)) throw new IllegalArgumentException("Unknown mode " + s);
+					modes.add(s);
+				}
+			}
+			else if ("-threads".equals(arg)) {
+				for (String s: value.split(",")) threadCounts.add(Integer.parseInt(s));
+			}
+			else if ("-repeat".equals(arg)) repeat=Integer.parseInt(value);
+			else if ("-out".equals(arg)) outFile=new File(value);
+			else if ("-baseline".equals(arg)) baselineFile=new File(value);
+			else if ("-tolerance".equals(arg)) tolerance=Double.parseDouble(value);
+			else throw new IllegalArgumentException("Unknown option " + arg);
+		}
+
+		if (ratios.isEmpty()) {
+			ratios.add(1.0);
+			ratios.add(2.0);
+		}
+		if (modes.isEmpty()) {
+			modes.add("tile");
+			modes.add("wms");
+		}
+		if (threadCounts.isEmpty()) {
+			int cpus=Runtime.getRuntime().availableProcessors();
+			for (int n=1; n<cpus; n*=2) threadCounts.add(n);
+			threadCounts.add(cpus);
+		}
+	}
+
+	private void setup() throws Exception {
+		ProcessSetup.initEnvironment();
+		resource=new MapnikMapResource(mapFile);
+		resource.initialize(new StaticMapRepository(new HashMap<String, MapLocator>()));
+
+		// Only doRender is used.  Its stage timings go to this RenderService.
+		handler=new MapRequestHandler(new StaticMapRepository(), new RenderService(1));
+		handler.setImagePool(new ImagePool(16*1024*1024));
+	}
+
+	/**
+	 * @return the tiles (or WMS areas) to render, the same on every run
+	 */
+	private List<Work> buildWork(String mode) {
+		int size="wms".equals(mode) ? WMS_SIZE : TILE_SIZE;
+		List<Work> work=new ArrayList<Work>();
+		for (int level=minLevel; level<=maxLevel; level++) {
+			// Level 1 is 2x2 tiles.  Bigger WMS areas mean fewer of them per side.
+			int count=Math.max(1, (1<<level) * TILE_SIZE / size);
+			Set<Long> seen=new LinkedHashSet<Long>();
+			for (double[] place: PLACES) {
+				double lng=place[0], lat=Math.toRadians(place[1]);
+				int x=(int) Math.floor((lng+180.0)/360.0 * count);
+				int y=(int) Math.floor((1 - Math.log(Math.tan(lat) + 1/Math.cos(lat)) / Math.PI) / 2 * count);
+				x=Math.max(0, Math.min(count-1, x));
+				y=Math.max(0, Math.min(count-1, y));
+				if (seen.add(((long)x<<32) | y)) {
+					work.add(new Work(level, x, y));
+				}
+			}
+		}
+		return work;
+	}
+
+	private RenderRequest createRequest(Scenario scenario, Work work) {
+		boolean tiled="tile".equals(scenario.mode);
+		int size=tiled ? TILE_SIZE : WMS_SIZE;
+
+		RenderRequest rr=new RenderRequest();
+		rr.mapName="bench";
+		rr.resource=resource;
+		RenderInfo renderInfo=new RenderInfo();
+		rr.renderInfo=renderInfo;
+		RenderProjection projection=new WebMercatorRenderProjection();
+		renderInfo.projection=projection;
+		renderInfo.pixelRatio=scenario.pixelRatio;
+		renderInfo.format="png";
+		renderInfo.width=(int) (size*scenario.pixelRatio);
+		renderInfo.height=(int) (size*scenario.pixelRatio);
+		renderInfo.bounds=projection.projectTile(work.level, work.x, work.y, size, size);
+		if (tiled) {
+			renderInfo.tiled=true;
+			renderInfo.tileLevel=work.level;
+			renderInfo.tileX=work.x;
+			renderInfo.tileY=work.y;
+		}
+		return rr;
+	}
+
+	/**
+	 * Render every item of the work list repeat times on the given number of threads
+	 */
+	private void runPass(final Scenario scenario, final List<Work> work, int passes, final Result result) throws InterruptedException {
+		final int total=work.size()*passes;
+		final AtomicInteger next=new AtomicInteger();
+		ExecutorService executor=Executors.newFixedThreadPool(scenario.threads);
+		for (int t=0; t<scenario.threads; t++) {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					for (;;) {
+						int index=next.getAndIncrement();
+						if (index>=total) return;
+						Work item=work.get(index % work.size());
+						RenderRequest rr=createRequest(scenario, item);
+
+						long start=System.nanoTime();
+						try {
+							RenderResult rendered=handler.doRender(rr).encode();
+							long elapsed=System.nanoTime() - start;
+							if (result!=null) {
+								int length=rendered.getContents(0, 0).length;
+								result.latency.recordNanos(elapsed);
+								result.bytes.addAndGet(length);
+								result.levelLatency.get(item.level).recordNanos(elapsed);
+								result.levelBytes.get(item.level).addAndGet(length);
+							}
+						} catch (Throwable t) {
+							if (result!=null) {
+								result.errors.incrementAndGet();
+								result.firstError.compareAndSet(null, item.level + "/" + item.x + "/" + item.y + ": " + t);
+							}
+						} finally {
+							rr.renderInfo.projection.dispose();
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private Result runScenario(Scenario scenario) throws InterruptedException {
+		List<Work> work=buildWork(scenario.mode);
+
+		// Warm up the JIT and fill the map pool for this many threads
+		runPass(scenario, work, 1, null);
+
+		Result result=new Result(scenario, minLevel, maxLevel);
+		long start=System.nanoTime();
+		runPass(scenario, work, repeat, result);
+		result.seconds=(System.nanoTime() - start) / 1e9;
+		return result;
+	}
+
+	private static double millis(long micros) {
+		return Math.round(micros / 10.0) / 100.0;
+	}
+
+	private void writeReport(List<Result> results) throws IOException {
+		JsonBuilder json=new JsonBuilder();
+		json.startObject();
+		json.key("environment", false);
+		json.startObject();
+		json.key("date", false);
+		json.value(new Date().toString());
+		json.key("java", false);
+		json.value(System.getProperty("java.version"));
+		json.key("os", false);
+		json.value(System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+		json.key("processors", false);
+		json.value((long) Runtime.getRuntime().availableProcessors());
+		json.key("map", false);
+		json.value(mapFile.getPath());
+		json.key("levels", false);
+		json.value(minLevel + "-" + maxLevel);
+		json.key("repeat", false);
+		json.value((long) repeat);
+		json.endObject();
+
+		json.key("scenarios", false);
+		json.startArray();
+		for (Result result: results) {
+			LatencyHistogram latency=result.latency;
+			json.startObject();
+			json.key("name", false);
+			json.value(result.scenario.getName());
+			json.key("mode", false);
+			json.value(result.scenario.mode);
+			json.key("pixelRatio", false);
+			json.value(result.scenario.pixelRatio);
+			json.key("threads", false);
+			json.value((long) result.scenario.threads);
+			json.key("renders", false);
+			json.value(latency.getCount());
+			json.key("errors", false);
+			json.value(result.errors.get());
+			json.key("seconds", false);
+			json.value(result.seconds);
+			json.key("tilesPerSec", false);
+			json.value(result.getTilesPerSecond());
+			json.key("p50Ms", false);
+			json.value(millis(latency.getValueAtQuantile(0.5)));
+			json.key("p90Ms", false);
+			json.value(millis(latency.getValueAtQuantile(0.9)));
+			json.key("p99Ms", false);
+			json.value(millis(latency.getValueAtQuantile(0.99)));
+			json.key("maxMs", false);
+			json.value(millis(latency.getValueAtQuantile(1.0)));
+			json.key("bytesPerTile", false);
+			json.value(result.getBytesPerTile());
+
+			json.key("levels", false);
+			json.startArray();
+			for (Map.Entry<Integer, LatencyHistogram> entry: result.levelLatency.entrySet()) {
+				LatencyHistogram levelLatency=entry.getValue();
+				long count=levelLatency.getCount();
+				json.startObject();
+				json.key("level", false);
+				json.value((long) entry.getKey());
+				json.key("renders", false);
+				json.value(count);
+				json.key("p50Ms", false);
+				json.value(millis(levelLatency.getValueAtQuantile(0.5)));
+				json.key("p99Ms", false);
+				json.value(millis(levelLatency.getValueAtQuantile(0.99)));
+				json.key("bytesPerTile", false);
+				json.value(count==0 ? 0.0 : (double)result.levelBytes.get(entry.getKey()).get() / count);
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+
+		File parent=outFile.getAbsoluteFile().getParentFile();
+		if (parent!=null) parent.mkdirs();
+		Writer out=new OutputStreamWriter(new FileOutputStream(outFile), CharsetUtil.UTF_8);
+		try {
+			out.write(json.getJson().toString());
+		} finally {
+			out.close();
+		}
+		System.out.println("Wrote report to " + outFile);
+	}
+
+	/**
+	 * Read name, tilesPerSec and p99Ms of each scenario in a report
+	 */
+	private static Map<String, double[]> readBaseline(File file) throws Exception {
+		StringBuilder text=new StringBuilder();
+		Reader in=new InputStreamReader(new FileInputStream(file), CharsetUtil.UTF_8);
+		try {
+			char[] buffer=new char[4096];
+			for (;;) {
+				int r=in.read(buffer);
+				if (r<0) break;
+				text.append(buffer, 0, r);
+			}
+		} finally {
+			in.close();
+		}
+
+		Object report=ReportReader.parse(text.toString());
+		Object scenarios=report instanceof Map ? ((Map<?,?>) report).get("scenarios") : null;
+		if (!(scenarios instanceof List)) {
+			throw new IllegalArgumentException("Baseline " + file + " is not a benchmark report");
+		}
+
+		Map<String, double[]> ret=new HashMap<String, double[]>();
+		for (Object item: (List<?>) scenarios) {
+			if (!(item instanceof Map)) continue;
+			Map<?,?> scenario=(Map<?,?>) item;
+			Object name=scenario.get("name");
+			Object tilesPerSec=scenario.get("tilesPerSec");
+			Object p99=scenario.get("p99Ms");
+			if (!(name instanceof String) || !(tilesPerSec instanceof Number) || !(p99 instanceof Number)) continue;
+			ret.put((String) name, new double[] { ((Number) tilesPerSec).doubleValue(), ((Number) p99).doubleValue() });
+		}
+		return ret;
+	}
+
+	/**
+	 * @return number of regressions
+	 */
+	private int compare(List<Result> results) throws Exception {
+		Map<String, double[]> baseline=readBaseline(baselineFile);
+		System.out.println();
+		System.out.println("Comparison with " + baselineFile + " (tolerance " + Math.round(tolerance*100) + "%)");
+
+		int regressions=0;
+		for (Result result: results) {
+			String name=result.scenario.getName();
+			double[] base=baseline.get(name);
+			if (base==null) {
+				System.out.format("  %-20s not in baseline\n", name);
+				continue;
+			}
+
+			double throughput=result.getTilesPerSecond();
+			double p99=millis(result.latency.getValueAtQuantile(0.99));
+			double throughputChange=(throughput - base[0]) / base[0];
+			double p99Change=base[1]>0 ? (p99 - base[1]) / base[1] : 0;
+			boolean regressed=throughputChange < -tolerance || p99Change > tolerance;
+			if (regressed) regressions++;
+
+			System.out.format("  %-20s tiles/s %8.1f -> %8.1f (%+.1f%%)  p99 %8.1fms -> %8.1fms (%+.1f%%)%s\n",
+					name, base[0], throughput, throughputChange*100, base[1], p99, p99Change*100,
+					regressed ? "  REGRESSION" : "");
+		}
+		return regressions;
+	}
+
+	private int run() throws Exception {
+		setup();
+
+		List<Result> results=new ArrayList<Result>();
+		System.out.format("%-20s %8s %10s %9s %9s %9s %10s\n", "scenario", "renders", "tiles/s", "p50ms", "p90ms", "p99ms", "bytes/tile");
+		for (String mode: modes) {
+			for (double ratio: ratios) {
+				for (int threads: threadCounts) {
+					Scenario scenario=new Scenario(mode, ratio, threads);
+					Result result=runScenario(scenario);
+					results.add(result);
+
+					LatencyHistogram latency=result.latency;
+					System.out.format("%-20s %8d %10.1f %9.2f %9.2f %9.2f %10.0f\n",
+							scenario.getName(), latency.getCount(), result.getTilesPerSecond(),
+							millis(latency.getValueAtQuantile(0.5)),
+							millis(latency.getValueAtQuantile(0.9)),
+							millis(latency.getValueAtQuantile(0.99)),
+							result.getBytesPerTile());
+					if (result.errors.get()>0) {
+						System.out.format("  %d renders failed, first: %s\n", result.errors.get(), result.firstError.get());
+					}
+				}
+			}
+		}
+
+		writeReport(results);
+		if (baselineFile!=null && compare(results)>0) return 1;
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		RenderBenchmark benchmark=new RenderBenchmark();
+		benchmark.parseArgs(args);
+		int status=benchmark.run();
+		System.exit(status);
+	}
+}
@@ -0,0 +1,167 @@
+package net.rcode.nanomaps.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON parser for reading back benchmark reports.  Objects become
+ * Maps, arrays Lists, numbers Doubles, and true/false/null their Java
+ * equivalents.
+ *
+ * @author stella
+ *
+ */
+class ReportReader {
+	private final String text;
+	private int pos;
+
+	private ReportReader(String text) {
+		this.text=text;
+	}
+
+	/**
+	 * @param text
+	 * @return the parsed value
+	 * @throws IllegalArgumentException if the text is not valid JSON
+	 */
+	public static Object parse(String text) {
+		ReportReader reader=new ReportReader(text);
+		Object value=reader.readValue();
+		reader.skipWhitespace();
+		if (reader.pos<text.length()) throw reader.error("Trailing characters");
+		return value;
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+		if (pos>=text.length()) throw error("Unexpected end of input");
+		char c=text.charAt(pos);
+		switch (c) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> ret=new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek()=='}') {
+			pos++;
+			return ret;
+		}
+		for (;;) {
+			skipWhitespace();
+			if (peek()!='"') throw error("Expected a key");
+			String key=readString();
+			skipWhitespace();
+			if (peek()!=':') throw error("Expected ':'");
+			pos++;
+			ret.put(key, readValue());
+			skipWhitespace();
+			char c=peek();
+			pos++;
+			if (c=='}') return ret;
+			if (c!=',') throw error("Expected ',' or '}'");
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> ret=new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek()==']') {
+			pos++;
+			return ret;
+		}
+		for (;;) {
+			ret.add(readValue());
+			skipWhitespace();
+			char c=peek();
+			pos++;
+			if (c==']') return ret;
+			if (c!=',') throw error("Expected ',' or ']'");
+		}
+	}
+
+	private String readString() {
+		StringBuilder ret=new StringBuilder();
+		pos++;
+		for (;;) {
+			if (pos>=text.length()) throw error("Unterminated string");
+			char c=text.charAt(pos++);
+			if (c=='"') return ret.toString();
+			if (c!='\\') {
+				ret.append(c);
+				continue;
+			}
+
+			if (pos>=text.length()) throw error("Unterminated string");
+			c=text.charAt(pos++);
+			switch (c) {
+			case 'b': ret.append('\b'); break;
+			case 'f': ret.append('\f'); break;
+			case 'n': ret.append('\n'); break;
+			case 'r': ret.append('\r'); break;
+			case 't': ret.append('\t'); break;
+			case 'u':
+				if (pos+4>text.length()) throw error("Bad unicode escape");
+				try {
+					ret.append((char) Integer.parseInt(text.substring(pos, pos+4), 16));
+				} catch (NumberFormatException e) {
+					throw error("Bad unicode escape");
+				}
+				pos+=4;
+				break;
+			default:
+				ret.append(c);
+			}
+		}
+	}
+
+	private Double readNumber() {
+		int start=pos;
+		while (pos<text.length() && "+-0123456789.eE".indexOf(text.charAt(pos))>=0) pos++;
+		try {
+			return Double.valueOf(text.substring(start, pos));
+		} catch (NumberFormatException e) {
+			pos=start;
+			throw error("Expected a value");
+		}
+	}
+
+	private void expect(String word) {
+		if (!text.startsWith(word, pos)) throw error("Expected '" + word + "'");
+		pos+=word.length();
+	}
+
+	private char peek() {
+		if (pos>=text.length()) throw error("Unexpected end of input");
+		return text.charAt(pos);
+	}
+
+	private void skipWhitespace() {
+		while (pos<text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(message + " at offset " + pos + " of report");
+	}
+}
@@ -0,0 +1,74 @@
+package net.rcode.nanomaps.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a request URI into a RenderInfo: MapRequestHandler.decodePath
+ * followed by setupRenderInfo, including creating (and disposing) the projection.
+ * 
+ * @author stella
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class RequestParsingBenchmark {
+	/**
+	 * Exposes the protected parsing steps of the handler
+	 */
+	static class ParsingHandler extends MapRequestHandler {
+		ParsingHandler() {
+			super(null, null);
+		}
+		
+		void setUri(String uri) {
+			request=new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+		}
+		
+		RenderInfo parse() {
+			decodePath();
+			return setupRenderInfo();
+		}
+	}
+	
+	@Param({
+		"/map/world_sample/tile/12/1205/1539?format=png",
+		"/map/world_sample/wms?bbox=-122.5,37.5,-122,38&width=512&height=512&srs=epsg:4326&cm=global&pixelratio=2",
+		"/map/world_sample/tile/7/20/40?srs=epsg:3857&srsorigin=-180,85.05112878&cm=global&srsdefres=78271.517&buffer=32"
+	})
+	public String uri;
+	
+	private ParsingHandler handler;
+	
+	@Setup
+	public void setup() {
+		ProcessSetup.initEnvironment();
+		handler=new ParsingHandler();
+		handler.setUri(uri);
+	}
+	
+	@Benchmark
+	public RenderInfo decodeAndSetupRenderInfo() {
+		RenderInfo renderInfo=handler.parse();
+		renderInfo.projection.dispose();
+		return renderInfo;
+	}
+}
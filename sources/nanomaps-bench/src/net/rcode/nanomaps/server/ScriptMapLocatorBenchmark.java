@@ -0,0 +1,108 @@
+package net.rcode.nanomaps.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import mapnik.MapDefinition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ScriptMapLocator.resolve, alone and with many request threads competing
+ * for the pooled script engines.
+ * 
+ * @author stella
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ScriptMapLocatorBenchmark {
+	private static class DummyResource extends AbstractMapLocator implements MapResource, MapLocator {
+		@Override
+		public MapDefinition createMap(Object recycleTag) {
+			return null;
+		}
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public void recycleMap(Object recycleTag, MapDefinition m) {
+		}
+
+		@Override
+		public MapResource resolve(RenderRequest request) throws Exception {
+			return this;
+		}
+
+		@Override
+		public String getIdentityTag() {
+			return "dummy";
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Requests {
+		RenderRequest[] requests=new RenderRequest[20];
+		int counter;
+		
+		@Setup
+		public void setup() {
+			for (int i=0; i<requests.length; i++) {
+				RenderRequest rr=new RenderRequest();
+				rr.renderInfo=new RenderInfo();
+				rr.renderInfo.tiled=true;
+				rr.renderInfo.tileLevel=i;
+				requests[i]=rr;
+			}
+		}
+		
+		RenderRequest next() {
+			return requests[(counter++) % requests.length];
+		}
+	}
+	
+	private ScriptMapLocator locator;
+	
+	@Setup
+	public void setup() throws Exception {
+		Map<String, MapLocator> contents=new HashMap<String, MapLocator>();
+		contents.put("overview", new DummyResource());
+		contents.put("detail", new DummyResource());
+		StaticMapRepository repository=new StaticMapRepository(contents);
+		
+		locator=new ScriptMapLocator(
+				"function select(rr) { return rr.renderInfo.tileLevel < 10 ? 'overview' : repository.lookupMap('detail'); }",
+				"bench.select.js");
+		locator.initialize(repository);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public MapSource resolve(Requests requests) throws Exception {
+		return locator.resolve(requests.next());
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public MapSource resolveContended(Requests requests) throws Exception {
+		return locator.resolve(requests.next());
+	}
+}
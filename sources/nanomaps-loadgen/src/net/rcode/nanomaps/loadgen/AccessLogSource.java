@@ -0,0 +1,94 @@
+package net.rcode.nanomaps.loadgen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays the GET requests of an access log in common or combined log format.
+ * Request offsets are taken from the log's timestamps relative to its first
+ * line, so the original timing can be reproduced (or sped up).
+ * 
+ * @author stella
+ *
+ */
+public class AccessLogSource implements RequestSource {
+	private static final Pattern LINE_PATTERN=Pattern.compile("^\\S+ \\S+ \\S+ \\[([^\\]]+)\\] \"GET (\\S+)[^\"]*\"");
+	
+	private File file;
+	private Pattern filter;
+	private boolean loop;
+	
+	private BufferedReader in;
+	private SimpleDateFormat dateFormat=new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+	private long firstTime=-1;
+	private long lastOffset;
+	private long loopOffset;
+	private long skippedLines;
+	private boolean anyRequests;
+	
+	/**
+	 * @param file access log
+	 * @param filter only paths matching this are replayed
+	 * @param loop start over at the end of the log
+	 */
+	public AccessLogSource(File file, Pattern filter, boolean loop) throws IOException {
+		this.file=file;
+		this.filter=filter;
+		this.loop=loop;
+		open();
+	}
+	
+	private void open() throws IOException {
+		in=new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+	
+	public long getSkippedLines() {
+		return skippedLines;
+	}
+	
+	@Override
+	public PlannedRequest next() throws IOException {
+		for (;;) {
+			String line=in.readLine();
+			if (line==null) {
+				in.close();
+				if (!loop || !anyRequests) return null;
+				
+				// Play the log again after the end of the last pass
+				loopOffset=lastOffset + 1000;
+				firstTime=-1;
+				open();
+				continue;
+			}
+			
+			Matcher m=LINE_PATTERN.matcher(line);
+			if (!m.find()) {
+				skippedLines++;
+				continue;
+			}
+			String path=m.group(2);
+			if (filter!=null && !filter.matcher(path).find()) continue;
+			
+			long time;
+			try {
+				time=dateFormat.parse(m.group(1)).getTime();
+			} catch (ParseException e) {
+				skippedLines++;
+				continue;
+			}
+			if (firstTime<0) firstTime=time;
+			
+			anyRequests=true;
+			lastOffset=loopOffset + Math.max(0, time - firstTime);
+			return new PlannedRequest(path, lastOffset);
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package net.rcode.nanomaps.loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import net.rcode.nanomaps.server.metrics.LatencyHistogram;
+
+/**
+ * HTTP load generator for a running nanomaps server.  Requests come from
+ * an access log or from synthetic pan/zoom sessions (SessionSource).
+ * <p>
+ * In open loop mode, requests are sent on a schedule (a fixed or Poisson
+ * arrival rate, or the timing of the access log) no matter how fast the
+ * server answers, using up to -concurrency connections.  Latency is
+ * measured from the time each request was scheduled, so time spent waiting
+ * for a free connection counts against the server the way it would for real
+ * clients (no coordinated omission).  In closed loop mode, each of
+ * -concurrency clients sends its next request as soon as the previous one is
+ * answered.
+ * <p>
+ * Throughput, error and 503 rates and latency percentiles are printed every
+ * -interval seconds and summarized at the end.  Options:
+ * <pre>
+ *   -url URL           server to load (http://localhost:7666)
+ *   -log FILE          replay this access log (common or combined format)
+ *   -filter REGEX      only replay paths matching this (^/map/)
+ *   -loop              start the log over when it runs out
+ *   -speedup F         replay the log F times faster than recorded (1), 0 for closed loop
+ *   -synthetic MAP     generate pan/zoom sessions on this map instead
+ *   -levels MIN-MAX    zoom levels of synthetic sessions (2-14)
+ *   -viewport CxR      tiles visible in a synthetic session (4x3)
+ *   -steps N           pan/zoom steps per synthetic session (20)
+ *   -query QUERY       query string added to synthetic requests
+ *   -seed N            random seed (1)
+ *   -rate N            open loop at N requests/sec
+ *   -poisson           randomize the arrival times at -rate
+ *   -concurrency N     connections (32)
+ *   -duration SECS     stop after this long, 0 for no limit (60)
+ *   -requests N        stop after this many requests
+ *   -timeout MS        connect and read timeout (30000)
+ *   -interval SECS     seconds between progress reports (5)
+ * </pre>
+ * 
+ * @author stella
+ *
+ */
+public class LoadGenerator {
+	private String url="http://localhost:7666";
+	private File logFile;
+	private Pattern filter=Pattern.compile("^/map/");
+	private boolean loop;
+	private double speedup=1;
+	private String syntheticMap;
+	private int minLevel=2;
+	private int maxLevel=14;
+	private int columns=4;
+	private int rows=3;
+	private int steps=20;
+	private String query;
+	private long seed=1;
+	private double rate;
+	private boolean poisson;
+	private int concurrency=32;
+	private int durationSeconds=60;
+	private long maxRequests;
+	private int timeoutMs=30000;
+	private int intervalSeconds=5;
+	
+	private RequestSource source;
+	private LoadStats stats=new LoadStats();
+	private AtomicLong issued=new AtomicLong();
+	private long startNanos;
+	private long endNanos;
+	
+	private void parseArgs(String[] args) {
+		for (int i=0; i<args.length; i++) {
+			String arg=args[i];
+			if ("-loop".equals(arg)) {
+				loop=true;
+				continue;
+			}
+			if ("-poisson".equals(arg)) {
+				poisson=true;
+				continue;
+			}
+			
+			if (i+1>=args.length) throw new IllegalArgumentException("Missing value for " + arg);
+			String value=args[++i];
+			
+			if ("-url".equals(arg)) url=value.endsWith("/") ? value.substring(0, value.length()-1) : value;
+			else if ("-log".equals(arg)) logFile=new File(value);
+			else if ("-filter".equals(arg)) filter=value.length()==0 ? null : Pattern.compile(value);
+			else if ("-speedup".equals(arg)) speedup=Double.parseDouble(value);
+			else if ("-synthetic".equals(arg)) syntheticMap=value;
+			else if ("-levels".equals(arg)) {
+				int dash=value.indexOf('-');
+				if (dash<0) {
+					minLevel=maxLevel=Integer.parseInt(value);
+				} else {
+					minLevel=Integer.parseInt(value.substring(0, dash));
+					maxLevel=Integer.parseInt(value.substring(dash+1));
+				}
+			}
+			else if ("-viewport".equals(arg)) {
+				int x=value.indexOf('x');
+				if (x<0) throw new IllegalArgumentException("Viewport must be CxR");
+				columns=Integer.parseInt(value.substring(0, x));
+				rows=Integer.parseInt(value.substring(x+1));
+			}
+			else if ("-steps".equals(arg)) steps=Integer.parseInt(value);
+			else if ("-query".equals(arg)) query=value;
+			else if ("-seed".equals(arg)) seed=Long.parseLong(value);
+			else if ("-rate".equals(arg)) rate=Double.parseDouble(value);
+			else if ("-concurrency".equals(arg)) concurrency=Integer.parseInt(value);
+			else if ("-duration".equals(arg)) durationSeconds=Integer.parseInt(value);
+			else if ("-requests".equals(arg)) maxRequests=Long.parseLong(value);
+			else if ("-timeout".equals(arg)) timeoutMs=Integer.parseInt(value);
+			else if ("-interval".equals(arg)) intervalSeconds=Integer.parseInt(value);
+			else throw new IllegalArgumentException("Unknown option " + arg);
+		}
+		
+		if ((logFile==null) == (syntheticMap==null)) {
+			throw new IllegalArgumentException("Give one of -log or -synthetic");
+		}
+		if (minLevel<0 || maxLevel<minLevel) throw new IllegalArgumentException("Bad level range");
+		if (concurrency<1) throw new IllegalArgumentException("Concurrency must be at least 1");
+	}
+	
+	private boolean isOpenLoop() {
+		return rate>0 || (logFile!=null && speedup>0);
+	}
+	
+	public void run() throws Exception {
+		if (logFile!=null) source=new AccessLogSource(logFile, filter, loop);
+		else source=new SessionSource(syntheticMap, query, minLevel, maxLevel, columns, rows, steps, seed);
+		
+		// Keep-alive connections are pooled per destination up to this many
+		System.setProperty("http.maxConnections", String.valueOf(concurrency));
+		
+		System.out.println(String.format("Loading %s: %s, %d connections, %s",
+				url,
+				logFile!=null ? logFile.toString() : "synthetic sessions on " + syntheticMap,
+				concurrency,
+				rate>0 ? String.format("%.1f req/s%s", rate, poisson ? " (poisson)" : "") :
+					isOpenLoop() ? String.format("log timing x%.2f", speedup) : "closed loop"));
+		
+		startNanos=System.nanoTime();
+		endNanos=durationSeconds>0 ? startNanos + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+		
+		Thread reporter=new Thread("loadgen-reporter") {
+			public void run() {
+				try {
+					for (;;) {
+						Thread.sleep(intervalSeconds*1000L);
+						printInterval(stats.nextInterval());
+					}
+				} catch (InterruptedException e) {
+					// Done
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+		
+		if (isOpenLoop()) runOpenLoop();
+		else runClosedLoop();
+		
+		reporter.interrupt();
+		reporter.join();
+		printSummary();
+	}
+	
+	/**
+	 * Dispatch requests on schedule to a pool of senders.  The pool's queue is
+	 * unbounded so that requests the server is too slow for wait (and are
+	 * timed) rather than being dropped.
+	 */
+	private void runOpenLoop() throws Exception {
+		ExecutorService senders=Executors.newFixedThreadPool(concurrency);
+		Random random=new Random(seed);
+		double intervalNanos=rate>0 ? 1e9 / rate : 0;
+		long nextNanos=startNanos;
+		
+		try {
+			for (;;) {
+				if (maxRequests>0 && issued.get()>=maxRequests) break;
+				final PlannedRequest request=source.next();
+				if (request==null) break;
+				
+				final long intendedNanos;
+				if (rate>0) {
+					intendedNanos=nextNanos;
+					double gap=poisson ? -Math.log(1.0 - random.nextDouble()) * intervalNanos : intervalNanos;
+					nextNanos+=(long) gap;
+				} else if (request.offsetMillis>=0) {
+					intendedNanos=startNanos + (long) (request.offsetMillis * 1e6 / speedup);
+				} else {
+					intendedNanos=System.nanoTime();
+				}
+				if (intendedNanos>=endNanos) break;
+				
+				for (;;) {
+					long wait=intendedNanos - System.nanoTime();
+					if (wait<=0) break;
+					LockSupport.parkNanos(wait);
+				}
+				
+				issued.incrementAndGet();
+				senders.execute(new Runnable() {
+					public void run() {
+						send(request, intendedNanos);
+					}
+				});
+			}
+		} finally {
+			senders.shutdown();
+			senders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	private void runClosedLoop() throws Exception {
+		Thread[] clients=new Thread[concurrency];
+		for (int i=0; i<clients.length; i++) {
+			clients[i]=new Thread("loadgen-client-" + i) {
+				public void run() {
+					try {
+						for (;;) {
+							if (System.nanoTime()>=endNanos) break;
+							if (maxRequests>0 && issued.incrementAndGet()>maxRequests) break;
+							
+							PlannedRequest request;
+							synchronized (source) {
+								request=source.next();
+							}
+							if (request==null) break;
+							send(request, System.nanoTime());
+						}
+					} catch (IOException e) {
+						System.err.println("Error reading requests: " + e);
+					}
+				}
+			};
+			clients[i].start();
+		}
+		for (Thread client: clients) client.join();
+	}
+	
+	private void send(PlannedRequest request, long intendedNanos) {
+		long sentNanos=System.nanoTime();
+		int status=-1;
+		long size=0;
+		HttpURLConnection connection=null;
+		try {
+			connection=(HttpURLConnection) new URL(url + request.path).openConnection();
+			connection.setConnectTimeout(timeoutMs);
+			connection.setReadTimeout(timeoutMs);
+			connection.setUseCaches(false);
+			status=connection.getResponseCode();
+			
+			// Read the whole body, so that the connection can be reused
+			InputStream in=status>=400 ? connection.getErrorStream() : connection.getInputStream();
+			if (in!=null) {
+				try {
+					byte[] buffer=new byte[8192];
+					for (;;) {
+						int r=in.read(buffer);
+						if (r<0) break;
+						size+=r;
+					}
+				} finally {
+					in.close();
+				}
+			}
+		} catch (IOException e) {
+			status=-1;
+			if (connection!=null) connection.disconnect();
+		}
+		
+		stats.record(intendedNanos, sentNanos, System.nanoTime(), status, size);
+	}
+	
+	private void printInterval(LoadStats.Counters counters) {
+		long completed=counters.completed.get();
+		double seconds=(System.nanoTime() - counters.startNanos) / 1e9;
+		System.out.println(String.format("%6.0fs %8.1f req/s  err %5.2f%%  503 %5.2f%%  p50 %8.1fms  p99 %8.1fms  max %8.1fms",
+				(System.nanoTime() - startNanos) / 1e9,
+				completed / seconds,
+				percent(counters.getFailed(), completed),
+				percent(counters.overloaded.get(), completed),
+				millis(quantile(counters.latency, 0.5, counters.maxLatency.get())),
+				millis(quantile(counters.latency, 0.99, counters.maxLatency.get())),
+				millis(counters.maxLatency.get())));
+	}
+	
+	private void printSummary() {
+		LoadStats.Counters counters=stats.getTotal();
+		long completed=counters.completed.get();
+		double seconds=(System.nanoTime() - startNanos) / 1e9;
+		
+		System.out.println();
+		System.out.println(String.format("%d requests in %.1fs: %.1f req/s, %.1f KB/s",
+				completed, seconds, completed / seconds, counters.bytes.get() / seconds / 1024));
+		System.out.println(String.format("  2xx %d, 304 %d, 503 %d (%.2f%%), 504 %d, other %d, io errors %d",
+				counters.ok.get(),
+				counters.notModified.get(),
+				counters.overloaded.get(), percent(counters.overloaded.get(), completed),
+				counters.timedOut.get(),
+				counters.otherStatus.get(),
+				counters.ioErrors.get()));
+		printPercentiles("latency", counters.latency, counters.maxLatency.get());
+		if (isOpenLoop()) {
+			printPercentiles("service time", counters.serviceTime, -1);
+		}
+	}
+	
+	private void printPercentiles(String title, LatencyHistogram histogram, long maxMicros) {
+		StringBuilder line=new StringBuilder();
+		line.append(String.format("  %-13s", title));
+		double[] quantiles={ 0.5, 0.9, 0.99, 0.999 };
+		String[] names={ "p50", "p90", "p99", "p99.9" };
+		for (int i=0; i<quantiles.length; i++) {
+			line.append(String.format(" %s %8.1fms", names[i], millis(quantile(histogram, quantiles[i], maxMicros))));
+		}
+		if (maxMicros>=0) line.append(String.format(" max %8.1fms", millis(maxMicros)));
+		System.out.println(line);
+	}
+	
+	/**
+	 * Histogram quantiles are bucket upper bounds, so clamp them to the
+	 * largest value actually seen when it is known
+	 */
+	private static long quantile(LatencyHistogram histogram, double quantile, long maxMicros) {
+		long value=histogram.getValueAtQuantile(quantile);
+		return maxMicros>=0 ? Math.min(value, maxMicros) : value;
+	}
+	
+	private static double percent(long count, long total) {
+		return total==0 ? 0 : 100.0 * count / total;
+	}
+	
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator=new LoadGenerator();
+		try {
+			generator.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("See the LoadGenerator class comment for options");
+			System.exit(2);
+		}
+		generator.run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,89 @@
+package net.rcode.nanomaps.loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.rcode.nanomaps.server.metrics.LatencyHistogram;
+
+/**
+ * Latency and outcome counters for a load run.  Latency is recorded twice:
+ * from the time the request was supposed to be sent (what a client arriving
+ * on schedule would have seen, which corrects for coordinated omission when
+ * the generator falls behind) and from the time it was actually sent
+ * (service time).  The interval counters are swapped out by each progress
+ * report.
+ * 
+ * @author stella
+ *
+ */
+public class LoadStats {
+	public static class Counters {
+		public final LatencyHistogram latency=new LatencyHistogram();
+		public final LatencyHistogram serviceTime=new LatencyHistogram();
+		public final AtomicLong maxLatency=new AtomicLong();
+		public final AtomicLong completed=new AtomicLong();
+		public final AtomicLong ok=new AtomicLong();
+		public final AtomicLong notModified=new AtomicLong();
+		public final AtomicLong overloaded=new AtomicLong();
+		public final AtomicLong timedOut=new AtomicLong();
+		public final AtomicLong otherStatus=new AtomicLong();
+		public final AtomicLong ioErrors=new AtomicLong();
+		public final AtomicLong bytes=new AtomicLong();
+		public final long startNanos=System.nanoTime();
+		
+		void record(long intendedNanos, long sentNanos, long endNanos, int status, long size) {
+			long latencyMicros=(endNanos - intendedNanos)/1000;
+			latency.record(latencyMicros);
+			serviceTime.record((endNanos - sentNanos)/1000);
+			for (;;) {
+				long max=maxLatency.get();
+				if (latencyMicros<=max || maxLatency.compareAndSet(max, latencyMicros)) break;
+			}
+			
+			completed.incrementAndGet();
+			bytes.addAndGet(size);
+			if (status<0) ioErrors.incrementAndGet();
+			else if (status>=200 && status<300) ok.incrementAndGet();
+			else if (status==304) notModified.incrementAndGet();
+			else if (status==503) overloaded.incrementAndGet();
+			else if (status==504) timedOut.incrementAndGet();
+			else otherStatus.incrementAndGet();
+		}
+		
+		/**
+		 * @return requests that did not get a 2xx or 304
+		 */
+		public long getFailed() {
+			return completed.get() - ok.get() - notModified.get();
+		}
+	}
+	
+	private final Counters total=new Counters();
+	private volatile Counters interval=new Counters();
+	
+	/**
+	 * Record a finished request
+	 * @param intendedNanos when the request should have been sent
+	 * @param sentNanos when it was sent
+	 * @param endNanos when the response was fully read
+	 * @param status http status or -1 on an io error
+	 * @param size response body bytes
+	 */
+	public void record(long intendedNanos, long sentNanos, long endNanos, int status, long size) {
+		total.record(intendedNanos, sentNanos, endNanos, status, size);
+		interval.record(intendedNanos, sentNanos, endNanos, status, size);
+	}
+	
+	public Counters getTotal() {
+		return total;
+	}
+	
+	/**
+	 * Start a new interval and return the counters of the one that ended.
+	 * A request finishing during the swap may land in either.
+	 */
+	public Counters nextInterval() {
+		Counters ended=interval;
+		interval=new Counters();
+		return ended;
+	}
+}
@@ -0,0 +1,24 @@
+package net.rcode.nanomaps.loadgen;
+
+/**
+ * A request to send
+ * @author stella
+ *
+ */
+public class PlannedRequest {
+	/**
+	 * Path and query relative to the server url
+	 */
+	public final String path;
+	
+	/**
+	 * When to send the request, in ms from the start of the run, or -1 if
+	 * the source has no timing of its own
+	 */
+	public final long offsetMillis;
+	
+	public PlannedRequest(String path, long offsetMillis) {
+		this.path=path;
+		this.offsetMillis=offsetMillis;
+	}
+}
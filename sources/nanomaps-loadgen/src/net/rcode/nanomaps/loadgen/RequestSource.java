@@ -0,0 +1,15 @@
+package net.rcode.nanomaps.loadgen;
+
+import java.io.IOException;
+
+/**
+ * Supplies the requests of a load run.  Not thread safe.
+ * @author stella
+ *
+ */
+public interface RequestSource {
+	/**
+	 * @return the next request or null when there are no more
+	 */
+	public PlannedRequest next() throws IOException;
+}
@@ -0,0 +1,135 @@
+package net.rcode.nanomaps.loadgen;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Generates the tile requests of synthetic map browsing sessions.  A session
+ * opens a viewport of tiles somewhere near one of a few busy places, then
+ * pans and zooms around for a number of steps, requesting the tiles that
+ * come into view, as a slippy map client would.
+ * 
+ * @author stella
+ *
+ */
+public class SessionSource implements RequestSource {
+	/**
+	 * Lng/lat of the places sessions start near
+	 */
+	private static final double[][] PLACES={
+		{ -0.1278, 51.5074 },
+		{ -74.0060, 40.7128 },
+		{ 139.6917, 35.6895 },
+		{ -43.1729, -22.9068 },
+		{ 28.0473, -26.2041 },
+		{ 151.2093, -33.8688 },
+		{ 77.2090, 28.6139 },
+		{ -122.4194, 37.7749 },
+	};
+	
+	private String mapName;
+	private String query;
+	private int minLevel;
+	private int maxLevel;
+	private int columns;
+	private int rows;
+	private int sessionSteps;
+	private Random random;
+	
+	private LinkedList<String> pending=new LinkedList<String>();
+	private int stepsLeft;
+	private int level;
+	
+	/**
+	 * Top left tile of the viewport
+	 */
+	private int left, top;
+	
+	/**
+	 * @param mapName map to request tiles of
+	 * @param query query string to add to each request or null
+	 * @param minLevel
+	 * @param maxLevel
+	 * @param columns viewport width in tiles
+	 * @param rows viewport height in tiles
+	 * @param sessionSteps pan/zoom steps before starting a new session
+	 * @param seed random seed, so a run can be repeated
+	 */
+	public SessionSource(String mapName, String query, int minLevel, int maxLevel, 
+			int columns, int rows, int sessionSteps, long seed) {
+		this.mapName=mapName;
+		this.query=query;
+		this.minLevel=minLevel;
+		this.maxLevel=maxLevel;
+		this.columns=columns;
+		this.rows=rows;
+		this.sessionSteps=sessionSteps;
+		this.random=new Random(seed);
+	}
+	
+	@Override
+	public PlannedRequest next() {
+		while (pending.isEmpty()) {
+			if (stepsLeft<=0) startSession();
+			else step();
+		}
+		return new PlannedRequest(pending.removeFirst(), -1);
+	}
+	
+	private void startSession() {
+		stepsLeft=sessionSteps;
+		level=minLevel + random.nextInt(maxLevel-minLevel+1);
+		
+		double[] place=PLACES[random.nextInt(PLACES.length)];
+		int count=1<<level;
+		double lng=place[0] + random.nextGaussian()*0.5;
+		double lat=Math.toRadians(Math.max(-85, Math.min(85, place[1] + random.nextGaussian()*0.5)));
+		int x=(int) Math.floor((lng+180.0)/360.0 * count);
+		int y=(int) Math.floor((1 - Math.log(Math.tan(lat) + 1/Math.cos(lat)) / Math.PI) / 2 * count);
+		left=x - columns/2;
+		top=y - rows/2;
+		requestArea(left, top, columns, rows);
+	}
+	
+	private void step() {
+		stepsLeft--;
+		int action=random.nextInt(10);
+		if (action<6) {
+			// Pan one tile
+			int dx=random.nextInt(3)-1, dy=random.nextInt(3)-1;
+			if (dx==0 && dy==0) dx=1;
+			left+=dx;
+			top+=dy;
+			if (dx!=0) requestArea(dx>0 ? left+columns-1 : left, top, 1, rows);
+			if (dy!=0) requestArea(left, dy>0 ? top+rows-1 : top, columns, 1);
+		} else if (action<8 && level<maxLevel) {
+			// Zoom in on the center
+			level++;
+			left=left*2 + columns/2;
+			top=top*2 + rows/2;
+			requestArea(left, top, columns, rows);
+		} else if (level>minLevel) {
+			// Zoom out around the center
+			level--;
+			left=(left + columns/2)/2 - columns/2;
+			top=(top + rows/2)/2 - rows/2;
+			requestArea(left, top, columns, rows);
+		}
+	}
+	
+	private void requestArea(int x0, int y0, int width, int height) {
+		int count=1<<level;
+		for (int y=y0; y<y0+height; y++) {
+			if (y<0 || y>=count) continue;
+			for (int x=x0; x<x0+width; x++) {
+				// Wrap around the antimeridian
+				int wrapped=((x % count) + count) % count;
+				StringBuilder path=new StringBuilder(64);
+				path.append("/map/").append(mapName).append("/tile/");
+				path.append(level).append('/').append(wrapped).append('/').append(y);
+				if (query!=null) path.append('?').append(query);
+				pending.add(path.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package net.rcode.nanomaps.server;
+
+import net.rcode.core.httpserver.DefaultHttpRequestHandler;
+import net.rcode.core.util.JsonBuilder;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Dump the render cost table that the RenderService uses to prioritize
+ * its queue as JSON.
+ * 
+ * @author stella
+ *
+ */
+public class AdminCostsRequestHandler extends DefaultHttpRequestHandler {
+	private RenderService renderService;
+	
+	public AdminCostsRequestHandler(RenderService renderService) {
+		this.renderService=renderService;
+	}
+	
+	@Override
+	protected void handle() throws Exception {
+		JsonBuilder json=new JsonBuilder();
+		renderService.getCostEstimator().writeJson(json);
+		
+		HttpResponse response=new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.addHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json;charset=UTF-8");
+		response.setContent(ChannelBuffers.copiedBuffer(json.getJson(), CharsetUtil.UTF_8));
+		respond(response);
+	}
+
+}
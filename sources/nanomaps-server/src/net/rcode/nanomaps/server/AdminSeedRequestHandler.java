@@ -0,0 +1,222 @@
+package net.rcode.nanomaps.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import mapnik.Box2d;
+import net.rcode.core.httpserver.DefaultHttpRequestHandler;
+import net.rcode.core.util.JsonBuilder;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Start and control cache seeding jobs.  Responses are JSON.
+ * <ul>
+ * <li>GET /_admin/seed lists the jobs and their progress
+ * <li>POST /_admin/seed?map=name&amp;bbox=minx,miny,maxx,maxy&amp;levels=min-max starts a job.
+ * Optional parameters are cm=global|map (default=map), pixelRatios=r1,r2 (default=1),
+ * format (default=png) and rate=most renders per second (default no limit).
+ * <li>GET /_admin/seed/{id} shows one job
+ * <li>POST /_admin/seed/{id}?action=pause|resume|cancel
+ * </ul>
+ *
+ * @author stella
+ *
+ */
+public class AdminSeedRequestHandler extends DefaultHttpRequestHandler {
+	static final String PATH_PREFIX="/_admin/seed";
+	static final Pattern COMMA_SPLIT=Pattern.compile("\\,");
+	static final Pattern DASH_SPLIT=Pattern.compile("\\-");
+
+	private TileSeeder seeder;
+
+	public AdminSeedRequestHandler(TileSeeder seeder) {
+		this.seeder=seeder;
+	}
+
+	@Override
+	protected void handle() throws Exception {
+		QueryStringDecoder qs=new QueryStringDecoder(request.getUri());
+		String path=qs.getPath();
+		if (path.startsWith(PATH_PREFIX)) path=path.substring(PATH_PREFIX.length());
+		if (path.startsWith("/")) path=path.substring(1);
+		if (path.endsWith("/")) path=path.substring(0, path.length()-1);
+		Map<String, List<String>> params=qs.getParameters();
+		boolean post=HttpMethod.POST.equals(request.getMethod());
+
+		try {
+			if (path.isEmpty()) {
+				if (post) {
+					respondJob(startJob(params));
+				} else {
+					respondJobs();
+				}
+				return;
+			}
+
+			SeedJob job;
+			try {
+				job=seeder.getJob(Integer.parseInt(path));
+			} catch (NumberFormatException e) {
+				job=null;
+			}
+			if (job==null) {
+				respondError(HttpResponseStatus.NOT_FOUND, "No seed job " + path);
+				return;
+			}
+
+			if (post) {
+				String action=param(params, "action");
+				boolean changed;
+				if ("pause".equals(action)) changed=job.pause();
+				else if ("resume".equals(action)) changed=job.resume();
+				else if ("cancel".equals(action)) changed=job.cancel();
+				else throw new IllegalArgumentException("Illegal value for action parameter");
+
+				if (!changed) {
+					respondError(HttpResponseStatus.CONFLICT, "Cannot " + action + " a job that is " +
+							job.getState().name().toLowerCase());
+					return;
+				}
+			}
+			respondJob(job);
+		} catch (IllegalArgumentException e) {
+			respondError(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+		} catch (IllegalStateException e) {
+			respondError(HttpResponseStatus.CONFLICT, e.getMessage());
+		}
+	}
+
+	private SeedJob startJob(Map<String, List<String>> params) {
+		String mapName=param(params, "map");
+		if (mapName==null) {
+			throw new IllegalArgumentException("Parameter map is required");
+		}
+
+		// Bounds
+		String bboxParam=param(params, "bbox");
+		if (bboxParam==null) {
+			throw new IllegalArgumentException("Parameter bbox is required");
+		}
+		String[] bboxComps=COMMA_SPLIT.split(bboxParam);
+		if (bboxComps.length!=4) {
+			throw new IllegalArgumentException("Illegal value for bbox parameter");
+		}
+		double[] bboxValues=new double[4];
+		for (int i=0; i<4; i++) {
+			try {
+				bboxValues[i]=Double.parseDouble(bboxComps[i]);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Illegal value for bbox parameter");
+			}
+		}
+		if (bboxValues[0]>bboxValues[2] || bboxValues[1]>bboxValues[3]) {
+			throw new IllegalArgumentException("Bbox parameter is not organized as minx,miny,maxx,maxy");
+		}
+		Box2d bounds=new Box2d(bboxValues[0], bboxValues[1], bboxValues[2], bboxValues[3]);
+
+		// Coordinate mode
+		String cmParam=param(params, "cm");
+		boolean global;
+		if (cmParam==null || "map".equalsIgnoreCase(cmParam)) {
+			global=false;
+		} else if ("global".equalsIgnoreCase(cmParam)) {
+			global=true;
+		} else {
+			throw new IllegalArgumentException("Illegal value for cm parameter");
+		}
+
+		// Levels
+		String levelsParam=param(params, "levels");
+		if (levelsParam==null) {
+			throw new IllegalArgumentException("Parameter levels is required");
+		}
+		int minLevel, maxLevel;
+		try {
+			String[] levelComps=DASH_SPLIT.split(levelsParam);
+			minLevel=Integer.parseInt(levelComps[0].trim());
+			maxLevel=levelComps.length>1 ? Integer.parseInt(levelComps[1].trim()) : minLevel;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Illegal value for levels parameter");
+		}
+
+		// Pixel ratios
+		String ratiosParam=param(params, "pixelratios");
+		double[] pixelRatios;
+		if (ratiosParam==null) {
+			pixelRatios=new double[] { 1.0 };
+		} else {
+			String[] ratioComps=COMMA_SPLIT.split(ratiosParam);
+			pixelRatios=new double[ratioComps.length];
+			for (int i=0; i<ratioComps.length; i++) {
+				try {
+					pixelRatios[i]=Double.parseDouble(ratioComps[i]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Illegal value for pixelRatios parameter");
+				}
+			}
+		}
+
+		String format=MapRequestHandler.translateFormat(param(params, "format"));
+
+		double rate=0;
+		String rateParam=param(params, "rate");
+		if (rateParam!=null) {
+			try {
+				rate=Double.parseDouble(rateParam);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Illegal value for rate parameter");
+			}
+		}
+
+		return seeder.submit(mapName, bounds, global, minLevel, maxLevel, pixelRatios, format, rate);
+	}
+
+	/**
+	 * @return first value of a parameter, matched case insensitively, or null
+	 */
+	private static String param(Map<String, List<String>> params, String name) {
+		for (Map.Entry<String, List<String>> entry: params.entrySet()) {
+			if (entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty()) {
+				return entry.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	private void respondJobs() {
+		JsonBuilder json=new JsonBuilder();
+		json.startObject();
+		json.key("jobs", false);
+		json.startArray();
+		for (SeedJob job: seeder.getJobs()) {
+			job.writeJson(json);
+		}
+		json.endArray();
+		json.endObject();
+		respondJson(json);
+	}
+
+	private void respondJob(SeedJob job) {
+		JsonBuilder json=new JsonBuilder();
+		job.writeJson(json);
+		respondJson(json);
+	}
+
+	private void respondJson(JsonBuilder json) {
+		HttpResponse response=new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+		response.addHeader(HttpHeaders.Names.CONTENT_TYPE, "application/json;charset=UTF-8");
+		response.addHeader(HttpHeaders.Names.CACHE_CONTROL, "no-cache");
+		response.setContent(ChannelBuffers.copiedBuffer(json.getJson(), CharsetUtil.UTF_8));
+		respond(response);
+	}
+}
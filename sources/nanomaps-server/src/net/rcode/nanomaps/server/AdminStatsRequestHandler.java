@@ -1,11 +1,14 @@
 package net.rcode.nanomaps.server;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import mapnik.Mapnik;
 import net.rcode.core.httpserver.DefaultHttpRequestHandler;
+import net.rcode.nanomaps.server.metrics.MetricsRegistry;
+import net.rcode.nanomaps.server.metrics.PrometheusWriter;
 
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
@@ -16,37 +19,76 @@ import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.util.CharsetUtil;
 
 /**
- * Print simple statistics.
+ * Print statistics in the Prometheus text format.
+ * <p>
+ * Each StatsSource value is published as a gauge named after the source title
+ * and the stat name, eg. "Render Service" and "queued" become
+ * nanomaps_render_service_queued.  A stat name may carry labels in braces, eg.
+ * lane.active{map="osm"}.  Latency histograms come from the MetricsRegistry.
  * 
  * @author stella
  *
  */
 public class AdminStatsRequestHandler extends DefaultHttpRequestHandler {
-	private static final double ONEMB=(double)(1024*1024);
+	private static final String PREFIX="nanomaps_";
+	
+	private List<StatsSource> sources=new CopyOnWriteArrayList<StatsSource>();
+	private MetricsRegistry metrics;
+	
+	/**
+	 * Add a component whose stats are listed after the built in sections
+	 * @param source
+	 */
+	public void addStatsSource(StatsSource source) {
+		sources.add(source);
+	}
+	
+	public void setMetrics(MetricsRegistry metrics) {
+		this.metrics=metrics;
+	}
 	
 	@Override
 	protected void handle() throws Exception {
-		StringWriter buffer=new StringWriter();
-		PrintWriter out=new PrintWriter(buffer);
-		out.println("JVM Stats");
-		out.println("---------");
-		out.format("Available Processors=%s\n", Runtime.getRuntime().availableProcessors());
-		out.format("Total Memory=%smb\n", Runtime.getRuntime().totalMemory()/ONEMB);
-		out.format("Free Memory=%smb\n", Runtime.getRuntime().freeMemory()/ONEMB);
-		out.format("Max Memory=%smb\n", Runtime.getRuntime().maxMemory()/ONEMB);
-		out.println();
+		PrometheusWriter out=new PrometheusWriter();
+		Runtime runtime=Runtime.getRuntime();
+		out.gauge(PREFIX + "jvm_available_processors", runtime.availableProcessors());
+		out.gauge(PREFIX + "jvm_total_memory_bytes", runtime.totalMemory());
+		out.gauge(PREFIX + "jvm_free_memory_bytes", runtime.freeMemory());
+		out.gauge(PREFIX + "jvm_max_memory_bytes", runtime.maxMemory());
 		
 		Map<String, Integer> mapnikAllocs=Mapnik.getNativeAllocations();
-		out.println("Mapnik Allocations");
-		out.println("------------------");
 		for (Map.Entry<String,Integer> entry: mapnikAllocs.entrySet()) {
-			out.format("%s=%s objects\n", entry.getKey(), entry.getValue());
+			out.gauge(PREFIX + "mapnik_native_allocations", entry.getValue(), "type", entry.getKey());
+		}
+		
+		for (StatsSource source: sources) {
+			Map<String, Object> stats=new TreeMap<String, Object>();
+			source.collectStats(stats);
+			
+			String sourcePrefix=PREFIX + PrometheusWriter.sanitizeName(source.getStatsTitle()) + "_";
+			for (Map.Entry<String, Object> entry: stats.entrySet()) {
+				double value;
+				if (entry.getValue() instanceof Number) value=((Number)entry.getValue()).doubleValue();
+				else if (entry.getValue() instanceof Boolean) value=((Boolean)entry.getValue()) ? 1 : 0;
+				else continue;
+				
+				String key=entry.getKey();
+				String labels="";
+				int brace=key.indexOf('{');
+				if (brace>=0 && key.endsWith("}")) {
+					labels=key.substring(brace+1, key.length()-1);
+					key=key.substring(0, brace);
+				}
+				String name=sourcePrefix + PrometheusWriter.sanitizeName(key);
+				out.sample(name, "gauge", name, labels, value);
+			}
 		}
-		out.println();
+		
+		if (metrics!=null) metrics.write(out);
 		
 		HttpResponse response=new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-		response.addHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain;charset=UTF-8");
-		response.setContent(ChannelBuffers.copiedBuffer(buffer.toString(), CharsetUtil.UTF_8));
+		response.addHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; version=0.0.4; charset=UTF-8");
+		response.setContent(ChannelBuffers.copiedBuffer(out.toString(), CharsetUtil.UTF_8));
 		respond(response);
 	}
 
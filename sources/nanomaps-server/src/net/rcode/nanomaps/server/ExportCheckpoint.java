@@ -0,0 +1,171 @@
+package net.rcode.nanomaps.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records which metatiles of a PyramidExport are safely written so that an
+ * interrupted export can pick up where it left off.
+ * <p>
+ * The file is a line describing the export followed by one "level/x/y" line
+ * per completed metatile.  Completions are collected with markComplete and
+ * appended (and synced) by commit, which the exporter calls only after
+ * flushing the tiles of everything it commits.  A line torn by a crash is
+ * dropped when the file is opened again.
+ *
+ * @author stella
+ *
+ */
+public class ExportCheckpoint {
+	private static final String HEADER_PREFIX="# ";
+
+	private File file;
+	private String description;
+	private Set<String> completed=new HashSet<String>();
+	private List<String> pending=new ArrayList<String>();
+	private FileOutputStream out;
+
+	/**
+	 * @param file
+	 * @param description parameters of the export.  A checkpoint written for
+	 * different parameters is not resumed.
+	 */
+	public ExportCheckpoint(File file, String description) {
+		this.file=file;
+		this.description=description.replace('\n', ' ');
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Load the completed metatiles of a previous run, if any, and open the
+	 * file for appending
+	 * @throws IOException
+	 * @throws IllegalStateException if the file is for a different export
+	 */
+	public void open() throws IOException {
+		long validLength=0;
+		if (file.isFile()) {
+			byte[] contents=readFully(file);
+			int lineStart=0;
+			boolean first=true;
+			for (int i=0; i<contents.length; i++) {
+				if (contents[i]!='\n') continue;
+				String line=new String(contents, lineStart, i-lineStart, "UTF-8");
+				lineStart=i+1;
+
+				if (first) {
+					if (!line.equals(HEADER_PREFIX + description)) {
+						throw new IllegalStateException("Checkpoint " + file + " was written for a different export (" +
+								line + ").  Delete it to start over.");
+					}
+					first=false;
+				} else if (!line.isEmpty()) {
+					completed.add(line);
+				}
+			}
+			validLength=lineStart;
+		}
+
+		if (validLength==0) {
+			out=new FileOutputStream(file);
+			out.write((HEADER_PREFIX + description + "\n").getBytes("UTF-8"));
+			out.getFD().sync();
+		} else {
+			// Cut off a torn last line
+			RandomAccessFile raf=new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(validLength);
+			} finally {
+				raf.close();
+			}
+			out=new FileOutputStream(file, true);
+		}
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		FileInputStream in=new FileInputStream(file);
+		try {
+			byte[] contents=new byte[(int)file.length()];
+			int offset=0;
+			while (offset<contents.length) {
+				int count=in.read(contents, offset, contents.length-offset);
+				if (count<0) break;
+				offset+=count;
+			}
+			if (offset<contents.length) {
+				byte[] shorter=new byte[offset];
+				System.arraycopy(contents, 0, shorter, 0, offset);
+				contents=shorter;
+			}
+			return contents;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String key(int level, int x, int y) {
+		return level + "/" + x + "/" + y;
+	}
+
+	/**
+	 * @return true if the metatile was completed by a previous run
+	 */
+	public boolean isComplete(int level, int x, int y) {
+		return completed.contains(key(level, x, y));
+	}
+
+	/**
+	 * @return number of metatiles completed by previous runs
+	 */
+	public int getCompletedCount() {
+		return completed.size();
+	}
+
+	/**
+	 * Note that the tiles of a metatile have been handed to the output.  They
+	 * are not recorded until they have been flushed and commit is called.
+	 */
+	public synchronized void markComplete(int level, int x, int y) {
+		pending.add(key(level, x, y));
+	}
+
+	/**
+	 * Take the metatiles marked complete since the last call
+	 */
+	public synchronized List<String> takePending() {
+		List<String> ret=pending;
+		pending=new ArrayList<String>();
+		return ret;
+	}
+
+	/**
+	 * Durably record metatiles whose tiles have been flushed
+	 * @param keys as returned from takePending
+	 */
+	public void commit(List<String> keys) throws IOException {
+		if (keys.isEmpty()) return;
+		StringBuilder lines=new StringBuilder(keys.size()*16);
+		for (String key: keys) {
+			lines.append(key).append('\n');
+		}
+		out.write(lines.toString().getBytes("UTF-8"));
+		out.getFD().sync();
+	}
+
+	public void close() throws IOException {
+		if (out!=null) {
+			out.close();
+			out=null;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package net.rcode.nanomaps.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import net.rcode.nanomaps.server.metrics.PrometheusWriter;
+
+/**
+ * Work queue for the render threads that schedules fairly between maps.
+ * <p>
+ * Each map gets its own lane with a weight and a concurrency cap, which lasts
+ * while the map has work queued or running.  Lanes are
+ * served in start-time fair queuing order: every dispatch advances the lane's
+ * virtual time by the item's estimated cost divided by the lane's weight, and
+ * the lane with the earliest virtual start time goes next.  A map with slow
+ * renders therefore uses up its share quickly and a light map gets its turn
+ * as soon as it has work.  Within a lane, items are served in their natural
+ * order.
+ * <p>
+ * The cap is a bulkhead: a lane that is at its cap is passed over while other
+ * lanes have work.  When they don't, the busy lane may borrow idle threads, but
+ * never the last one, so that a newly arriving request for another map does not
+ * have to wait for a slow render to finish.
+ * <p>
+ * Background items bypass the lanes.  They are served in their natural order
+ * only when no lane has anything queued, and never on the last reserved
+ * thread (unless there is only one), so interactive work always goes first
+ * and finds a thread free.  Background items are not counted in size() or
+ * getQueuedCost().
+ *
+ * @author stella
+ *
+ */
+class FairRenderQueue {
+	/**
+	 * Threads that are never lent to a lane over its cap
+	 */
+	private static final int RESERVED_THREADS=1;
+
+	public interface Item extends Comparable<Item> {
+		public String getLaneName();
+		public double getCost();
+		public double getLaneWeight();
+		public int getLaneConcurrency();
+		public boolean isBackground();
+	}
+
+	private static class Lane {
+		final String name;
+		final PriorityQueue<Item> queue=new PriorityQueue<Item>();
+		double weight=1.0;
+		int concurrency;
+		int active;
+		double finishTime;
+		long dispatched;
+		long borrowed;
+
+		Lane(String name) {
+			this.name=name;
+		}
+
+		boolean underCap() {
+			return concurrency<=0 || active<concurrency;
+		}
+	}
+
+	private final int threads;
+	private final Map<String, Lane> lanes=new HashMap<String, Lane>();
+	private double virtualTime;
+	private int totalActive;
+	private int totalQueued;
+	private double totalQueuedCost;
+	private final PriorityQueue<Item> backgroundQueue=new PriorityQueue<Item>();
+	private int backgroundActive;
+	private long backgroundDispatched;
+
+	public FairRenderQueue(int threads) {
+		this.threads=threads;
+	}
+
+	public synchronized void offer(Item item) {
+		if (item.isBackground()) {
+			backgroundQueue.add(item);
+			notifyAll();
+			return;
+		}
+		
+		Lane lane=lanes.get(item.getLaneName());
+		if (lane==null) {
+			lane=new Lane(item.getLaneName());
+			lanes.put(lane.name, lane);
+		}
+
+		// Latest settings win
+		lane.weight=item.getLaneWeight()>0 ? item.getLaneWeight() : 1.0;
+		lane.concurrency=item.getLaneConcurrency();
+
+		lane.queue.add(item);
+		totalQueued++;
+		totalQueuedCost+=item.getCost();
+		notifyAll();
+	}
+
+	public synchronized boolean remove(Item item) {
+		if (item.isBackground()) return backgroundQueue.remove(item);
+		
+		Lane lane=lanes.get(item.getLaneName());
+		if (lane==null || !lane.queue.remove(item)) return false;
+		totalQueued--;
+		totalQueuedCost-=item.getCost();
+		if (totalQueued==0) totalQueuedCost=0;
+		dropIfIdle(lane);
+		return true;
+	}
+
+	/**
+	 * Wait for the next item to dispatch.  The caller must call done
+	 * when it has finished with the item.
+	 */
+	public synchronized Item take() throws InterruptedException {
+		for (;;) {
+			Lane lane=selectLane();
+			if (lane!=null) {
+				Item item=lane.queue.poll();
+				totalQueued--;
+				totalQueuedCost-=item.getCost();
+				if (totalQueued==0) totalQueuedCost=0;
+
+				double startTime=Math.max(lane.finishTime, virtualTime);
+				lane.finishTime=startTime + item.getCost()/lane.weight;
+				virtualTime=startTime;
+
+				if (!lane.underCap()) lane.borrowed++;
+				lane.active++;
+				lane.dispatched++;
+				totalActive++;
+				return item;
+			}
+			
+			if (totalQueued==0 && !backgroundQueue.isEmpty() &&
+					backgroundActive < Math.max(1, threads - RESERVED_THREADS)) {
+				Item item=backgroundQueue.poll();
+				backgroundActive++;
+				backgroundDispatched++;
+				totalActive++;
+				return item;
+			}
+
+			wait();
+		}
+	}
+
+	public synchronized void done(Item item) {
+		if (item.isBackground()) {
+			backgroundActive--;
+		} else {
+			Lane lane=lanes.get(item.getLaneName());
+			lane.active--;
+			dropIfIdle(lane);
+		}
+		totalActive--;
+		notifyAll();
+	}
+	
+	/**
+	 * Forget a lane with nothing queued or running, so that maps that come and
+	 * go don't accumulate
+	 */
+	private void dropIfIdle(Lane lane) {
+		if (lane.queue.isEmpty() && lane.active==0) lanes.remove(lane.name);
+	}
+
+	/**
+	 * @return number of items dispatched and not yet done
+	 */
+	public synchronized int getActive() {
+		return totalActive;
+	}
+
+	public synchronized int size() {
+		return totalQueued;
+	}
+
+	/**
+	 * @return sum of the estimated cost of everything queued (ms)
+	 */
+	public synchronized double getQueuedCost() {
+		return totalQueuedCost;
+	}
+
+	/**
+	 * Add per lane and background counters to stats
+	 */
+	public synchronized void collectStats(Map<String, Object> stats) {
+		stats.put("backgroundQueued", backgroundQueue.size());
+		stats.put("backgroundActive", backgroundActive);
+		stats.put("backgroundDispatched", backgroundDispatched);
+		for (Lane lane: lanes.values()) {
+			String labels="{" + PrometheusWriter.labelString("map", lane.name) + "}";
+			stats.put("lane.queued" + labels, lane.queue.size());
+			stats.put("lane.active" + labels, lane.active);
+			stats.put("lane.dispatched" + labels, lane.dispatched);
+			stats.put("lane.borrowed" + labels, lane.borrowed);
+		}
+	}
+
+	private Lane selectLane() {
+		Lane best=null;
+		double bestStart=0;
+
+		// Lanes within their cap
+		for (Lane lane: lanes.values()) {
+			if (lane.queue.isEmpty()) continue;
+			if (!lane.underCap()) continue;
+
+			double start=Math.max(lane.finishTime, virtualTime);
+			if (best==null || start<bestStart) {
+				best=lane;
+				bestStart=start;
+			}
+		}
+		if (best!=null) return best;
+
+		// Borrow idle capacity for lanes over their cap
+		if (totalActive >= threads - RESERVED_THREADS) return null;
+		for (Lane lane: lanes.values()) {
+			if (lane.queue.isEmpty()) continue;
+
+			double start=Math.max(lane.finishTime, virtualTime);
+			if (best==null || start<bestStart) {
+				best=lane;
+				bestStart=start;
+			}
+		}
+		return best;
+	}
+}
@@ -13,14 +13,19 @@ import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import mapnik.MapDefinition;
+import net.rcode.nanomaps.server.metrics.PrometheusWriter;
+import net.rcode.nanomaps.server.util.ObjectPool;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Manages a repository of maps.  This default implementation scans a
  * directory for special files that define a map.  Any file ending
- * in "{basename}.mapnik.xml" is published by its basename.  In the future,
- * additional "virtual" map types will also be recognized.
+ * in "{basename}.mapnik.xml" is published by its basename.  A
+ * "{basename}.select.js" file publishes a script that selects between maps
+ * and a "{basename}.mbtiles" file publishes its pre-rendered tiles read-only.
  * <p>
  * The repository maintains its collection of published maps in the background
  * such that a call to lookup a map is always a non blocking operation.
@@ -30,10 +35,11 @@ import org.slf4j.LoggerFactory;
  * @author stella
  *
  */
-public class FileSystemMapRepository implements MapRepository {
+public class FileSystemMapRepository implements MapRepository, StatsSource {
 	private static final Logger logger=LoggerFactory.getLogger(FileSystemMapRepository.class);
 	private static final Pattern MAPNIK_FILE_PATTERN=Pattern.compile("^([a-z0-9\\_\\-]+)\\.mapnik\\.xml$", Pattern.CASE_INSENSITIVE);
 	private static final Pattern SELECT_SCRIPT_FILE_PATTERN=Pattern.compile("^([a-z0-9\\_\\-]+)\\.select\\.js$", Pattern.CASE_INSENSITIVE);
+	private static final Pattern MBTILES_FILE_PATTERN=Pattern.compile("^([a-z0-9\\_\\-]+)\\.mbtiles$", Pattern.CASE_INSENSITIVE);
 	
 	/**
 	 * The location of the repository
@@ -51,6 +57,13 @@ public class FileSystemMapRepository implements MapRepository {
 	 */
 	private Map<String, MapLocator> staticMaps=new HashMap<String, MapLocator>();
 	
+	/**
+	 * Maps to load into the pool of each mapnik map when it is scanned, and
+	 * the recycle tag to pool them under
+	 */
+	private Object prewarmTag;
+	private int prewarmCount;
+	
 	public FileSystemMapRepository(File basedir) {
 		this.basedir=basedir;
 	}
@@ -59,6 +72,16 @@ public class FileSystemMapRepository implements MapRepository {
 		return basedir;
 	}
 	
+	/**
+	 * Have each mapnik map load count maps for recycleTag when it is scanned,
+	 * so that the first requests don't have to.  Normally one per render
+	 * thread.
+	 */
+	public void setPrewarm(Object recycleTag, int count) {
+		this.prewarmTag=recycleTag;
+		this.prewarmCount=count;
+	}
+	
 	/* (non-Javadoc)
 	 * @see net.rcode.mapocalypse.MapRepository#lookupMap(java.lang.String)
 	 */
@@ -85,6 +108,39 @@ public class FileSystemMapRepository implements MapRepository {
 		return ret;
 	}
 	
+	@Override
+	public String getStatsTitle() {
+		return "Map Repository";
+	}
+	
+	@Override
+	public void collectStats(Map<String, Object> stats) {
+		Collection<String> names=listMaps();
+		stats.put("maps", names.size());
+		for (String name: names) {
+			MapLocator locator=lookupMap(name);
+			if (locator instanceof MapnikMapResource) {
+				String labels="{" + PrometheusWriter.labelString("map", name) + "}";
+				long hits=0, misses=0, created=0, destroyed=0, createNanos=0, maxCreateNanos=0;
+				for (ObjectPool<MapDefinition> pool: ((MapnikMapResource)locator).getPools()) {
+					hits+=pool.getHits();
+					misses+=pool.getMisses();
+					created+=pool.getCreated();
+					destroyed+=pool.getDestroyed();
+					createNanos+=pool.getCreateNanos();
+					maxCreateNanos=Math.max(maxCreateNanos, pool.getMaxCreateNanos());
+				}
+				stats.put("pooledMaps" + labels, ((MapnikMapResource)locator).getPooledMapCount());
+				stats.put("mapPoolHits" + labels, hits);
+				stats.put("mapPoolMisses" + labels, misses);
+				stats.put("mapsCreated" + labels, created);
+				stats.put("mapsDisposed" + labels, destroyed);
+				stats.put("mapCreateSeconds" + labels, createNanos / 1e9);
+				stats.put("mapCreateMaxSeconds" + labels, maxCreateNanos / 1e9);
+			}
+		}
+	}
+	
 	/**
 	 * Add a statically registered map
 	 * @param name
@@ -92,10 +148,11 @@ public class FileSystemMapRepository implements MapRepository {
 	 * @throws Exception 
 	 */
 	public synchronized void add(String name, MapLocator locator) throws Exception {
-		staticMaps.put(name, locator);
+		MapLocator previous=staticMaps.put(name, locator);
 		if (locator instanceof MapRepositoryManaged) {
 			((MapRepositoryManaged)locator).initialize(this);
 		}
+		if (previous!=null && previous!=locator) dispose(name, previous);
 	}
 	
 	/**
@@ -131,11 +188,36 @@ public class FileSystemMapRepository implements MapRepository {
 			if (locator instanceof MapResource) {
 				logger.info("Resource " + entry.getKey() + " has identityTag=" + ((MapResource)locator).getIdentityTag());
 			}
+			if (locator instanceof MapnikMapResource && prewarmCount>0 && ((MapnikMapResource)locator).isValid()) {
+				try {
+					((MapnikMapResource)locator).prewarm(prewarmTag, prewarmCount);
+				} catch (Throwable t) {
+					logger.error("Error prewarming map pool of " + entry.getKey(), t);
+				}
+			}
 		}
 		
+		Map<String, MapLocator> oldContents;
 		synchronized (this) {
+			oldContents=managedMaps;
 			managedMaps=newContents;
 		}
+		
+		// Release what the maps that were replaced or removed hold on to
+		if (oldContents!=null) {
+			for (Map.Entry<String,MapLocator> entry: oldContents.entrySet()) {
+				dispose(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	private void dispose(String name, MapLocator locator) {
+		if (!(locator instanceof MapRepositoryManaged)) return;
+		try {
+			((MapRepositoryManaged)locator).dispose();
+		} catch (Throwable t) {
+			logger.error("Error disposing map resource " + name, t);
+		}
 	}
 
 	private void scanChildren(Map<String, MapLocator> newContents,
@@ -176,6 +258,22 @@ public class FileSystemMapRepository implements MapRepository {
 				
 				continue;
 			}
+			
+			// Detect pre-rendered tiles
+			m=MBTILES_FILE_PATTERN.matcher(file.getName());
+			if (m.matches()) {
+				String mapName=m.group(1);
+				try {
+					MBTilesMapResource tilesMap=new MBTilesMapResource(file);
+					loadCompanionProperties(tilesMap, file);
+					newContents.put(mapName, tilesMap);
+					logger.info("Registered new mbtiles map " + mapName);
+				} catch (Throwable t) {
+					logger.error("Error loading mbtiles map " + file, t);
+				}
+				
+				continue;
+			}
 		}
 	}
 
@@ -0,0 +1,127 @@
+package net.rcode.nanomaps.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mapnik.Image;
+
+/**
+ * Keeps native render buffers for reuse so that every render does not
+ * allocate and free megabytes of native memory.  Images are kept by size, up
+ * to a byte budget, the least recently used sizes going first.  An image is
+ * taken by a render thread and given back by whichever thread encoded it, so
+ * the pool is shared rather than per thread.
+ * <p>
+ * A reused image still holds the previous render.  It is cleared by the
+ * render itself, as long as the map has a background (see
+ * MapRequestHandler.doRender).
+ * 
+ * @author stella
+ *
+ */
+public class ImagePool implements StatsSource {
+	private static final int BYTES_PER_PIXEL=4;
+	
+	private final long maxBytes;
+	
+	// Guarded by this
+	private final LinkedHashMap<Long, ArrayDeque<Image>> images=new LinkedHashMap<Long, ArrayDeque<Image>>(16, 0.75f, true);
+	private long pooledBytes;
+	private int pooledImages;
+	private long hits;
+	private long misses;
+	private long discards;
+	
+	/**
+	 * @param maxBytes most image memory to keep.  0 disables pooling.
+	 */
+	public ImagePool(long maxBytes) {
+		this.maxBytes=maxBytes;
+	}
+	
+	/**
+	 * Get an image of the given size, reused if possible.  The contents are
+	 * undefined.  Give it back with release when done.
+	 */
+	public Image acquire(int width, int height) {
+		synchronized (this) {
+			ArrayDeque<Image> sized=images.get(sizeKey(width, height));
+			if (sized!=null && !sized.isEmpty()) {
+				hits++;
+				pooledImages--;
+				pooledBytes-=bytesOf(width, height);
+				return sized.pollLast();
+			}
+			misses++;
+		}
+		
+		return new Image(width, height);
+	}
+	
+	/**
+	 * Keep an image for reuse, or dispose of it
+	 */
+	public void release(Image image) {
+		int width=image.getWidth(), height=image.getHeight();
+		long bytes=bytesOf(width, height);
+		if (bytes>maxBytes) {
+			image.dispose();
+			return;
+		}
+		
+		ArrayDeque<Image> discarded=new ArrayDeque<Image>();
+		synchronized (this) {
+			Long key=sizeKey(width, height);
+			ArrayDeque<Image> sized=images.get(key);
+			if (sized==null) {
+				sized=new ArrayDeque<Image>();
+				images.put(key, sized);
+			}
+			sized.addLast(image);
+			pooledImages++;
+			pooledBytes+=bytes;
+			
+			// Make room, least recently used sizes first
+			Iterator<ArrayDeque<Image>> iter=images.values().iterator();
+			while (pooledBytes>maxBytes && iter.hasNext()) {
+				ArrayDeque<Image> oldest=iter.next();
+				while (pooledBytes>maxBytes && !oldest.isEmpty()) {
+					Image victim=oldest.pollFirst();
+					pooledImages--;
+					pooledBytes-=bytesOf(victim.getWidth(), victim.getHeight());
+					discards++;
+					discarded.add(victim);
+				}
+				if (oldest.isEmpty()) iter.remove();
+			}
+		}
+		
+		for (Image victim: discarded) {
+			victim.dispose();
+		}
+	}
+	
+	@Override
+	public String getStatsTitle() {
+		return "Image Pool";
+	}
+	
+	@Override
+	public synchronized void collectStats(Map<String, Object> stats) {
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("discards", discards);
+		stats.put("pooledImages", pooledImages);
+		stats.put("pooledBytes", pooledBytes);
+	}
+	
+	private static long sizeKey(int width, int height) {
+		return ((long)width << 32) | (height & 0xffffffffL);
+	}
+	
+	private static long bytesOf(int width, int height) {
+		return (long)width * height * BYTES_PER_PIXEL;
+	}
+}
@@ -0,0 +1,79 @@
+package net.rcode.nanomaps.server;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+import net.rcode.nanomaps.server.cache.MBTilesFile;
+import net.rcode.nanomaps.server.util.IdentityHasher;
+
+/**
+ * Publishes a pre-rendered MBTiles file as a read-only map.  Tiles are read
+ * straight out of SQLite and nothing is ever rendered.
+ *
+ * @author stella
+ *
+ */
+public class MBTilesMapResource extends AbstractMapLocator implements MapLocator, TileSource, MapRepositoryManaged {
+	private MBTilesFile file;
+	private Map<String, String> metadata;
+	private String format;
+	private String identityTag;
+	
+	public MBTilesMapResource(File repositoryFile) {
+		this.file=new MBTilesFile(repositoryFile, false);
+	}
+	
+	@Override
+	public void initialize(MapRepository repository) throws Exception {
+		file.open();
+		metadata=Collections.unmodifiableMap(file.readMetadata());
+		
+		format=metadata.get("format");
+		if (format==null || format.isEmpty()) format="png";
+		
+		IdentityHasher hasher=new IdentityHasher();
+		hasher.append("mbtiles:");
+		hasher.appendFileState(file.getFile());
+		identityTag=hasher.getHash();
+	}
+	
+	@Override
+	public void dispose() {
+		file.close();
+	}
+	
+	@Override
+	public boolean isValid() {
+		return metadata!=null;
+	}
+	
+	@Override
+	public MapSource resolve(RenderRequest request) {
+		return this;
+	}
+	
+	@Override
+	public String getIdentityTag() {
+		return identityTag;
+	}
+	
+	@Override
+	public byte[] readTile(int level, int x, int y) throws Exception {
+		// Outside of the pyramid there is nothing to look up
+		if (level<0 || level>RenderInfo.MAX_TILE_LEVEL) return null;
+		int extent=1<<level;
+		if (x<0 || y<0 || x>=extent || y>=extent) return null;
+		return file.readTile(level, x, y);
+	}
+	
+	@Override
+	public String getFormat() {
+		return format;
+	}
+	
+	@Override
+	public Map<String, String> getMetadata() {
+		return metadata;
+	}
+}
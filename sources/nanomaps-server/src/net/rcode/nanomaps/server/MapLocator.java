@@ -17,12 +17,12 @@ public interface MapLocator {
 	public boolean isValid();
 	
 	/**
-	 * Resolve a render request to a map resource
+	 * Resolve a render request to a map resource or tile source
 	 * @param request
-	 * @return resource or null
+	 * @return source or null
 	 * @throws Exception 
 	 */
-	public MapResource resolve(RenderRequest request) throws Exception;
+	public MapSource resolve(RenderRequest request) throws Exception;
 	
 	/**
 	 * Return meta-data properties associated with the map
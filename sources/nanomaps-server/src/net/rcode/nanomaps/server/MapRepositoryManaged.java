@@ -14,4 +14,11 @@ public interface MapRepositoryManaged {
 	 * @throws Exception
 	 */
 	public void initialize(MapRepository repository) throws Exception;
+	
+	/**
+	 * Called once the repository no longer publishes the object, eg. because
+	 * a scan replaced it.  Requests that already resolved it may still be
+	 * using it.
+	 */
+	public void dispose();
 }
@@ -1,5 +1,7 @@
 package net.rcode.nanomaps.server;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
@@ -10,17 +12,28 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.imageio.ImageIO;
+
 import mapnik.AspectFixMode;
 import mapnik.Box2d;
+import mapnik.Color;
 import mapnik.Coord;
 import mapnik.Image;
 import mapnik.MapDefinition;
 import mapnik.Renderer;
 import net.rcode.core.util.JsonBuilder;
 import net.rcode.core.web.ThreadedRequestHandler;
+import net.rcode.nanomaps.server.cache.TileCache;
+import net.rcode.nanomaps.server.cache.TileKey;
 import net.rcode.nanomaps.server.projection.RenderProjection;
+import net.rcode.nanomaps.server.util.IdentityHasher;
+import net.rcode.nanomaps.server.util.Png8Encoder;
+import net.rcode.nanomaps.server.util.TileSlicer;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponse;
@@ -38,6 +51,8 @@ import org.jboss.netty.util.CharsetUtil;
  * </ul>
  * 
  * Hitting either /map/ or /map/{mapname} result in a TOC result in JSON.
+ * Maps backed by a TileSource only answer tile requests and are never
+ * rendered.
  * <h2>WMS Parameters</h2>
  * <ul>
  * <li>REQUEST=GetMap (required)
@@ -53,7 +68,7 @@ import org.jboss.netty.util.CharsetUtil;
  * <li>SRSDEFRES=number
  * <li>CM=global|map (default=map)
  * <li>PIXELRATIO={ratio of map pixels to device pixels}
- * <li>FORMAT=image/png or other
+ * <li>FORMAT=image/png, image/png8, image/jpeg, png8:colors=N or other mapnik format
  * <li>BUFFER=pixel buffer override
  * <li>WIDTH=pixel width
  * <li>HEIGHT=pixel height
@@ -66,9 +81,17 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 	static final Pattern SLASH_SPLIT=Pattern.compile("\\/");
 	static final Pattern COMMA_SPLIT=Pattern.compile("\\,");
 	static final Pattern SRS_PATTERN=Pattern.compile("^(epsg|proj4)\\:(.+)$", Pattern.CASE_INSENSITIVE);
+	static final String RENDER_TIMEOUT_HEADER="X-Render-Timeout";
+	static final Color TRANSPARENT=new Color(0, 0, 0, 0);
 	
 	MapRepository repository;
 	RenderService renderService;
+	TileCache tileCache;
+	
+	/**
+	 * Render buffers.  The default keeps none.
+	 */
+	ImagePool imagePool=new ImagePool(0);
 	int cacheMaxAge=5;
 	
 	// -- Request state
@@ -93,11 +116,45 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 	 */
 	RenderRequest pendingRenderRequest;
 	
+	/**
+	 * Projection created for this request.  Held here rather than found via
+	 * pendingRenderRequest so that it is released even if the request fails
+	 * to parse.
+	 */
+	RenderProjection requestProjection;
+	
+	/**
+	 * Cancels the pending render if the client disconnects before we respond
+	 */
+	ChannelFutureListener disconnectListener;
+	
+	/**
+	 * System.nanoTime when we started handling the request
+	 */
+	long handleStartNanos;
+	
 	public MapRequestHandler(MapRepository repository, RenderService renderService) {
 		this.repository=repository;
 		this.renderService=renderService;
 	}
 	
+	/**
+	 * Set the cache that tile requests are answered from and rendered tiles
+	 * are written back to.  May be null.
+	 * @param tileCache
+	 */
+	public void setTileCache(TileCache tileCache) {
+		this.tileCache=tileCache;
+	}
+	
+	/**
+	 * Set the pool that render buffers are taken from
+	 * @param imagePool
+	 */
+	public void setImagePool(ImagePool imagePool) {
+		this.imagePool=imagePool;
+	}
+	
 	protected void decodePath() {
 		QueryStringDecoder qs=new QueryStringDecoder(request.getUri());
 		path=qs.getPath();
@@ -124,6 +181,7 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 	
 	@Override
 	protected void handleInThread() throws Exception {
+		handleStartNanos=System.nanoTime();
 		decodePath();
 		
 		// If it is a request for the root, then we handle it as a TOC
@@ -207,13 +265,24 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 		// Properties
 		tocBuilder.key("properties", false);
 		tocBuilder.startObject();
-		java.util.Map<String,String> properties=map.getProperties();
-		for (java.util.Map.Entry<String, String> entry: properties.entrySet()) {
+		Map<String,String> properties=map.getProperties();
+		for (Map.Entry<String, String> entry: properties.entrySet()) {
 			tocBuilder.key(entry.getKey());
 			tocBuilder.value(entry.getValue());
 		}
 		tocBuilder.endObject();
 		
+		// Metadata of pre-rendered tiles
+		if (map instanceof TileSource && map.isValid()) {
+			tocBuilder.key("metadata", false);
+			tocBuilder.startObject();
+			for (Map.Entry<String, String> entry: ((TileSource)map).getMetadata().entrySet()) {
+				tocBuilder.key(entry.getKey());
+				tocBuilder.value(entry.getValue());
+			}
+			tocBuilder.endObject();
+		}
+		
 		tocBuilder.endObject();
 	}
 	
@@ -256,6 +325,7 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 				throw new IllegalArgumentException("Illegal srs qualifier");
 			}
 		}
+		requestProjection=renderInfo.projection;
 		
 		// Pixel Ratio
 		String pixelRatioParam=queryParams.get("pixelratio");
@@ -401,6 +471,14 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 		} catch (Exception e) {
 			throw new IllegalArgumentException("Illegal values for tile coordinates");
 		}
+		if (level<0 || level>RenderInfo.MAX_TILE_LEVEL) {
+			throw new IllegalArgumentException("Tile level must be between 0 and " + RenderInfo.MAX_TILE_LEVEL);
+		}
+		
+		renderInfo.tiled=true;
+		renderInfo.tileLevel=level;
+		renderInfo.tileX=x;
+		renderInfo.tileY=y;
 		
 		// Resolve the bounds
 		renderInfo.bounds=renderInfo.projection.projectTile(
@@ -415,19 +493,22 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 	
 	protected void handleRenderRequest(RenderInfo renderInfo, String mapName, MapLocator locator) throws Exception {
 		RenderRequest renderRequest=new RenderRequest();
+		renderRequest.mapName=mapName;
 		renderRequest.renderInfo=renderInfo;
+		pendingRenderRequest=renderRequest;
+		long resolveStartNanos=System.nanoTime();
+		renderService.recordStage("parse", renderRequest, resolveStartNanos - handleStartNanos);
 		
 		// Get the underlying resource so we can get at the cache info
-		MapResource resource=locator.resolve(renderRequest);
-		if (resource==null || !resource.isValid()) {
+		MapSource source=locator.resolve(renderRequest);
+		renderService.recordStage("resolve", renderRequest, System.nanoTime() - resolveStartNanos);
+		if (source==null || !source.isValid()) {
 			respondError(HttpResponseStatus.NOT_FOUND, "Map '" + mapName + "' is not valid");
 			return;
 		}
-		renderRequest.resource=resource;
-		
 		
 		// Check etag and conditional get
-		String resourceEtag=resource.getIdentityTag();
+		String resourceEtag=source.getIdentityTag();
 		if (resourceEtag!=null) {
 			String ifNoneMatch=request.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
 			if (ifNoneMatch!=null && resourceEtag.equals(ifNoneMatch)) {
@@ -439,10 +520,259 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 			}
 		}
 		
-		pendingRenderRequest=renderRequest;
-		renderService.submit(renderRequest, this);
+		// Pre-rendered tiles are read here without involving the render service
+		if (source instanceof TileSource) {
+			respondFromTileSource(renderRequest, (TileSource)source);
+			return;
+		}
+		renderRequest.resource=(MapResource)source;
+		
+		String variant=null;
+		if (renderInfo.tiled && resourceEtag!=null) {
+			variant=tileVariant(resourceEtag, renderInfo, queryParams.get("srsorigin"), queryParams.get("srsdefres"));
+		}
+		
+		// Answer from the tile cache without going through the render queue
+		if (variant!=null && tileCache!=null) {
+			TileKey tileKey=new TileKey(mapName, variant, renderInfo.format,
+					renderInfo.tileLevel, renderInfo.tileX, renderInfo.tileY);
+			ChannelBuffer cached=tileCache.lookup(tileKey);
+			if (cached!=null) {
+				respondContents(renderRequest, cached);
+				return;
+			}
+			renderRequest.tileKey=tileKey;
+		}
+		
+		if (variant!=null) {
+			setupMetatile(renderRequest, locator);
+		}
+		setupLane(renderRequest, locator);
+		setupDeadline(renderRequest, locator);
+		
+		Object ticket;
+		try {
+			ticket=renderService.submit(renderRequest, this);
+		} catch (RenderRejectedException e) {
+			respondOverloaded(e);
+			return;
+		}
+		watchForDisconnect(ticket);
+	}
+	
+	/**
+	 * Answer a tile request from a TileSource in the request thread.  Only the
+	 * tile grid and pixel ratio the tiles were made in can be served.
+	 */
+	protected void respondFromTileSource(RenderRequest renderRequest, TileSource source) throws Exception {
+		RenderInfo renderInfo=renderRequest.renderInfo;
+		if (!renderInfo.tiled) {
+			throw new IllegalArgumentException("Map '" + renderRequest.mapName + "' only serves tiles");
+		}
+		if (renderInfo.width!=256 || renderInfo.height!=256 || queryParams.containsKey("srs") ||
+				queryParams.containsKey("srsorigin") || queryParams.containsKey("srsdefres")) {
+			throw new IllegalArgumentException("Map '" + renderRequest.mapName + "' only serves 256 pixel tiles in the default projection");
+		}
+		if (renderInfo.pixelRatio!=1.0) {
+			throw new IllegalArgumentException("Map '" + renderRequest.mapName + "' only serves tiles at a pixelRatio of 1");
+		}
+		
+		long readStartNanos=System.nanoTime();
+		byte[] contents=source.readTile(renderInfo.tileLevel, renderInfo.tileX, renderInfo.tileY);
+		renderService.recordStage("read", renderRequest, System.nanoTime() - readStartNanos);
+		if (contents==null) {
+			respondError(HttpResponseStatus.NOT_FOUND, "No tile " + renderInfo.tileLevel + "/" +
+					renderInfo.tileX + "/" + renderInfo.tileY + " in map '" + renderRequest.mapName + "'");
+			return;
+		}
+		
+		// The tiles are in whatever format they were stored in.  Vector tiles
+		// are conventionally stored gzipped and are passed on that way.
+		String format=source.getFormat();
+		HttpResponse response=contentsResponse(format, source.getIdentityTag());
+		if ("pbf".equals(format) && isGzipped(contents)) {
+			response.addHeader(HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.GZIP);
+		}
+		response.setContent(ChannelBuffers.wrappedBuffer(contents));
+		respond(response);
+	}
+	
+	static boolean isGzipped(byte[] contents) {
+		return contents.length>=2 && (contents[0]&0xff)==0x1f && (contents[1]&0xff)==0x8b;
+	}
+	
+	/**
+	 * Tell the client we are over capacity and when to come back
+	 */
+	protected void respondOverloaded(RenderRejectedException e) {
+		HttpResponse response=new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+		response.addHeader(HttpHeaders.Names.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+		response.addHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
+		response.addHeader(HttpHeaders.Names.CACHE_CONTROL, "no-cache");
+		response.setContent(ChannelBuffers.copiedBuffer(e.getMessage(), CharsetUtil.UTF_8));
+		respond(response);
+	}
+	
+	/**
+	 * Browsers abort lots of tile requests when the user zooms or pans quickly.
+	 * Pull our request out of the render queue when that happens.
+	 * @param ticket
+	 */
+	protected void watchForDisconnect(final Object ticket) {
+		disconnectListener=new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				if (renderService.cancel(ticket)) {
+					// We will never be called back so clean up now
+					disposeRequestResources();
+				}
+			}
+		};
+		ctx.getChannel().getCloseFuture().addListener(disconnectListener);
+	}
+	
+	/**
+	 * If the map is configured for metatiles, expand the render to cover
+	 * the metatile containing the requested tile.  The "metatile" map property
+	 * gives the number of tiles along each side of a metatile.
+	 */
+	protected void setupMetatile(RenderRequest renderRequest, MapLocator locator) {
+		RenderInfo renderInfo=renderRequest.renderInfo;
+		expandToMetatile(renderRequest, metatileSize(locator, renderInfo.format, renderInfo.tileLevel));
+	}
+	
+	/**
+	 * Expand a tile render to the size x size metatile containing the tile
+	 */
+	static void expandToMetatile(RenderRequest renderRequest, int size) {
+		if (size<=1) return;
+		
+		RenderInfo renderInfo=renderRequest.renderInfo;
+		int metaX=floorDiv(renderInfo.tileX, size);
+		int metaY=floorDiv(renderInfo.tileY, size);
+		renderRequest.tileColumn=renderInfo.tileX - metaX*size;
+		renderRequest.tileRow=renderInfo.tileY - metaY*size;
+		
+		renderInfo.tileX=metaX*size;
+		renderInfo.tileY=metaY*size;
+		renderInfo.metatileColumns=size;
+		renderInfo.metatileRows=size;
+		renderInfo.bounds=renderInfo.projection.projectTile(
+				renderInfo.tileLevel,
+				metaX,
+				metaY,
+				renderInfo.width*size,
+				renderInfo.height*size);
+		renderInfo.width*=size;
+		renderInfo.height*=size;
+	}
+	
+	/**
+	 * @return number of tiles along each side of the map's metatiles at the level,
+	 * or 1 for no metatiling
+	 */
+	static int metatileSize(MapLocator locator, String format, int level) {
+		String metatileProp=locator.getProperties().get("metatile");
+		if (metatileProp==null || !TileSlicer.canSlice(format)) return 1;
+		
+		int size;
+		try {
+			size=Integer.parseInt(metatileProp.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("Illegal value for metatile property: " + metatileProp);
+		}
+		
+		// Metatiles have to line up with the edges of every level
+		if (!isPowerOfTwo(size)) {
+			throw new IllegalStateException("metatile property must be a power of two: " + metatileProp);
+		}
+		
+		// No point in a metatile larger than the level
+		if (level>=0 && level<=RenderInfo.MAX_TILE_LEVEL) {
+			size=Math.min(size, 1<<level);
+		}
+		return Math.max(size, 1);
+	}
+	
+	/**
+	 * Apply the map's fair share settings.  The "renderWeight" map property sets
+	 * the map's share of the renderers relative to other maps (default 1) and
+	 * "renderConcurrency" caps how many renders it may have running while other
+	 * maps are waiting (default no cap).
+	 */
+	protected void setupLane(RenderRequest renderRequest, MapLocator locator) {
+		Map<String,String> properties=locator.getProperties();
+		String weightProp=properties.get("renderWeight");
+		String concurrencyProp=properties.get("renderConcurrency");
+		try {
+			if (weightProp!=null) renderRequest.laneWeight=Double.parseDouble(weightProp.trim());
+			if (concurrencyProp!=null) renderRequest.laneConcurrency=Integer.parseInt(concurrencyProp.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("Illegal value for renderWeight or renderConcurrency property");
+		}
+	}
+	
+	/**
+	 * Set the request deadline from the "renderTimeout" map property (ms).
+	 * Clients can ask for a shorter timeout by sending the number of
+	 * milliseconds they are prepared to wait in an X-Render-Timeout header.
+	 */
+	protected void setupDeadline(RenderRequest renderRequest, MapLocator locator) {
+		long timeout=0;
+		String timeoutProp=locator.getProperties().get("renderTimeout");
+		if (timeoutProp!=null) {
+			try {
+				timeout=Long.parseLong(timeoutProp.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalStateException("Illegal value for renderTimeout property: " + timeoutProp);
+			}
+		}
+		
+		String timeoutHeader=request.getHeader(RENDER_TIMEOUT_HEADER);
+		if (timeoutHeader!=null) {
+			try {
+				long clientTimeout=Long.parseLong(timeoutHeader.trim());
+				if (clientTimeout>0 && (timeout<=0 || clientTimeout<timeout)) timeout=clientTimeout;
+			} catch (NumberFormatException e) {
+				// Just a hint
+			}
+		}
+		
+		if (timeout>0) renderRequest.deadline=renderRequest.time + timeout;
+	}
+	
+	static boolean isPowerOfTwo(int n) {
+		return n>0 && (n & (n-1))==0;
+	}
+	
+	static int floorDiv(int a, int b) {
+		int q=a/b;
+		if (a%b!=0 && a<0) q--;
+		return q;
 	}
 
+	/**
+	 * Digest everything other than the tile address that affects the bytes
+	 * of a rendered tile
+	 * @param srsOrigin srsorigin parameter or null
+	 * @param srsDefRes srsdefres parameter or null
+	 */
+	static String tileVariant(String resourceEtag, RenderInfo renderInfo, String srsOrigin, String srsDefRes) {
+		IdentityHasher hasher=new IdentityHasher();
+		hasher.append(resourceEtag);
+		hasher.appendSep();
+		hasher.append(renderInfo.projection.getSrs());
+		hasher.appendSep();
+		hasher.append(String.valueOf(srsOrigin));
+		hasher.appendSep();
+		hasher.append(String.valueOf(srsDefRes));
+		hasher.appendSep();
+		hasher.append(renderInfo.width + "x" + renderInfo.height + "@" + renderInfo.pixelRatio);
+		hasher.appendSep();
+		hasher.append(renderInfo.bufferPixels + ":" + renderInfo.format);
+		return hasher.getHash();
+	}
+	
 	private boolean isAnnounced(MapLocator map) {
 		String announced=map.getProperties().get("announced");
 		if (announced!=null && "false".equals(announced)) return false;
@@ -466,7 +796,7 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 	}
 
 	@Override
-	public void doRender(RenderRequest rr) throws Exception {
+	public RenderResult doRender(final RenderRequest rr) throws Exception {
 		MapDefinition m=rr.resource.createMap(MapRequestHandler.class);
 		int bufferSize=rr.renderInfo.bufferPixels;
 
@@ -485,28 +815,105 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 		m.setBufferSize((int)(bufferSize * rr.renderInfo.pixelRatio));
 		
 		logger.info("Rendering tile with bounds " + rr.renderInfo.bounds + " and aspect fix mode=" + m.getAspectFixMode());
-		Image image;
-		
-		image=new Image(m.getWidth(), 
-				m.getHeight());
 		
-		Renderer.renderAgg(m, image, rr.renderInfo.pixelRatio, 0, 0);
+		// The image may be reused and hold an old render.  Rendering fills it
+		// with the map background first, so make sure there is one.
+		if (m.getBackground()==null) {
+			m.setBackground(TRANSPARENT);
+		}
+		final Image image=imagePool.acquire(m.getWidth(), m.getHeight());
+		boolean handedOff=false;
+		try {
+			// Last chance to skip the expensive part if the client went away
+			if (rr.cancelled) {
+				rr.resource.recycleMap(MapRequestHandler.class, m);
+				return null;
+			}
+			
+			long renderStartNanos=System.nanoTime();
+			Renderer.renderAgg(m, image, rr.renderInfo.pixelRatio, 0, 0);
+			renderService.recordStage("render", rr, System.nanoTime() - renderStartNanos);
+			rr.resource.recycleMap(MapRequestHandler.class, m);
+			
+			// Encoding is a separate stage
+			handedOff=true;
+			return new RenderResult(new RenderResult.Encoder() {
+				@Override
+				public RenderResult encode() throws Exception {
+					try {
+						return encodeImage(rr, image);
+					} finally {
+						imagePool.release(image);
+					}
+				}
+			});
+		} finally {
+			if (!handedOff) imagePool.release(image);
+		}
+	}
+	
+	/**
+	 * Encode a rendered image and store the tiles in the tile cache
+	 */
+	protected RenderResult encodeImage(RenderRequest rr, Image image) throws IOException {
+		long encodeStartNanos=System.nanoTime();
+		RenderInfo renderInfo=rr.renderInfo;
+		RenderResult result;
+		if (renderInfo.metatileColumns>1 || renderInfo.metatileRows>1) {
+			byte[] metatile=image.saveToMemory("png");
+			byte[][] tiles=TileSlicer.slice(metatile, renderInfo.metatileColumns, renderInfo.metatileRows, renderInfo.format);
+			result=new RenderResult(renderInfo.metatileColumns, renderInfo.metatileRows, tiles);
+		} else if (Png8Encoder.isPng8(renderInfo.format)) {
+			// Quantize from mapnik's lossless output
+			BufferedImage decoded=ImageIO.read(new ByteArrayInputStream(image.saveToMemory("png")));
+			if (decoded==null) throw new IOException("Could not decode rendered image");
+			result=new RenderResult(Png8Encoder.encode(decoded, Png8Encoder.colorsOf(renderInfo.format)));
+		} else {
+			byte[] contents=image.saveToMemory(renderInfo.format);
+			result=new RenderResult(contents);
+		}
+		renderService.recordStage("encode", rr, System.nanoTime() - encodeStartNanos);
+		
+		// Every tile of the render goes in the cache, not just the one asked for.
+		// Seeded tiles stay out of the memory tier.
+		if (rr.tileKey!=null) {
+			for (int row=0; row<result.getRows(); row++) {
+				for (int column=0; column<result.getColumns(); column++) {
+					TileKey key=rr.tileKey.sibling(renderInfo.tileLevel, renderInfo.tileX+column, renderInfo.tileY+row);
+					try {
+						if (rr.background) tileCache.storeBackground(key, result.getContents(column, row));
+						else tileCache.store(key, result.getContents(column, row));
+					} catch (RuntimeException e) {
+						// The render is good even if it can't be cached
+						logger.error("Error storing tile " + key + " in cache", e);
+					}
+				}
+			}
+		}
 		
-		byte[] contents=image.saveToMemory(rr.renderInfo.format);
-		image.dispose();
-
+		return result;
+	}
+	
+	@Override
+	public void handleRenderComplete(RenderRequest rr, RenderResult result) {
+		byte[] contents=result.getContents(rr.tileColumn, rr.tileRow);
+		respondContents(rr, ChannelBuffers.wrappedBuffer(contents));
+	}
+	
+	protected void respondContents(RenderRequest rr, ChannelBuffer contents) {
+		HttpResponse response=contentsResponse(rr.renderInfo.format, rr.resource.getIdentityTag());
+		response.setContent(contents);
+		respond(response);
+	}
+	
+	private HttpResponse contentsResponse(String format, String etag) {
 		HttpResponse response=new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-		response.addHeader(HttpHeaders.Names.CONTENT_TYPE, "image/png");
-		String etag=rr.resource.getIdentityTag();
+		response.addHeader(HttpHeaders.Names.CONTENT_TYPE, contentTypeOf(format));
 		if (etag!=null) {
 			response.addHeader(HttpHeaders.Names.ETAG, etag);
 			response.addHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=" + cacheMaxAge);
 		}
-		
-		response.setContent(ChannelBuffers.wrappedBuffer(contents));
-		rr.resource.recycleMap(MapRequestHandler.class, m);
-		
-		respond(response);
+		return response;
 	}
 
 	@Override
@@ -516,6 +923,14 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 
 	@Override
 	public void handleCancelled(RenderRequest rr) {
+		if (rr.expired) {
+			// Keep this cheap.  We are behind already.
+			HttpResponse response=new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.GATEWAY_TIMEOUT);
+			response.addHeader(HttpHeaders.Names.CACHE_CONTROL, "no-cache");
+			response.setContent(ChannelBuffers.copiedBuffer("Render deadline passed", CharsetUtil.UTF_8));
+			respond(response);
+			return;
+		}
 		respondError(HttpResponseStatus.REQUEST_TIMEOUT, "Request cancelled");
 	}
 
@@ -524,20 +939,56 @@ public class MapRequestHandler extends ThreadedRequestHandler implements RenderC
 	 */
 	@Override
 	public void respond(HttpResponse response) {
-		super.respond(response);
+		if (disconnectListener!=null) {
+			ctx.getChannel().getCloseFuture().removeListener(disconnectListener);
+		}
 		
+		long writeStartNanos=System.nanoTime();
+		super.respond(response);
 		if (pendingRenderRequest!=null) {
-			if (pendingRenderRequest.renderInfo.projection!=null) {
-				pendingRenderRequest.renderInfo.projection.dispose();
-			}
+			renderService.recordStage("write", pendingRenderRequest, System.nanoTime() - writeStartNanos);
+		}
+		disposeRequestResources();
+	}
+	
+	protected void disposeRequestResources() {
+		if (requestProjection!=null) {
+			requestProjection.dispose();
+			requestProjection=null;
 		}
 	}
 
-	private String translateFormat(String formatMimeType) {
+	/**
+	 * @param format mapnik (or png8) format name
+	 * @return mime type of images in that format
+	 */
+	static String contentTypeOf(String format) {
+		if (format==null) return "image/png";
+		String base=format;
+		int colon=base.indexOf(':');
+		if (colon>=0) base=base.substring(0, colon);
+		base=base.toLowerCase();
+		
+		if (base.startsWith("png")) return "image/png";
+		else if ("jpg".equals(base) || base.startsWith("jpeg")) return "image/jpeg";
+		else if (base.startsWith("tif")) return "image/tiff";
+		else if ("gif".equals(base)) return "image/gif";
+		else if ("webp".equals(base)) return "image/webp";
+		else if ("pbf".equals(base)) return "application/x-protobuf";
+		return "application/octet-stream";
+	}
+
+	static String translateFormat(String formatMimeType) {
 		if (formatMimeType==null) return "png";
 		
-		if (formatMimeType.indexOf('/')<0) return formatMimeType;
+		if (formatMimeType.indexOf('/')<0) {
+			// Fail bad palette options before rendering
+			if (Png8Encoder.isPng8(formatMimeType)) Png8Encoder.colorsOf(formatMimeType);
+			return formatMimeType;
+		}
 		else if ("image/png".equalsIgnoreCase(formatMimeType)) return "png";
+		else if ("image/png8".equalsIgnoreCase(formatMimeType)) return "png8";
+		else if ("image/png; mode=8bit".equalsIgnoreCase(formatMimeType)) return "png8";
 		else if ("image/jpeg".equalsIgnoreCase(formatMimeType)) return "jpg";
 		else if ("image/tiff".equalsIgnoreCase(formatMimeType)) return "tiff";
 		else if ("image/gif".equalsIgnoreCase(formatMimeType)) return "gif";
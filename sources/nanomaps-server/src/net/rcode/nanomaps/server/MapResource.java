@@ -7,18 +7,7 @@ import mapnik.MapDefinition;
  * @author stella
  *
  */
-public interface MapResource {
-
-	/**
-	 * @return true if the resource is valid
-	 */
-	public boolean isValid();
-	
-	/**
-	 * @return null or a short string summary of the resource's state (suitable for an etag)
-	 */
-	public String getIdentityTag();
-	
+public interface MapResource extends MapSource {
 	/**
 	 * Create a new map or return a recycled one
 	 * @return map
@@ -0,0 +1,20 @@
+package net.rcode.nanomaps.server;
+
+/**
+ * What a MapLocator resolves to: either a MapResource that renders images or
+ * a TileSource whose tiles already exist.
+ * 
+ * @author stella
+ *
+ */
+public interface MapSource {
+	/**
+	 * @return true if the source is valid
+	 */
+	public boolean isValid();
+	
+	/**
+	 * @return null or a short string summary of the source's state (suitable for an etag)
+	 */
+	public String getIdentityTag();
+}
@@ -8,15 +8,16 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Set;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import mapnik.MapDefinition;
 import net.rcode.nanomaps.server.util.IOUtil;
 import net.rcode.nanomaps.server.util.IdentityHasher;
+import net.rcode.nanomaps.server.util.MapnikFileReferences;
+import net.rcode.nanomaps.server.util.ObjectPool;
 
 import org.jboss.netty.util.CharsetUtil;
 import org.slf4j.Logger;
@@ -24,6 +25,9 @@ import org.slf4j.LoggerFactory;
 
 public class MapnikMapResource extends AbstractMapLocator implements MapLocator, MapResource, MapRepositoryManaged  {
 	private static final Logger logger=LoggerFactory.getLogger(MapnikMapResource.class);
+	private static final int DEFAULT_POOL_MAX=8;
+	private static final long DEFAULT_POOL_IDLE_SECONDS=300;
+	
 	private File repositoryMapFile;
 	private File canonicalMapFile;
 	private String mapFileContents;
@@ -32,9 +36,37 @@ public class MapnikMapResource extends AbstractMapLocator implements MapLocator,
 	private MapRepository repository;
 	
 	/**
-	 * Pool of cached maps available for reuse, indexed by tag
+	 * Map parsed once from mapFileContents.  New maps are copied from it
+	 * rather than parsed again.  Never rendered or changed, so any number of
+	 * threads can copy it at once.  Copies hold the read lock of templateLock
+	 * and dispose takes the write lock, so it is never freed mid copy.
+	 */
+	private MapDefinition template;
+	private final ReadWriteLock templateLock=new ReentrantReadWriteLock();
+	
+	/**
+	 * Pools of loaded maps available for reuse, indexed by tag
 	 */
-	private Map<Object, Set<MapDefinition>> cachedMapBuckets=new HashMap<Object, Set<MapDefinition>>();
+	private ConcurrentHashMap<Object, MapPool> pools=new ConcurrentHashMap<Object, MapPool>();
+	
+	private class MapPool extends ObjectPool<MapDefinition> {
+		MapPool() {
+			super(getPoolProperty("mapPoolMin", 0),
+					getPoolProperty("mapPoolMaxIdle", DEFAULT_POOL_MAX),
+					getPoolProperty("mapPoolIdleTimeout", DEFAULT_POOL_IDLE_SECONDS)*1000);
+			setMaxTotal(getPoolProperty("mapPoolMaxTotal", 0));
+		}
+		
+		@Override
+		protected MapDefinition create() {
+			return newMap();
+		}
+		
+		@Override
+		protected void destroy(MapDefinition m) {
+			disposeMap(m);
+		}
+	}
 	
 	public MapnikMapResource(File repositoryMapFile) throws IOException {
 		this.repositoryMapFile=repositoryMapFile;
@@ -46,13 +78,22 @@ public class MapnikMapResource extends AbstractMapLocator implements MapLocator,
 		mapFileContents=IOUtil.loadXmlStandalone(canonicalMapFile).toString();
 		debugContents();
 		//logger.debug("Map file=" + mapFileContents);
-		newMap().dispose();
+		MapDefinition loaded=loadMap();
+		if ("false".equals(getProperties().get("mapPoolClone"))) {
+			disposeMap(loaded);
+		} else {
+			template=loaded;
+		}
 		
-		// Calculate the digest
+		// Calculate the digest from the map and its data only, so that it is
+		// the same on every server and after restarts
 		IdentityHasher hasher=new IdentityHasher();
 		hasher.append("mapnik:");
-		hasher.append(canonicalMapFile.toString());
 		hasher.append(mapFileContents);
+		hasher.appendSep();
+		for (File referenced: MapnikFileReferences.find(mapFileContents, canonicalMapFile.getParentFile())) {
+			hasher.appendFileState(referenced);
+		}
 		identityTag=hasher.getHash();
 		
 		this.repository=repository;
@@ -75,7 +116,30 @@ public class MapnikMapResource extends AbstractMapLocator implements MapLocator,
 		return identityTag;
 	}
 	
+	/**
+	 * Copy the template if there is one, which is much cheaper than parsing
+	 * the map again.  Copies share the template's datasources.
+	 */
 	private MapDefinition newMap() {
+		MapDefinition copy=copyTemplate();
+		if (copy!=null) return copy;
+		return loadMap();
+	}
+	
+	/**
+	 * @return copy of the template or null if there is none
+	 */
+	MapDefinition copyTemplate() {
+		templateLock.readLock().lock();
+		try {
+			if (template==null) return null;
+			return new MapDefinition(template);
+		} finally {
+			templateLock.readLock().unlock();
+		}
+	}
+	
+	MapDefinition loadMap() {
 		MapDefinition loadMap=new MapDefinition();
 		logger.info("Loading map from " + canonicalMapFile);
 		loadMap.loadMapString(mapFileContents, false, canonicalMapFile.toString());
@@ -110,31 +174,95 @@ public class MapnikMapResource extends AbstractMapLocator implements MapLocator,
 	 * @return map
 	 */
 	public MapDefinition createMap(Object recycleTag) {
-		if (recycleTag!=null) {
-			synchronized (cachedMapBuckets) {
-				Set<MapDefinition> bucket=cachedMapBuckets.get(recycleTag);
-				if (bucket!=null && !bucket.isEmpty()) {
-					Iterator<MapDefinition> iter=bucket.iterator();
-					MapDefinition ret=iter.next();
-					iter.remove();
-					return ret;
-				}
-			}
+		if (recycleTag==null) return newMap();
+		return getPool(recycleTag).borrow();
+	}
+	
+	public void recycleMap(Object recycleTag, MapDefinition m) {
+		getPool(recycleTag).release(m);
+	}
+	
+	/**
+	 * Load maps for the given tag ahead of the first request.  Unless the
+	 * mapPoolMin property says otherwise, count maps are loaded and kept.
+	 */
+	public void prewarm(Object recycleTag, int count) {
+		MapPool pool=getPool(recycleTag);
+		int minIdle=getPoolProperty("mapPoolMin", count);
+		pool.setLimits(minIdle,
+				getPoolProperty("mapPoolMaxIdle", Math.max(minIdle, DEFAULT_POOL_MAX)),
+				getPoolProperty("mapPoolIdleTimeout", DEFAULT_POOL_IDLE_SECONDS)*1000);
+		pool.prewarm();
+	}
+	
+	/**
+	 * Dispose of all pooled maps and the template.  Maps that are checked out
+	 * are disposed when they are recycled.
+	 */
+	@Override
+	public void dispose() {
+		for (MapPool pool: pools.values()) {
+			pool.close();
 		}
 		
-		// No recycled.  Create anew
-		return newMap();
+		MapDefinition disposed;
+		templateLock.writeLock().lock();
+		try {
+			disposed=template;
+			template=null;
+		} finally {
+			templateLock.writeLock().unlock();
+		}
+		if (disposed!=null) disposeMap(disposed);
 	}
 	
-	public void recycleMap(Object recycleTag, MapDefinition m) {
-		synchronized (cachedMapBuckets) {
-			Set<MapDefinition> bucket=cachedMapBuckets.get(recycleTag);
-			if (bucket==null) {
-				bucket=new HashSet<MapDefinition>();
-				cachedMapBuckets.put(recycleTag, bucket);
-			}
-			bucket.add(m);
+	/**
+	 * Free the native resources of a map
+	 */
+	void disposeMap(MapDefinition m) {
+		m.dispose();
+	}
+	
+	private MapPool getPool(Object recycleTag) {
+		MapPool pool=pools.get(recycleTag);
+		if (pool==null) {
+			MapPool newPool=new MapPool();
+			pool=pools.putIfAbsent(recycleTag, newPool);
+			if (pool==null) pool=newPool;
+		}
+		return pool;
+	}
+	
+	private int getPoolProperty(String name, int defaultValue) {
+		return (int) getPoolProperty(name, (long) defaultValue);
+	}
+	
+	private long getPoolProperty(String name, long defaultValue) {
+		String value=getProperties().get(name);
+		if (value==null) return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalStateException("Illegal value for " + name + " property");
+		}
+	}
+	
+	/**
+	 * @return the pools of loaded maps (one per recycle tag)
+	 */
+	public Collection<? extends ObjectPool<MapDefinition>> getPools() {
+		return pools.values();
+	}
+
+	/**
+	 * @return number of maps waiting in the pool for reuse
+	 */
+	public int getPooledMapCount() {
+		int count=0;
+		for (MapPool pool: pools.values()) {
+			count+=pool.getIdleCount();
 		}
+		return count;
 	}
 
 	@Override
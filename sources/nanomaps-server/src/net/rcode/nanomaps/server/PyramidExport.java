@@ -0,0 +1,513 @@
+package net.rcode.nanomaps.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mapnik.Box2d;
+import net.rcode.nanomaps.server.cache.MBTilesFile;
+import net.rcode.nanomaps.server.projection.RenderProjection;
+import net.rcode.nanomaps.server.util.HilbertCurve;
+import net.rcode.nanomaps.server.util.TileSlicer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders a tile pyramid for one map of a repository straight to an MBTiles
+ * file or a z/x/y directory tree, without going through the server.  Run it
+ * from the instance directory (see the export target of the top level build).
+ * <p>
+ * Renders go through a RenderService with a render and an encode thread per
+ * cpu, in metatiles that are walked in Hilbert order level by level.  Tiles
+ * outside the bounding box are not written.  Completed metatiles are recorded
+ * in a checkpoint file every -interval seconds once their tiles have been
+ * synced to disk, and running the same export again skips them, so an export
+ * that crashed or was killed can simply be restarted.  With -dir only the
+ * tile files are synced, not the directories that name them, so after the
+ * machine itself goes down the last tiles before the crash may have to be
+ * exported again (delete the checkpoint).  Options:
+ * <pre>
+ *   -repository DIR    map repository (repository)
+ *   -map NAME          map to export
+ *   -bbox MINX,MINY,MAXX,MAXY  area to export, in map coordinates
+ *   -global            the bbox is longitude/latitude instead
+ *   -levels MIN-MAX    zoom levels
+ *   -pixelRatio R      pixel ratio of the tiles (1)
+ *   -format FORMAT     tile format, as for tile requests (png)
+ *   -metatile N        tiles along each side of a metatile, a power of two (8)
+ *   -threads N         render threads (one per cpu)
+ *   -mbtiles FILE      write an MBTiles file
+ *   -dir DIR           write DIR/z/x/y.ext files
+ *   -checkpoint FILE   progress file (the output with .checkpoint appended)
+ *   -interval SECS     seconds between progress reports and checkpoints (10)
+ * </pre>
+ *
+ * @author stella
+ *
+ */
+public class PyramidExport implements RenderCallback {
+	private static final Logger logger=LoggerFactory.getLogger(PyramidExport.class);
+	private static final int TILE_SIZE=256;
+	private static final long IMAGE_POOL_BYTES=64L*1024*1024;
+
+	private File repositoryDir=new File("repository");
+	private String mapName;
+	private Box2d bounds;
+	private boolean global;
+	private int minLevel=-1;
+	private int maxLevel=-1;
+	private double pixelRatio=1.0;
+	private String format="png";
+	private int metatile=8;
+	private int threads=Runtime.getRuntime().availableProcessors();
+	private File mbtilesFile;
+	private File outputDir;
+	private File checkpointFile;
+	private int intervalSeconds=10;
+
+	private MapRequestHandler renderer;
+	private TileSink sink;
+	private ExportCheckpoint checkpoint;
+	private Semaphore window;
+
+	/**
+	 * Tile range of each level, to clip metatiles to
+	 */
+	private Map<Integer, int[]> ranges=new HashMap<Integer, int[]>();
+
+	private long totalMetatiles;
+	private long resumedMetatiles;
+	private AtomicLong completedMetatiles=new AtomicLong();
+	private AtomicLong failedMetatiles=new AtomicLong();
+	private AtomicLong tilesWritten=new AtomicLong();
+	private volatile int currentLevel;
+
+	/**
+	 * Where exported tiles go
+	 */
+	static abstract class TileSink {
+		public abstract void write(int level, int x, int y, byte[] contents) throws IOException;
+
+		/**
+		 * Make everything written so far durable.  Called before the checkpoint
+		 * records it.
+		 */
+		public abstract void flush() throws IOException;
+
+		public abstract void close() throws IOException;
+	}
+
+	static class MBTilesSink extends TileSink {
+		private MBTilesFile file;
+
+		MBTilesSink(MBTilesFile file) {
+			this.file=file;
+		}
+
+		@Override
+		public void write(int level, int x, int y, byte[] contents) {
+			file.writeTile(level, x, y, contents);
+		}
+
+		@Override
+		public void flush() {
+			file.flushPendingWrites();
+		}
+
+		@Override
+		public void close() {
+			file.close();
+		}
+	}
+
+	static class DirectorySink extends TileSink {
+		private File dir;
+		private String extension;
+
+		/**
+		 * Tiles written since the last flush.  Synchronize on this.
+		 */
+		private List<File> unsynced=new ArrayList<File>();
+
+		DirectorySink(File dir, String extension) {
+			this.dir=dir;
+			this.extension=extension;
+		}
+
+		@Override
+		public void write(int level, int x, int y, byte[] contents) throws IOException {
+			File columnDir=new File(dir, level + File.separator + x);
+			if (!columnDir.isDirectory() && !columnDir.mkdirs() && !columnDir.isDirectory()) {
+				throw new IOException("Could not create directory " + columnDir);
+			}
+
+			// Replace whole files so that a crash never leaves a partial tile
+			File tileFile=new File(columnDir, y + "." + extension);
+			File tempFile=new File(columnDir, y + "." + extension + ".tmp");
+			FileOutputStream out=new FileOutputStream(tempFile);
+			try {
+				out.write(contents);
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(tileFile)) {
+				tileFile.delete();
+				if (!tempFile.renameTo(tileFile)) {
+					throw new IOException("Could not rename " + tempFile + " to " + tileFile);
+				}
+			}
+			synchronized (this) {
+				unsynced.add(tileFile);
+			}
+		}
+
+		/**
+		 * Sync the tiles written since the last flush.  Syncing them in a batch
+		 * here rather than one by one as they are written gives the OS the
+		 * chance to have written most of them back already.
+		 */
+		@Override
+		public void flush() throws IOException {
+			List<File> toSync;
+			synchronized (this) {
+				toSync=unsynced;
+				unsynced=new ArrayList<File>();
+			}
+			for (File tileFile: toSync) {
+				RandomAccessFile raf=new RandomAccessFile(tileFile, "rw");
+				try {
+					raf.getFD().sync();
+				} finally {
+					raf.close();
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private void parseArgs(String[] args) {
+		for (int i=0; i<args.length; i++) {
+			String arg=args[i];
+			if ("-global".equals(arg)) {
+				global=true;
+				continue;
+			}
+
+			if (i+1>=args.length) throw new IllegalArgumentException("Missing value for " + arg);
+			String value=args[++i];
+
+			if ("-repository".equals(arg)) repositoryDir=new File(value);
+			else if ("-map".equals(arg)) mapName=value;
+			else if ("-bbox".equals(arg)) {
+				String[] comps=value.split(",");
+				if (comps.length!=4) throw new IllegalArgumentException("Bbox must be minx,miny,maxx,maxy");
+				bounds=new Box2d(Double.parseDouble(comps[0]), Double.parseDouble(comps[1]),
+						Double.parseDouble(comps[2]), Double.parseDouble(comps[3]));
+				if (bounds.minx>bounds.maxx || bounds.miny>bounds.maxy) {
+					throw new IllegalArgumentException("Bbox must be minx,miny,maxx,maxy");
+				}
+			}
+			else if ("-levels".equals(arg)) {
+				int dash=value.indexOf('-');
+				if (dash<0) {
+					minLevel=maxLevel=Integer.parseInt(value);
+				} else {
+					minLevel=Integer.parseInt(value.substring(0, dash));
+					maxLevel=Integer.parseInt(value.substring(dash+1));
+				}
+			}
+			else if ("-pixelRatio".equals(arg)) pixelRatio=Double.parseDouble(value);
+			else if ("-format".equals(arg)) format=MapRequestHandler.translateFormat(value);
+			else if ("-metatile".equals(arg)) metatile=Integer.parseInt(value);
+			else if ("-threads".equals(arg)) threads=Integer.parseInt(value);
+			else if ("-mbtiles".equals(arg)) mbtilesFile=new File(value);
+			else if ("-dir".equals(arg)) outputDir=new File(value);
+			else if ("-checkpoint".equals(arg)) checkpointFile=new File(value);
+			else if ("-interval".equals(arg)) intervalSeconds=Integer.parseInt(value);
+			else throw new IllegalArgumentException("Unknown option " + arg);
+		}
+
+		if (mapName==null) throw new IllegalArgumentException("Option -map is required");
+		if (bounds==null) throw new IllegalArgumentException("Option -bbox is required");
+		if (minLevel<0 || maxLevel<minLevel || maxLevel>RenderInfo.MAX_TILE_LEVEL) throw new IllegalArgumentException("Bad level range");
+		if ((mbtilesFile==null) == (outputDir==null)) throw new IllegalArgumentException("Give one of -mbtiles or -dir");
+		if (!MapRequestHandler.isPowerOfTwo(metatile)) throw new IllegalArgumentException("Metatile must be a power of two");
+		if (threads<1) throw new IllegalArgumentException("Threads must be at least 1");
+		if (intervalSeconds<1) throw new IllegalArgumentException("Interval must be at least 1");
+		if (checkpointFile==null) {
+			File output=mbtilesFile!=null ? mbtilesFile : outputDir;
+			checkpointFile=new File(output.getPath() + ".checkpoint");
+		}
+	}
+
+	/**
+	 * @return parameters that affect which tiles get written, for the checkpoint
+	 */
+	private String describe() {
+		return "map=" + mapName +
+			" bbox=" + bounds.minx + "," + bounds.miny + "," + bounds.maxx + "," + bounds.maxy +
+			(global ? " global" : "") +
+			" levels=" + minLevel + "-" + maxLevel +
+			" pixelRatio=" + pixelRatio +
+			" format=" + format +
+			" metatile=" + metatile;
+	}
+
+	/**
+	 * Tiles along each side of the metatiles rendered at a level
+	 */
+	private int metatileSize(int level) {
+		if (!TileSlicer.canSlice(format)) return 1;
+		return level<=RenderInfo.MAX_TILE_LEVEL ? Math.min(metatile, 1<<level) : metatile;
+	}
+
+	private static String extensionOf(String format) {
+		String contentType=MapRequestHandler.contentTypeOf(format);
+		if ("image/png".equals(contentType)) return "png";
+		if ("image/jpeg".equals(contentType)) return "jpg";
+		if ("image/tiff".equals(contentType)) return "tif";
+		if ("image/gif".equals(contentType)) return "gif";
+		return format;
+	}
+
+	public void run() throws Exception {
+		FileSystemMapRepository repository=new FileSystemMapRepository(repositoryDir.getAbsoluteFile());
+		repository.setPrewarm(MapRequestHandler.class, threads);
+		repository.scan();
+		MapLocator locator=repository.lookupMap(mapName);
+		if (locator==null || !locator.isValid()) {
+			throw new IllegalArgumentException("Map name " + mapName + " is not valid");
+		}
+
+		RenderProjection projection=RenderProjection.createDefaultProjection();
+		Box2d projectedBounds=new Box2d(bounds.minx, bounds.miny, bounds.maxx, bounds.maxy);
+		if (global) {
+			projection.clampToGrid(projectedBounds);
+			projection.forward(projectedBounds);
+		}
+
+		RenderService renderService=new RenderService(threads, threads);
+		renderer=new MapRequestHandler(repository, renderService);
+		renderer.setImagePool(new ImagePool(IMAGE_POOL_BYTES));
+		window=new Semaphore(threads*2);
+
+		checkpoint=new ExportCheckpoint(checkpointFile, describe());
+		checkpoint.open();
+		openSink(projection, projectedBounds);
+
+		for (int level=minLevel; level<=maxLevel; level++) {
+			int[] range=projection.tileRange(projectedBounds, level, TILE_SIZE, TILE_SIZE);
+			ranges.put(level, range);
+			int size=metatileSize(level);
+			totalMetatiles+=new HilbertCurve.RangeWalker(
+					MapRequestHandler.floorDiv(range[0], size), MapRequestHandler.floorDiv(range[1], size),
+					MapRequestHandler.floorDiv(range[2], size), MapRequestHandler.floorDiv(range[3], size)).size();
+		}
+		System.out.println(String.format("Exporting %s levels %d-%d to %s: %d metatiles, %d already done, %d threads",
+				mapName, minLevel, maxLevel, mbtilesFile!=null ? mbtilesFile : outputDir,
+				totalMetatiles, checkpoint.getCompletedCount(), threads));
+
+		final long startNanos=System.nanoTime();
+		Thread reporter=new Thread("export-reporter") {
+			public void run() {
+				long lastNanos=startNanos, lastTiles=0;
+				try {
+					for (;;) {
+						Thread.sleep(intervalSeconds*1000L);
+						commitCheckpoint();
+						long now=System.nanoTime(), tiles=tilesWritten.get();
+						printProgress(tiles - lastTiles, now - lastNanos, now - startNanos);
+						lastNanos=now;
+						lastTiles=tiles;
+					}
+				} catch (InterruptedException e) {
+					// Done
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+
+		for (int level=minLevel; level<=maxLevel; level++) {
+			currentLevel=level;
+			int[] range=ranges.get(level);
+			int size=metatileSize(level);
+			HilbertCurve.RangeWalker walker=new HilbertCurve.RangeWalker(
+					MapRequestHandler.floorDiv(range[0], size), MapRequestHandler.floorDiv(range[1], size),
+					MapRequestHandler.floorDiv(range[2], size), MapRequestHandler.floorDiv(range[3], size));
+			while (walker.next()) {
+				int x=walker.getX()*size, y=walker.getY()*size;
+				if (checkpoint.isComplete(level, x, y)) {
+					resumedMetatiles++;
+					continue;
+				}
+
+				window.acquire();
+				submitMetatile(renderService, locator, projection, level, x, y, size);
+			}
+		}
+
+		// Wait for the last renders
+		window.acquire(threads*2);
+		reporter.interrupt();
+		reporter.join();
+
+		commitCheckpoint();
+		sink.close();
+		checkpoint.close();
+		printProgress(0, 0, System.nanoTime() - startNanos);
+
+		if (failedMetatiles.get()>0) {
+			System.out.println(failedMetatiles.get() + " metatiles failed.  Run the export again to retry them.");
+		} else {
+			System.out.println("Export complete");
+		}
+	}
+
+	private void openSink(RenderProjection projection, Box2d projectedBounds) throws Exception {
+		if (outputDir!=null) {
+			sink=new DirectorySink(outputDir, extensionOf(format));
+			return;
+		}
+
+		MBTilesFile file=new MBTilesFile(mbtilesFile.getAbsoluteFile(), true);
+		file.setBlockWhenFull(true);
+		file.setDurable(true);
+		file.open();
+
+		Box2d lonLat=new Box2d(projectedBounds.minx, projectedBounds.miny, projectedBounds.maxx, projectedBounds.maxy);
+		projection.inverse(lonLat);
+		Map<String,String> metadata=new HashMap<String, String>();
+		metadata.put("name", mapName);
+		metadata.put("type", "baselayer");
+		metadata.put("version", "1");
+		metadata.put("format", extensionOf(format));
+		metadata.put("bounds", lonLat.minx + "," + lonLat.miny + "," + lonLat.maxx + "," + lonLat.maxy);
+		metadata.put("minzoom", String.valueOf(minLevel));
+		metadata.put("maxzoom", String.valueOf(maxLevel));
+		file.writeMetadata(metadata);
+		sink=new MBTilesSink(file);
+	}
+
+	private void submitMetatile(RenderService renderService, MapLocator locator, RenderProjection projection,
+			int level, int x, int y, int size) throws Exception {
+		RenderInfo renderInfo=new RenderInfo();
+		renderInfo.projection=projection;
+		renderInfo.pixelRatio=pixelRatio;
+		renderInfo.width=TILE_SIZE;
+		renderInfo.height=TILE_SIZE;
+		renderInfo.format=format;
+		renderInfo.tiled=true;
+		renderInfo.tileLevel=level;
+		renderInfo.tileX=x;
+		renderInfo.tileY=y;
+		renderInfo.bounds=projection.projectTile(level, x, y, TILE_SIZE, TILE_SIZE);
+
+		RenderRequest renderRequest=new RenderRequest();
+		renderRequest.mapName=mapName;
+		renderRequest.renderInfo=renderInfo;
+		MapRequestHandler.expandToMetatile(renderRequest, size);
+
+		MapSource source=locator.resolve(renderRequest);
+		if (source==null || !source.isValid()) {
+			throw new IllegalStateException("Map '" + mapName + "' is not valid");
+		}
+		if (!(source instanceof MapResource)) {
+			throw new IllegalStateException("Map '" + mapName + "' is pre-rendered and cannot be exported");
+		}
+		renderRequest.resource=(MapResource) source;
+		renderService.submit(renderRequest, this);
+	}
+
+	private void commitCheckpoint() {
+		try {
+			List<String> done=checkpoint.takePending();
+			sink.flush();
+			checkpoint.commit(done);
+		} catch (IOException e) {
+			logger.error("Error writing checkpoint", e);
+		}
+	}
+
+	private void printProgress(long intervalTiles, long intervalNanos, long elapsedNanos) {
+		long done=completedMetatiles.get() + resumedMetatiles;
+		double elapsedSeconds=elapsedNanos / 1e9;
+		double overallRate=elapsedSeconds>0 ? tilesWritten.get() / elapsedSeconds : 0;
+		double metatileRate=elapsedSeconds>0 ? completedMetatiles.get() / elapsedSeconds : 0;
+		String eta=metatileRate>0 ? String.format("%.0fs", (totalMetatiles - done) / metatileRate) : "?";
+		System.out.println(String.format("level %d: %d/%d metatiles (%.1f%%), %d tiles, %.1f tiles/s (%.1f overall), %d failed, eta %s",
+				currentLevel, done, totalMetatiles, totalMetatiles>0 ? done*100.0/totalMetatiles : 100.0,
+				tilesWritten.get(), intervalNanos>0 ? intervalTiles / (intervalNanos / 1e9) : overallRate,
+				overallRate, failedMetatiles.get(), eta));
+	}
+
+	@Override
+	public RenderResult doRender(RenderRequest rr) throws Exception {
+		return renderer.doRender(rr);
+	}
+
+	@Override
+	public void handleRenderComplete(RenderRequest rr, RenderResult result) {
+		RenderInfo renderInfo=rr.renderInfo;
+		int[] range=ranges.get(renderInfo.tileLevel);
+		try {
+			int written=0;
+			for (int row=0; row<result.getRows(); row++) {
+				for (int column=0; column<result.getColumns(); column++) {
+					int x=renderInfo.tileX + column, y=renderInfo.tileY + row;
+					if (x<range[0] || x>range[2] || y<range[1] || y>range[3]) continue;
+					sink.write(renderInfo.tileLevel, x, y, result.getContents(column, row));
+					written++;
+				}
+			}
+			tilesWritten.addAndGet(written);
+			checkpoint.markComplete(renderInfo.tileLevel, renderInfo.tileX, renderInfo.tileY);
+			completedMetatiles.incrementAndGet();
+		} catch (IOException e) {
+			logger.error("Error writing tiles", e);
+			failedMetatiles.incrementAndGet();
+		} finally {
+			window.release();
+		}
+	}
+
+	@Override
+	public void handleCancelled(RenderRequest rr) {
+		failedMetatiles.incrementAndGet();
+		window.release();
+	}
+
+	@Override
+	public void handleRenderError(RenderRequest rr, Throwable t) {
+		logger.error("Error rendering metatile " + rr.renderInfo.tileLevel + "/" + rr.renderInfo.tileX + "/" +
+				rr.renderInfo.tileY, t);
+		failedMetatiles.incrementAndGet();
+		window.release();
+	}
+
+	public static void main(String[] args) throws Exception {
+		PyramidExport export=new PyramidExport();
+		try {
+			export.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("See the PyramidExport class comment for options");
+			System.exit(2);
+		}
+
+		ProcessSetup.initEnvironment();
+		export.run();
+		System.exit(export.failedMetatiles.get()>0 ? 1 : 0);
+	}
+}
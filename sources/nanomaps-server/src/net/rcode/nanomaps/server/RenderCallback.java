@@ -1,12 +1,14 @@
 package net.rcode.nanomaps.server;
 
 /**
- * Callback interface for render work
+ * Callback interface for render work.  doRender is only invoked for one of a set of
+ * coalesced requests.  Its result is handed to handleRenderComplete for each of them.
  * @author stella
  *
  */
 public interface RenderCallback {
-	public void doRender(RenderRequest rr) throws Exception;
+	public RenderResult doRender(RenderRequest rr) throws Exception;
+	public void handleRenderComplete(RenderRequest rr, RenderResult result);
 	public void handleCancelled(RenderRequest rr);
 	public void handleRenderError(RenderRequest rr, Throwable t);
 }
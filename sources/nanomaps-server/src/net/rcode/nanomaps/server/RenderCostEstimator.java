@@ -0,0 +1,150 @@
+package net.rcode.nanomaps.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.rcode.core.util.JsonBuilder;
+
+/**
+ * Learns how long renders take so that the RenderService can order its queue
+ * by expected cost.  Observed render times are kept as an exponentially
+ * weighted moving average per map and zoom level for tiles, and per map and
+ * (log2 bucketed) bbox area for WMS requests.
+ *
+ * @author stella
+ *
+ */
+public class RenderCostEstimator {
+	/**
+	 * Estimate used before anything is known about a map (ms)
+	 */
+	private static final double DEFAULT_COST=100.0;
+
+	/**
+	 * Weight of each new observation in the moving average
+	 */
+	private static final double ALPHA=0.2;
+
+	private ConcurrentHashMap<String, Entry> entries=new ConcurrentHashMap<String, Entry>();
+
+	private static class Entry {
+		final String mapName;
+		final String requestClass;
+		final int bucket;
+		double estimate;
+		long samples;
+
+		Entry(String mapName, String requestClass, int bucket) {
+			this.mapName=mapName;
+			this.requestClass=requestClass;
+			this.bucket=bucket;
+		}
+
+		synchronized void record(double ms) {
+			if (samples==0) estimate=ms;
+			else estimate+=ALPHA*(ms-estimate);
+			samples++;
+		}
+
+		synchronized double getEstimate() {
+			return estimate;
+		}
+
+		synchronized long getSamples() {
+			return samples;
+		}
+	}
+
+	/**
+	 * @return estimated render time in ms
+	 */
+	public double estimate(RenderRequest request) {
+		Entry entry=entries.get(keyFor(request));
+		if (entry!=null) return entry.getEstimate();
+
+		// Fall back to the most expensive thing we know about for the map
+		// so that unknown work doesn't jump the queue
+		double fallback=0;
+		String mapName=request.mapName;
+		for (Entry other: entries.values()) {
+			if (other.mapName.equals(mapName)) {
+				fallback=Math.max(fallback, other.getEstimate());
+			}
+		}
+		return fallback>0 ? fallback : DEFAULT_COST;
+	}
+
+	/**
+	 * Record an observed render time
+	 * @param request
+	 * @param ms
+	 */
+	public void record(RenderRequest request, double ms) {
+		String key=keyFor(request);
+		Entry entry=entries.get(key);
+		if (entry==null) {
+			entry=new Entry(String.valueOf(request.mapName), requestClassOf(request), bucketOf(request));
+			Entry existing=entries.putIfAbsent(key, entry);
+			if (existing!=null) entry=existing;
+		}
+		entry.record(ms);
+	}
+
+	/**
+	 * Write the cost table as JSON
+	 * @param json
+	 */
+	public void writeJson(JsonBuilder json) {
+		List<Entry> sorted=new ArrayList<Entry>(entries.values());
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				int ret=a.mapName.compareTo(b.mapName);
+				if (ret==0) ret=a.requestClass.compareTo(b.requestClass);
+				if (ret==0) ret=a.bucket-b.bucket;
+				return ret;
+			}
+		});
+
+		json.startObject();
+		json.key("costs", false);
+		json.startArray();
+		for (Entry entry: sorted) {
+			json.startObject();
+			json.key("map", false);
+			json.value(entry.mapName);
+			json.key("class", false);
+			json.value(entry.requestClass);
+			json.key("tile".equals(entry.requestClass) ? "level" : "log2Area", false);
+			json.value(entry.bucket);
+			json.key("estimateMs", false);
+			json.value(entry.getEstimate());
+			json.key("samples", false);
+			json.value(entry.getSamples());
+			json.endObject();
+		}
+		json.endArray();
+		json.endObject();
+	}
+
+	private static String requestClassOf(RenderRequest request) {
+		return request.renderInfo.tiled ? "tile" : "wms";
+	}
+
+	private static int bucketOf(RenderRequest request) {
+		RenderInfo renderInfo=request.renderInfo;
+		if (renderInfo.tiled) return renderInfo.tileLevel;
+
+		double area=(renderInfo.bounds.maxx-renderInfo.bounds.minx) *
+			(renderInfo.bounds.maxy-renderInfo.bounds.miny);
+		if (area<=1) return 0;
+		return (int) Math.round(Math.log(area) / Math.log(2));
+	}
+
+	private static String keyFor(RenderRequest request) {
+		return request.mapName + "|" + requestClassOf(request) + "|" + bucketOf(request);
+	}
+}
@@ -8,6 +8,12 @@ import mapnik.Box2d;
 import net.rcode.nanomaps.server.projection.RenderProjection;
 
 class RenderInfo {
+	/**
+	 * Deepest tile level served.  Tile coordinates at deeper levels no
+	 * longer fit in an int.
+	 */
+	public static final int MAX_TILE_LEVEL=29;
+	
 	// Projection
 	public RenderProjection projection;
 	public boolean coordinatesAreGlobal;
@@ -23,6 +29,15 @@ class RenderInfo {
 	public int height;
 	public String format;
 	
+	// Tile address (tile requests only).  For a metatile this is the
+	// top left tile.
+	public boolean tiled;
+	public int tileLevel;
+	public int tileX;
+	public int tileY;
+	public int metatileColumns=1;
+	public int metatileRows=1;
+	
 	public double getResolutionX() {
 		return (bounds.maxx-bounds.minx) / width;
 	}
@@ -0,0 +1,26 @@
+package net.rcode.nanomaps.server;
+
+/**
+ * Thrown from RenderService.submit when the server is over capacity and
+ * the request was not admitted
+ * @author stella
+ *
+ */
+public class RenderRejectedException extends RuntimeException {
+	private static final long serialVersionUID=1L;
+	
+	private int retryAfterSeconds;
+	
+	public RenderRejectedException(String message, int retryAfterSeconds) {
+		super(message);
+		this.retryAfterSeconds=retryAfterSeconds;
+	}
+	
+	/**
+	 * @return seconds after which the queue is expected to have drained enough
+	 * to accept the request
+	 */
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -1,5 +1,6 @@
 package net.rcode.nanomaps.server;
 
+import net.rcode.nanomaps.server.cache.TileKey;
 
 /**
  * Value object representing a request for a tile.  This class presently munges
@@ -9,23 +10,86 @@ package net.rcode.nanomaps.server;
  */
 public class RenderRequest implements Comparable<RenderRequest> {
 	/**
-	 * Tile requests are ordered in inverse order by cost
+	 * Estimated render time in ms, set by the RenderService on submit
 	 */
 	public double cost=1.0;
 	public final long time=System.currentTimeMillis();
 	
+	/**
+	 * System.nanoTime when the request was queued, for queue wait metrics
+	 */
+	public long queuedNanos;
+	
+	/**
+	 * Queue order.  Requests with a deadline are served earliest deadline first.
+	 * Requests without one are given the submit time plus the render service's
+	 * default timeout plus their estimated cost, so cheap requests go ahead of
+	 * expensive ones but expensive requests are not starved: their priority is
+	 * fixed while newer requests keep getting later ones.  Ties are broken in
+	 * submission order.
+	 */
+	public double priority;
+	public long sequence;
+	
 	// Flow control
 	public boolean error=false;
 	public volatile boolean cancelled=false;
 	
+	/**
+	 * Time (ms since epoch) after which the client is no longer expected to be
+	 * waiting, or 0 for none
+	 */
+	public long deadline;
+	
+	/**
+	 * Set when the request was dropped because its deadline passed before
+	 * it could be rendered
+	 */
+	public volatile boolean expired=false;
+	
+	/**
+	 * Background work (eg. cache seeding).  Only rendered when no interactive
+	 * work is waiting and not subject to the admission limits.  Cleared if an
+	 * interactive request attaches to it while it is queued.
+	 */
+	public boolean background;
+	
 	// Render Info
+	public String mapName;
+	
+	/**
+	 * Fair share settings of the map, from its renderWeight and renderConcurrency
+	 * properties.  A concurrency of zero means no cap.
+	 */
+	public double laneWeight=1.0;
+	public int laneConcurrency;
+	
 	public MapResource resource;
 	public RenderInfo renderInfo;
 	
+	/**
+	 * If the result should be stored in the tile cache, this is the key to store it under
+	 */
+	public TileKey tileKey;
+	
+	/**
+	 * Canonical key assigned by the RenderService.  Requests with the same non-null
+	 * key are rendered once while in flight.
+	 */
+	public String coalesceKey;
+	
+	/**
+	 * Position of the requested tile within a metatile render
+	 */
+	public int tileColumn;
+	public int tileRow;
+	
 	@Override
 	public int compareTo(RenderRequest o) {
-		double otherCost=o.cost;
-		int ret=Double.compare(cost, otherCost);
+		int ret=Double.compare(priority, o.priority);
+		if (ret==0) {
+			ret=sequence<o.sequence ? -1 : (sequence==o.sequence ? 0 : 1);
+		}
 		return ret;
 	}
 	
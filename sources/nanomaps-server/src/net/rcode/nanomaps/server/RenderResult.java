@@ -0,0 +1,77 @@
+package net.rcode.nanomaps.server;
+
+/**
+ * The encoded output of a render.  A plain render produces a single image.
+ * A metatile render produces a grid of tiles, addressed by column and row
+ * from the top left.
+ * <p>
+ * A render may instead return a result that still has to be encoded, so that
+ * RenderService can do the encoding on a separate thread pool and free up
+ * the render thread.
+ *
+ * @author stella
+ *
+ */
+public class RenderResult {
+	/**
+	 * Second stage of a render: turns the rendered image into the result
+	 */
+	public interface Encoder {
+		public RenderResult encode() throws Exception;
+	}
+
+	private final int columns;
+	private final int rows;
+	private final byte[][] contents;
+	private final Encoder encoder;
+
+	public RenderResult(byte[] contents) {
+		this(1, 1, new byte[][] { contents });
+	}
+
+	public RenderResult(int columns, int rows, byte[][] contents) {
+		if (contents.length!=columns*rows) {
+			throw new IllegalArgumentException("Expected " + columns*rows + " tiles");
+		}
+		this.columns=columns;
+		this.rows=rows;
+		this.contents=contents;
+		this.encoder=null;
+	}
+
+	/**
+	 * A result that still has to be encoded.  The encoder must be run exactly
+	 * once, as it may hold native resources.
+	 */
+	public RenderResult(Encoder encoder) {
+		this.columns=0;
+		this.rows=0;
+		this.contents=null;
+		this.encoder=encoder;
+	}
+
+	public boolean isEncoded() {
+		return encoder==null;
+	}
+
+	/**
+	 * Run the encode stage, if there is one
+	 * @return the encoded result
+	 */
+	public RenderResult encode() throws Exception {
+		if (encoder==null) return this;
+		return encoder.encode();
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public byte[] getContents(int column, int row) {
+		return contents[row*columns + column];
+	}
+}
@@ -1,13 +1,21 @@
 package net.rcode.nanomaps.server;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.rcode.core.io.NamedThreadFactory;
+import net.rcode.nanomaps.server.metrics.MetricsRegistry;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,29 +23,163 @@ import org.slf4j.LoggerFactory;
 /**
  * Manages the scheduling of rendering work.  Work is described by a RenderRequest
  * and carried out by a caller provided callback.
+ * <p>
+ * Identical requests are rendered once while in flight: a request whose canonical
+ * key (resource identity, srs, bounds, size, pixel ratio, format) matches one
+ * that is queued or rendering attaches to it and receives the same result.
+ * <p>
+ * Each map is scheduled in its own lane of a FairRenderQueue, so a map with slow
+ * renders can only take its weighted share of the render threads (see
+ * RenderRequest.laneWeight and laneConcurrency).
+ * <p>
+ * New work is only admitted while the queue is within its limits.  Tile and WMS
+ * requests each have a maximum queue depth and a maximum estimated wait, which
+ * is the estimated cost of the queued work spread over the render threads.
+ * Requests over the limits are rejected with a RenderRejectedException rather
+ * than queued to be rendered after their client has given up.
+ * <p>
+ * Requests with a deadline are dispatched earliest deadline first within their
+ * map's lane.  A request still queued when its deadline passes is not rendered
+ * and is delivered as cancelled with RenderRequest.expired set.  Requests
+ * without a deadline are ordered as if their deadline were the default timeout
+ * (plus their estimated cost) after they arrived, so that both kinds are
+ * ordered on the same scale, but they never expire.
+ * <p>
+ * Rendering and encoding are separate stages when there are encode threads.
+ * A callback that returns a RenderResult still to be encoded gives up its
+ * render thread (and map) as soon as the image is rasterized, and the result is
+ * encoded and delivered on an encode thread.  Coalesced requests keep attaching
+ * until the encoded result is delivered.  The encode queue is bounded, since
+ * each queued result holds a rasterized image: when it is full the render
+ * thread encodes the result itself, and queued encodes count against the
+ * admission limits along with queued renders.
+ * <p>
+ * Background requests (RenderRequest.background) are queued behind all
+ * interactive work and skip admission control; their submitter is expected
+ * to pace itself.  They are served in submission order.  An interactive request
+ * that coalesces with a queued background request moves it into its map's lane.
  * 
  * @author stella
  *
  */
-public class RenderService {
+public class RenderService implements StatsSource {
 	static final Logger logger=LoggerFactory.getLogger(RenderService.class);
 	
 	private ExecutorService executor;
 	private List<RenderRunner> runners=new ArrayList<RenderRunner>();
-	private BlockingQueue<Ticket> primaryWorkQueue=new PriorityBlockingQueue<Ticket>();
+	private int threads;
+	private FairRenderQueue primaryWorkQueue;
 	
-	private static class Ticket implements Comparable<Ticket> {
+	/**
+	 * Encode stage.  Null to encode on the render threads.
+	 */
+	private ThreadPoolExecutor encodeExecutor;
+	private int encodeThreads;
+	
+	/**
+	 * Encodes that can be queued per encode thread before render threads
+	 * encode for themselves
+	 */
+	private static final int ENCODE_QUEUE_PER_THREAD=2;
+	private AtomicLong encodedOnRenderThreadCount=new AtomicLong();
+	private AtomicInteger encodeActive=new AtomicInteger();
+	
+	/**
+	 * Time spent working by each stage, for utilization
+	 */
+	private AtomicLong renderBusyNanos=new AtomicLong();
+	private AtomicLong encodeBusyNanos=new AtomicLong();
+	
+	/**
+	 * Admission limits.  Zero means unlimited.
+	 */
+	private int maxQueuedTiles;
+	private long maxWaitTiles;
+	private int maxQueuedWms;
+	private long maxWaitWms;
+	private AtomicInteger queuedTiles=new AtomicInteger();
+	private AtomicInteger queuedWms=new AtomicInteger();
+	
+	/**
+	 * Deadline (ms after arrival) that requests without one are ordered by
+	 */
+	private long defaultTimeout=DEFAULT_TIMEOUT;
+	public static final long DEFAULT_TIMEOUT=30000;
+	
+	/**
+	 * Tickets that are queued or rendering by coalesceKey.  Synchronize on this
+	 * map to access it or any ticket's followers.
+	 */
+	private Map<String, Ticket> inflight=new HashMap<String, Ticket>();
+	
+	private RenderCostEstimator costEstimator=new RenderCostEstimator();
+	private MetricsRegistry metrics=new MetricsRegistry();
+	private AtomicLong sequence=new AtomicLong();
+	
+	private AtomicLong submittedCount=new AtomicLong();
+	private AtomicLong coalescedCount=new AtomicLong();
+	private AtomicLong cancelledQueuedCount=new AtomicLong();
+	private AtomicLong cancelledBeforeRenderCount=new AtomicLong();
+	private AtomicLong expiredCount=new AtomicLong();
+	private AtomicLong cancelledFollowerCount=new AtomicLong();
+	private AtomicLong abandonedCount=new AtomicLong();
+	private AtomicLong rejectedTilesCount=new AtomicLong();
+	private AtomicLong rejectedWmsCount=new AtomicLong();
+	private AtomicLong promotedCount=new AtomicLong();
+	
+	private static class Ticket implements FairRenderQueue.Item {
 		RenderRequest request;
 		RenderCallback callback;
 		
+		/**
+		 * Tickets attached to this one because they have the same coalesceKey
+		 */
+		List<Ticket> followers;
+		
+		/**
+		 * For a follower, the ticket it is attached to
+		 */
+		Ticket leader;
+		
+		/**
+		 * Set when the requester has gone away but the render is still needed
+		 * by followers.  The result is not delivered to this ticket's callback.
+		 */
+		volatile boolean abandoned;
+		
 		public Ticket(RenderRequest request, RenderCallback callback) {
 			this.request=request;
 			this.callback=callback;
 		}
 		
 		@Override
-		public int compareTo(Ticket rhs) {
-			return request.compareTo(rhs.request);
+		public int compareTo(FairRenderQueue.Item rhs) {
+			return request.compareTo(((Ticket)rhs).request);
+		}
+		
+		@Override
+		public String getLaneName() {
+			return request.mapName==null ? "" : request.mapName;
+		}
+		
+		@Override
+		public double getCost() {
+			return request.cost;
+		}
+		
+		@Override
+		public double getLaneWeight() {
+			return request.laneWeight;
+		}
+		
+		@Override
+		public int getLaneConcurrency() {
+			return request.laneConcurrency;
+		}
+		
+		@Override
+		public boolean isBackground() {
+			return request.background;
 		}
 	}
 	
@@ -54,44 +196,159 @@ public class RenderService {
 		}
 		
 		void serviceQueue() throws InterruptedException {
-			Ticket ticket;
+			Ticket ticket=(Ticket) primaryWorkQueue.take();
+			if (!ticket.request.background) queuedCounter(ticket.request).decrementAndGet();
+			long startNanos=System.nanoTime();
+			recordStage("queue", ticket.request, startNanos - ticket.request.queuedNanos);
 			try {
-				ticket=primaryWorkQueue.take();
-			} catch (InterruptedException e) {
-				throw e;
-			} 
-			
+				runTicket(ticket);
+			} finally {
+				primaryWorkQueue.done(ticket);
+				renderBusyNanos.addAndGet(System.nanoTime() - startNanos);
+			}
+		}
+		
+		private void runTicket(Ticket ticket) {
 			RenderRequest request=ticket.request;
 			RenderCallback callback=ticket.callback;
 			
 			long renderStartTime=System.currentTimeMillis();
+			RenderResult result=null;
+			Throwable error=null;
+			
+			// Don't spend a render on clients that have stopped waiting.  Once
+			// completed nobody else can attach, so the check is stable.
+			List<Ticket> followers=null;
+			boolean expired=false;
+			if (request.deadline>0 && renderStartTime>request.deadline) {
+				followers=complete(ticket);
+				expired=allExpired(ticket, followers, renderStartTime);
+			}
+			
 			try {
-				if (request.cancelled) {
-					logger.debug("Skipping cancelled request");
-					callback.handleCancelled(request);
-					return;
+				if (!request.cancelled && !expired) {
+					// The callback checks the flag again just before rendering
+					// and returns null if it has been set in the meantime
+					result=callback.doRender(request);
+				}
+				if (expired) {
+					expiredCount.incrementAndGet();
+				} else if (result==null) {
+					cancelledBeforeRenderCount.incrementAndGet();
+				} else {
+					costEstimator.record(request, System.currentTimeMillis() - renderStartTime);
 				}
-				
-				callback.doRender(request);
 			} catch (Throwable t) {
 				logger.error("Unhandled exception during render", t);
+				error=t;
+			}
+			
+			if (result!=null && !result.isEncoded()) {
+				if (encodeExecutor!=null) {
+					encodeExecutor.execute(new EncodeTask(ticket, followers, result, renderStartTime));
+					return;
+				}
+				
+				// No encode stage.  Encode here.
 				try {
-					callback.handleRenderError(request, t);
-				} catch (Throwable nestedt) {
-					logger.error("Recursive error handling render failure", nestedt);
+					result=result.encode();
+				} catch (Throwable t) {
+					logger.error("Unhandled exception during encode", t);
+					result=null;
+					error=t;
 				}
 			}
 			
-			long totalRuntime=System.currentTimeMillis() - request.time;
-			long renderRuntime=System.currentTimeMillis() - renderStartTime;
-			if (logger.isDebugEnabled()) {
-				//DecimalFormat fmt=new DecimalFormat("0.0");
-				logger.debug("Render request of cost " + request.cost*1000 + " runtimes: total=" + totalRuntime + "ms" + ", render=" + renderRuntime + "ms");
+			finish(ticket, followers, expired, result, error, renderStartTime);
+		}
+	}
+	
+	private class EncodeTask implements Runnable {
+		private final Ticket ticket;
+		private final List<Ticket> followers;
+		private final RenderResult rendered;
+		private final long renderStartTime;
+		private final long queuedNanos=System.nanoTime();
+		
+		EncodeTask(Ticket ticket, List<Ticket> followers, RenderResult rendered, long renderStartTime) {
+			this.ticket=ticket;
+			this.followers=followers;
+			this.rendered=rendered;
+			this.renderStartTime=renderStartTime;
+		}
+		
+		@Override
+		public void run() {
+			long startNanos=System.nanoTime();
+			recordStage("encode_queue", ticket.request, startNanos - queuedNanos);
+			encodeActive.incrementAndGet();
+			
+			RenderResult result=null;
+			Throwable error=null;
+			try {
+				result=rendered.encode();
+			} catch (Throwable t) {
+				logger.error("Unhandled exception during encode", t);
+				error=t;
+			} finally {
+				encodeActive.decrementAndGet();
+				encodeBusyNanos.addAndGet(System.nanoTime() - startNanos);
+			}
+			
+			finish(ticket, followers, false, result, error, renderStartTime);
+		}
+	}
+	
+	/**
+	 * Deliver the outcome of a ticket to it and its followers
+	 * @param followers followers already taken from the ticket, or null
+	 */
+	private void finish(Ticket ticket, List<Ticket> followers, boolean expired, RenderResult result, Throwable error, long renderStartTime) {
+		RenderRequest request=ticket.request;
+		if (followers==null) followers=complete(ticket);
+		if (expired) {
+			request.expired=true;
+			for (Ticket follower: followers) {
+				follower.request.expired=true;
 			}
 		}
+		deliver(ticket, result, error);
+		for (Ticket follower: followers) {
+			deliver(follower, result, error);
+		}
+		
+		long totalRuntime=System.currentTimeMillis() - request.time;
+		long renderRuntime=System.currentTimeMillis() - renderStartTime;
+		if (logger.isDebugEnabled()) {
+			//DecimalFormat fmt=new DecimalFormat("0.0");
+			logger.debug("Render request of cost " + request.cost + "ms runtimes: total=" + totalRuntime + "ms" + ", render=" + renderRuntime + "ms");
+		}
 	}
 	
 	public RenderService(int maxConcurrency) {
+		this(maxConcurrency, 0);
+	}
+	
+	/**
+	 * @param maxConcurrency render threads
+	 * @param encodeThreads encode threads, or 0 to encode on the render threads
+	 */
+	public RenderService(int maxConcurrency, int encodeThreads) {
+		threads=maxConcurrency;
+		this.encodeThreads=encodeThreads;
+		if (encodeThreads>0) {
+			RejectedExecutionHandler encodeOnRenderThread=new ThreadPoolExecutor.CallerRunsPolicy() {
+				@Override
+				public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+					encodedOnRenderThreadCount.incrementAndGet();
+					super.rejectedExecution(r, e);
+				}
+			};
+			encodeExecutor=new ThreadPoolExecutor(encodeThreads, encodeThreads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(encodeThreads*ENCODE_QUEUE_PER_THREAD),
+					new NamedThreadFactory("Encoder"), encodeOnRenderThread);
+		}
+		primaryWorkQueue=new FairRenderQueue(maxConcurrency);
 		executor=Executors.newFixedThreadPool(maxConcurrency, new NamedThreadFactory("Renderer"));
 		for (int i=0; i<maxConcurrency; i++) {
 			RenderRunner runner=new RenderRunner();
@@ -100,15 +357,341 @@ public class RenderService {
 		}
 	}
 	
+	private void deliver(Ticket ticket, RenderResult result, Throwable error) {
+		RenderRequest request=ticket.request;
+		RenderCallback callback=ticket.callback;
+		try {
+			if (ticket.abandoned) {
+				callback.handleCancelled(request);
+			} else if (error!=null) {
+				callback.handleRenderError(request, error);
+			} else if (result==null) {
+				logger.debug("Skipping cancelled request");
+				callback.handleCancelled(request);
+			} else {
+				callback.handleRenderComplete(request, result);
+			}
+		} catch (Throwable t) {
+			logger.error("Error delivering render result", t);
+		}
+	}
+	
+	/**
+	 * Mark a ticket as no longer in flight
+	 * @return followers that need the ticket's result
+	 */
+	private List<Ticket> complete(Ticket ticket) {
+		String key=ticket.request.coalesceKey;
+		if (key==null) return Collections.emptyList();
+		
+		synchronized (inflight) {
+			if (inflight.get(key)==ticket) inflight.remove(key);
+			List<Ticket> followers=ticket.followers;
+			ticket.followers=null;
+			if (followers==null) return Collections.emptyList();
+			return followers;
+		}
+	}
+	
+	/**
+	 * @return true if the deadline of the ticket and every follower has passed
+	 */
+	private static boolean allExpired(Ticket ticket, List<Ticket> followers, long now) {
+		if (ticket.request.deadline<=0 || now<=ticket.request.deadline) return false;
+		for (Ticket follower: followers) {
+			long deadline=follower.request.deadline;
+			if (deadline<=0 || now<=deadline) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Derive the key that identical requests share.  Requests for resources
+	 * without an identity tag are never coalesced.
+	 * @return key or null
+	 */
+	static String canonicalKey(RenderRequest request) {
+		RenderInfo renderInfo=request.renderInfo;
+		if (request.resource==null || renderInfo==null || renderInfo.bounds==null) return null;
+		String identity=request.resource.getIdentityTag();
+		if (identity==null) return null;
+		
+		StringBuilder key=new StringBuilder(192);
+		key.append(identity);
+		if (renderInfo.projection!=null) {
+			key.append('|').append(renderInfo.projection.getSrs());
+		}
+		key.append('|').append(renderInfo.bounds.minx);
+		key.append(',').append(renderInfo.bounds.miny);
+		key.append(',').append(renderInfo.bounds.maxx);
+		key.append(',').append(renderInfo.bounds.maxy);
+		key.append('|').append(renderInfo.width).append('x').append(renderInfo.height);
+		key.append('@').append(renderInfo.pixelRatio);
+		key.append('|').append(renderInfo.format);
+		key.append('|').append(renderInfo.bufferPixels);
+		key.append('|').append(renderInfo.aspectFixMode);
+		key.append('|').append(renderInfo.metatileColumns).append('x').append(renderInfo.metatileRows);
+		return key.toString();
+	}
+	
+	/**
+	 * Set the admission limits for tile requests
+	 * @param maxQueued most tile renders (and encodes) to have queued or 0 for no limit
+	 * @param maxWait longest estimated queue wait in ms or 0 for no limit
+	 */
+	public void setTileAdmission(int maxQueued, long maxWait) {
+		this.maxQueuedTiles=maxQueued;
+		this.maxWaitTiles=maxWait;
+	}
+	
+	/**
+	 * Set the admission limits for WMS requests
+	 * @param maxQueued most WMS renders (and encodes) to have queued or 0 for no limit
+	 * @param maxWait longest estimated queue wait in ms or 0 for no limit
+	 */
+	public void setWmsAdmission(int maxQueued, long maxWait) {
+		this.maxQueuedWms=maxQueued;
+		this.maxWaitWms=maxWait;
+	}
+	
+	/**
+	 * Set the deadline that requests without one are queued by
+	 * @param defaultTimeout ms after the request arrived
+	 */
+	public void setDefaultTimeout(long defaultTimeout) {
+		if (defaultTimeout<=0) throw new IllegalArgumentException("Default timeout must be positive");
+		this.defaultTimeout=defaultTimeout;
+	}
+	
+	/**
+	 * @return number of render threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * @return how long newly queued work is expected to wait before rendering (ms)
+	 */
+	public long getEstimatedWait() {
+		return (long) (primaryWorkQueue.getQueuedCost() / threads);
+	}
+	
+	/**
+	 * @return number of rendered results waiting for an encode thread
+	 */
+	private int getQueuedEncodes() {
+		return encodeExecutor==null ? 0 : encodeExecutor.getQueue().size();
+	}
+	
+	private AtomicInteger queuedCounter(RenderRequest request) {
+		return isTiled(request) ? queuedTiles : queuedWms;
+	}
+	
+	private static boolean isTiled(RenderRequest request) {
+		return request.renderInfo!=null && request.renderInfo.tiled;
+	}
+	
+	/**
+	 * Throw if new work for the request should not be queued
+	 */
+	private void admit(RenderRequest request) {
+		boolean tiled=isTiled(request);
+		int maxQueued=tiled ? maxQueuedTiles : maxQueuedWms;
+		long maxWait=tiled ? maxWaitTiles : maxWaitWms;
+		long wait=getEstimatedWait();
+		
+		String reason=null;
+		if (maxQueued>0 && queuedCounter(request).get() + getQueuedEncodes()>=maxQueued) {
+			reason="Render queue is full";
+		} else if (maxWait>0 && wait>maxWait) {
+			reason="Render queue wait of " + wait + "ms is too long";
+		}
+		if (reason==null) return;
+		
+		if (tiled) rejectedTilesCount.incrementAndGet();
+		else rejectedWmsCount.incrementAndGet();
+		
+		// Come back when the current backlog should have drained
+		int retryAfter=(int) Math.max(1, (wait + 999) / 1000);
+		throw new RenderRejectedException(reason, retryAfter);
+	}
+	
+	public RenderCostEstimator getCostEstimator() {
+		return costEstimator;
+	}
+	
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Record the time a request spent in one stage of the pipeline in the
+	 * nanomaps_request_stage_seconds histogram, by map, request class and level
+	 * @param stage
+	 * @param request
+	 * @param nanos
+	 */
+	public void recordStage(String stage, RenderRequest request, long nanos) {
+		metrics.histogram("nanomaps_request_stage_seconds",
+				"stage", stage,
+				"map", request.mapName,
+				"class", request.background ? "seed" : (isTiled(request) ? "tile" : "wms"),
+				"level", levelLabel(request.renderInfo)).recordNanos(nanos);
+	}
+	
+	/**
+	 * Levels come straight from the request, so levels outside the tile
+	 * levels all share an "other" series rather than each adding histograms
+	 */
+	static String levelLabel(RenderInfo renderInfo) {
+		if (renderInfo==null) return "";
+		double level;
+		if (renderInfo.tiled) level=renderInfo.tileLevel;
+		else if (renderInfo.projection!=null && renderInfo.bounds!=null) level=Math.round(renderInfo.getLevel());
+		else return "";
+		
+		if (level>=0 && level<=RenderInfo.MAX_TILE_LEVEL) return String.valueOf((int)level);
+		return "other";
+	}
+	
+	/**
+	 * Submit a request for rendering.  Requests that coalesce with work already
+	 * in flight are always accepted.
+	 * @return ticket that can be passed to cancel
+	 * @throws RenderRejectedException if the request is over the admission limits
+	 */
 	public Object submit(RenderRequest request, RenderCallback callback) {
+		submittedCount.incrementAndGet();
+		request.sequence=sequence.incrementAndGet();
+		request.cost=costEstimator.estimate(request);
+		if (request.background) request.priority=request.sequence;
+		else request.priority=request.deadline>0 ? request.deadline : request.time + defaultTimeout + request.cost;
 		Ticket ticket=new Ticket(request, callback);
+		String key=canonicalKey(request);
+		request.coalesceKey=key;
+		if (key!=null) {
+			synchronized (inflight) {
+				Ticket leader=inflight.get(key);
+				if (leader!=null) {
+					if (leader.followers==null) leader.followers=new ArrayList<Ticket>();
+					leader.followers.add(ticket);
+					ticket.leader=leader;
+					coalescedCount.incrementAndGet();
+					if (leader.request.background && !request.background) promote(leader, request);
+					return ticket;
+				}
+				if (!request.background) admit(request);
+				inflight.put(key, ticket);
+			}
+		} else if (!request.background) {
+			admit(request);
+		}
+		
+		if (!request.background) queuedCounter(request).incrementAndGet();
+		request.queuedNanos=System.nanoTime();
 		primaryWorkQueue.offer(ticket);
 		return ticket;
 	}
 	
-	public void cancel(Object ticket) {
+	/**
+	 * Move a queued background ticket into its map's lane because an interactive
+	 * request is now waiting on it.  Must hold the inflight lock.
+	 */
+	private void promote(Ticket leader, RenderRequest waiting) {
+		if (!primaryWorkQueue.remove(leader)) return;
+		leader.request.background=false;
+		leader.request.priority=waiting.priority;
+		queuedCounter(leader.request).incrementAndGet();
+		primaryWorkQueue.offer(leader);
+		promotedCount.incrementAndGet();
+	}
+	
+	@Override
+	public String getStatsTitle() {
+		return "Render Service";
+	}
+	
+	@Override
+	public void collectStats(Map<String, Object> stats) {
+		stats.put("submitted", submittedCount.get());
+		stats.put("coalesced", coalescedCount.get());
+		stats.put("cancelledQueued", cancelledQueuedCount.get());
+		stats.put("cancelledBeforeRender", cancelledBeforeRenderCount.get());
+		stats.put("expired", expiredCount.get());
+		stats.put("cancelledFollowers", cancelledFollowerCount.get());
+		stats.put("abandonedWithFollowers", abandonedCount.get());
+		stats.put("rejectedTiles", rejectedTilesCount.get());
+		stats.put("rejectedWms", rejectedWmsCount.get());
+		stats.put("promotedBackground", promotedCount.get());
+		stats.put("queued", primaryWorkQueue.size());
+		stats.put("active", primaryWorkQueue.getActive());
+		stats.put("threads", threads);
+		stats.put("renderBusySeconds", renderBusyNanos.get() / 1e9);
+		stats.put("encodeThreads", encodeThreads);
+		stats.put("encodeActive", encodeActive.get());
+		stats.put("encodeQueued", getQueuedEncodes());
+		stats.put("encodedOnRenderThread", encodedOnRenderThreadCount.get());
+		stats.put("encodeBusySeconds", encodeBusyNanos.get() / 1e9);
+		stats.put("queuedTiles", queuedTiles.get());
+		stats.put("queuedWms", queuedWms.get());
+		stats.put("estimatedWaitMs", getEstimatedWait());
+		primaryWorkQueue.collectStats(stats);
+		synchronized (inflight) {
+			stats.put("inflightKeys", inflight.size());
+		}
+	}
+	
+	/**
+	 * Cancel a request because its requester is no longer interested.  The
+	 * callback of a cancelled request may or may not be invoked, depending on
+	 * how far along it is.  A request that other coalesced requests are waiting
+	 * on keeps rendering for their benefit.
+	 * @param ticket as returned from submit
+	 * @return true if the callback is guaranteed not to be invoked
+	 */
+	public boolean cancel(Object ticket) {
 		Ticket ticketPair=(Ticket) ticket;
+		if (ticketPair.request.cancelled || ticketPair.abandoned) return false;
+		boolean detached=false;
+		
+		if (ticketPair.request.coalesceKey!=null) {
+			synchronized (inflight) {
+				Ticket leader=ticketPair.leader;
+				if (leader!=null) {
+					// Just detach from the render we are following
+					ticketPair.request.cancelled=true;
+					cancelledFollowerCount.incrementAndGet();
+					
+					// If the leader has completed, the result is being delivered
+					if (leader.followers==null) return false;
+					leader.followers.remove(ticketPair);
+					if (!leader.abandoned || !leader.followers.isEmpty()) return true;
+					
+					// Nobody is left waiting on the leader
+					detached=true;
+					ticketPair=leader;
+				} else if (ticketPair.followers!=null && !ticketPair.followers.isEmpty()) {
+					ticketPair.abandoned=true;
+					abandonedCount.incrementAndGet();
+					return false;
+				}
+				
+				String key=ticketPair.request.coalesceKey;
+				if (inflight.get(key)==ticketPair) inflight.remove(key);
+			}
+		}
+		
 		ticketPair.request.cancelled=true;
-		primaryWorkQueue.remove(ticketPair);
+		if (primaryWorkQueue.remove(ticketPair)) {
+			if (!ticketPair.request.background) queuedCounter(ticketPair.request).decrementAndGet();
+			cancelledQueuedCount.incrementAndGet();
+			if (detached) {
+				// Let the abandoned leader clean up
+				deliver(ticketPair, null, null);
+			}
+			return true;
+		}
+		return detached;
 	}
 }
@@ -62,14 +62,19 @@ public class ScriptMapLocator extends AbstractMapLocator implements MapLocator,
 	}
 	
 	@Override
-	public MapResource resolve(RenderRequest request) throws Exception {
+	public void dispose() {
+		// Script engines hold nothing that the garbage collector can't reclaim
+	}
+	
+	@Override
+	public MapSource resolve(RenderRequest request) throws Exception {
 		IdentityHashMap<Object, Boolean> cycleDetect=new IdentityHashMap<Object, Boolean>();
 		ScriptEngine engine=pool.getEngine();
 		Invocable invocable=(Invocable) engine;
 		try {
 			Object resolved=invocable.invokeFunction("select", request);
 			
-			while (resolved!=null && !(resolved instanceof MapResource)) {
+			while (resolved!=null && !(resolved instanceof MapSource)) {
 				if (cycleDetect.put(resolved, Boolean.TRUE)!=null) {
 					throw new IllegalStateException("Cycle detected using script to detect map resource: " + pool.getScriptName());
 				}
@@ -86,7 +91,7 @@ public class ScriptMapLocator extends AbstractMapLocator implements MapLocator,
 					throw new IllegalStateException("Script locator " + pool.getScriptName() + " returned illegal value: " + resolved);
 				}
 			}
-			return (MapResource) resolved;
+			return (MapSource) resolved;
 		} catch (Exception e) {
 			throw new RuntimeException("Exception while processing script " + pool.getScriptName(), e);
 		} finally {
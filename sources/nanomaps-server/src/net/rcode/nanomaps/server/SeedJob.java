@@ -0,0 +1,425 @@
+package net.rcode.nanomaps.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mapnik.Box2d;
+import net.rcode.core.util.JsonBuilder;
+import net.rcode.nanomaps.server.cache.TileKey;
+import net.rcode.nanomaps.server.projection.RenderProjection;
+import net.rcode.nanomaps.server.util.HilbertCurve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renders every tile of a map within a bounding box and range of levels into
+ * the tile cache, ahead of the clients asking for them.
+ * <p>
+ * Tiles are rendered exactly as an interactive tile request with default
+ * parameters would render them (same variant, metatiles and lane settings), so
+ * they are found in the cache afterwards.  Each level is walked in Hilbert
+ * order, with all the pixel ratios of a tile together, and tiles already in
+ * the cache are skipped.  Where the map uses metatiles only one tile of each
+ * metatile is requested.
+ * <p>
+ * Renders are submitted as background work, so they only use render threads
+ * that interactive requests leave idle.  At most one render per render thread
+ * is outstanding at a time and submissions can be capped at a rate.
+ *
+ * @author stella
+ *
+ */
+public class SeedJob implements RenderCallback, Runnable {
+	private static final Logger logger=LoggerFactory.getLogger(SeedJob.class);
+	static final int TILE_SIZE=256;
+
+	public enum State {
+		QUEUED, RUNNING, PAUSED, CANCELLED, FINISHED, FAILED;
+
+		public boolean isDone() {
+			return this==CANCELLED || this==FINISHED || this==FAILED;
+		}
+	}
+
+	private final TileSeeder seeder;
+	private final int id;
+	private final String mapName;
+	private final MapLocator locator;
+	private final RenderProjection projection;
+	private final Box2d bounds;
+	private final int minLevel;
+	private final int maxLevel;
+	private final double[] pixelRatios;
+	private final String format;
+	private final double maxRate;
+	private final long total;
+
+	// -- Guarded by this
+	private State state=State.QUEUED;
+	private String error;
+	private int level=-1;
+	private long startTime;
+	private long endTime;
+
+	/**
+	 * Renders in flight and their tickets.  A request maps to null until
+	 * submit returns.
+	 */
+	private Map<RenderRequest, Object> outstanding=new HashMap<RenderRequest, Object>();
+
+	private AtomicLong submitted=new AtomicLong();
+	private AtomicLong rendered=new AtomicLong();
+	private AtomicLong skipped=new AtomicLong();
+	private AtomicLong failed=new AtomicLong();
+
+	/**
+	 * @param seeder
+	 * @param id
+	 * @param mapName
+	 * @param locator
+	 * @param projection projection to render in.  Disposed when the job ends.
+	 * @param bounds area to seed in projected coordinates
+	 * @param minLevel
+	 * @param maxLevel
+	 * @param pixelRatios
+	 * @param format
+	 * @param maxRate most renders to submit per second or 0 for no limit
+	 */
+	SeedJob(TileSeeder seeder, int id, String mapName, MapLocator locator, RenderProjection projection, Box2d bounds,
+			int minLevel, int maxLevel, double[] pixelRatios, String format, double maxRate) {
+		this.seeder=seeder;
+		this.id=id;
+		this.mapName=mapName;
+		this.locator=locator;
+		this.projection=projection;
+		this.bounds=bounds;
+		this.minLevel=minLevel;
+		this.maxLevel=maxLevel;
+		this.pixelRatios=pixelRatios;
+		this.format=format;
+		this.maxRate=maxRate;
+
+		long count=0;
+		for (int l=minLevel; l<=maxLevel; l++) {
+			count+=walk(l).size() * pixelRatios.length;
+		}
+		this.total=count;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getMapName() {
+		return mapName;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return number of renders the job consists of
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	public long getRendered() {
+		return rendered.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Tile range at a level, in metatile units where the map has metatiles
+	 */
+	private HilbertCurve.RangeWalker walk(int level) {
+		int[] range=projection.tileRange(bounds, level, TILE_SIZE, TILE_SIZE);
+		int size=MapRequestHandler.metatileSize(locator, format, level);
+		return new HilbertCurve.RangeWalker(
+				MapRequestHandler.floorDiv(range[0], size),
+				MapRequestHandler.floorDiv(range[1], size),
+				MapRequestHandler.floorDiv(range[2], size),
+				MapRequestHandler.floorDiv(range[3], size));
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (state!=State.QUEUED) return;
+			state=State.RUNNING;
+			startTime=System.currentTimeMillis();
+		}
+		logger.info("Seeding map " + mapName + " with " + total + " renders (job " + id + ")");
+
+		try {
+			seed();
+			finish(State.FINISHED, null);
+		} catch (InterruptedException e) {
+			cancel();
+		} catch (Throwable t) {
+			logger.error("Seed job " + id + " failed", t);
+			cancelOutstanding();
+			finish(State.FAILED, String.valueOf(t));
+		} finally {
+			projection.dispose();
+		}
+		logger.info("Seed job " + id + " ended " + getState() + " after " + rendered.get() + " renders");
+	}
+
+	private void seed() throws Exception {
+		int window=Math.max(1, seeder.renderService.getThreads());
+		long intervalNanos=maxRate>0 ? (long)(1e9 / maxRate) : 0;
+		long nextNanos=System.nanoTime();
+
+		for (int l=minLevel; l<=maxLevel; l++) {
+			synchronized (this) {
+				level=l;
+			}
+			int size=MapRequestHandler.metatileSize(locator, format, l);
+			HilbertCurve.RangeWalker walker=walk(l);
+			while (walker.next()) {
+				for (double pixelRatio: pixelRatios) {
+					if (intervalNanos>0) {
+						if (!pace(nextNanos)) return;
+						nextNanos=Math.max(nextNanos, System.nanoTime() - intervalNanos) + intervalNanos;
+					}
+					if (!awaitTurn(window)) return;
+					submitTile(l, walker.getX()*size, walker.getY()*size, pixelRatio);
+				}
+			}
+		}
+
+		// Wait for the last renders
+		awaitTurn(1);
+	}
+
+	private void submitTile(int level, int x, int y, double pixelRatio) throws Exception {
+		RenderInfo renderInfo=new RenderInfo();
+		renderInfo.projection=projection;
+		renderInfo.pixelRatio=pixelRatio;
+		renderInfo.width=TILE_SIZE;
+		renderInfo.height=TILE_SIZE;
+		renderInfo.format=format;
+		renderInfo.tiled=true;
+		renderInfo.tileLevel=level;
+		renderInfo.tileX=x;
+		renderInfo.tileY=y;
+		renderInfo.bounds=projection.projectTile(level, x, y, TILE_SIZE, TILE_SIZE);
+
+		RenderRequest renderRequest=new RenderRequest();
+		renderRequest.mapName=mapName;
+		renderRequest.renderInfo=renderInfo;
+		renderRequest.background=true;
+
+		MapSource source=locator.resolve(renderRequest);
+		if (source==null || !source.isValid()) {
+			throw new IllegalStateException("Map '" + mapName + "' is not valid");
+		}
+		if (!(source instanceof MapResource)) {
+			throw new IllegalStateException("Map '" + mapName + "' is pre-rendered and cannot be seeded");
+		}
+		MapResource resource=(MapResource) source;
+		String resourceEtag=resource.getIdentityTag();
+		if (resourceEtag==null) {
+			throw new IllegalStateException("Map '" + mapName + "' has no identity tag so its tiles are not cached");
+		}
+		renderRequest.resource=resource;
+
+		String variant=MapRequestHandler.tileVariant(resourceEtag, renderInfo, null, null);
+		TileKey tileKey=new TileKey(mapName, variant, format, level, x, y);
+		if (seeder.tileCache.contains(tileKey)) {
+			skipped.incrementAndGet();
+			return;
+		}
+		renderRequest.tileKey=tileKey;
+
+		MapRequestHandler renderer=seeder.renderer;
+		renderer.setupMetatile(renderRequest, locator);
+		renderer.setupLane(renderRequest, locator);
+
+		synchronized (this) {
+			outstanding.put(renderRequest, null);
+		}
+		Object ticket=seeder.renderService.submit(renderRequest, this);
+		submitted.incrementAndGet();
+		synchronized (this) {
+			if (outstanding.containsKey(renderRequest)) outstanding.put(renderRequest, ticket);
+		}
+	}
+
+	/**
+	 * Wait until the job is running and has fewer than window renders outstanding
+	 * @return false if the job was cancelled
+	 */
+	private synchronized boolean awaitTurn(int window) throws InterruptedException {
+		for (;;) {
+			if (state==State.CANCELLED) return false;
+			if (state==State.RUNNING && outstanding.size()<window) return true;
+			wait();
+		}
+	}
+
+	/**
+	 * Wait until System.nanoTime reaches untilNanos
+	 * @return false if the job was cancelled
+	 */
+	private synchronized boolean pace(long untilNanos) throws InterruptedException {
+		for (;;) {
+			if (state==State.CANCELLED) return false;
+			long remaining=untilNanos - System.nanoTime();
+			if (remaining<=0) return true;
+			wait(remaining/1000000 + 1);
+		}
+	}
+
+	private synchronized void finish(State endState, String error) {
+		if (!state.isDone()) state=endState;
+		if (error!=null) this.error=error;
+		endTime=System.currentTimeMillis();
+		notifyAll();
+	}
+
+	private synchronized void renderDone(RenderRequest rr) {
+		outstanding.remove(rr);
+		notifyAll();
+	}
+
+	/**
+	 * Pull outstanding renders out of the render queue
+	 */
+	private void cancelOutstanding() {
+		List<Map.Entry<RenderRequest, Object>> entries;
+		synchronized (this) {
+			entries=new ArrayList<Map.Entry<RenderRequest,Object>>(outstanding.entrySet());
+		}
+		for (Map.Entry<RenderRequest, Object> entry: entries) {
+			if (entry.getValue()!=null && seeder.renderService.cancel(entry.getValue())) {
+				// No callback will come
+				renderDone(entry.getKey());
+			}
+		}
+	}
+
+	public synchronized boolean pause() {
+		if (state!=State.RUNNING) return false;
+		state=State.PAUSED;
+		notifyAll();
+		return true;
+	}
+
+	public synchronized boolean resume() {
+		if (state!=State.PAUSED) return false;
+		state=State.RUNNING;
+		notifyAll();
+		return true;
+	}
+
+	public boolean cancel() {
+		synchronized (this) {
+			if (state.isDone()) return false;
+			state=State.CANCELLED;
+			endTime=System.currentTimeMillis();
+			notifyAll();
+		}
+		cancelOutstanding();
+		return true;
+	}
+
+	@Override
+	public RenderResult doRender(RenderRequest rr) throws Exception {
+		// Encoding stores the tiles in the cache
+		return seeder.renderer.doRender(rr);
+	}
+
+	@Override
+	public void handleRenderComplete(RenderRequest rr, RenderResult result) {
+		rendered.incrementAndGet();
+		renderDone(rr);
+	}
+
+	@Override
+	public void handleCancelled(RenderRequest rr) {
+		renderDone(rr);
+	}
+
+	@Override
+	public void handleRenderError(RenderRequest rr, Throwable t) {
+		failed.incrementAndGet();
+		synchronized (this) {
+			error=String.valueOf(t);
+		}
+		renderDone(rr);
+	}
+
+	/**
+	 * Write the job's parameters and progress as a json object
+	 */
+	public synchronized void writeJson(JsonBuilder json) {
+		long done=rendered.get() + skipped.get() + failed.get();
+		long elapsed=startTime==0 ? 0 : (endTime==0 ? System.currentTimeMillis() : endTime) - startTime;
+		double rate=elapsed>0 ? rendered.get() * 1000.0 / elapsed : 0;
+
+		StringBuilder ratios=new StringBuilder();
+		for (double pixelRatio: pixelRatios) {
+			if (ratios.length()>0) ratios.append(',');
+			ratios.append(pixelRatio);
+		}
+
+		json.startObject();
+		json.key("id", false);
+		json.value(id);
+		json.key("map", false);
+		json.value(mapName);
+		json.key("state", false);
+		json.value(state.name().toLowerCase());
+		json.key("bounds", false);
+		json.value(bounds.minx + "," + bounds.miny + "," + bounds.maxx + "," + bounds.maxy);
+		json.key("levels", false);
+		json.value(minLevel + "-" + maxLevel);
+		json.key("pixelRatios", false);
+		json.value(ratios.toString());
+		json.key("format", false);
+		json.value(format);
+		json.key("maxRate", false);
+		json.value(maxRate);
+		json.key("level", false);
+		json.value(level);
+		json.key("total", false);
+		json.value(total);
+		json.key("submitted", false);
+		json.value(submitted.get());
+		json.key("rendered", false);
+		json.value(rendered.get());
+		json.key("skipped", false);
+		json.value(skipped.get());
+		json.key("failed", false);
+		json.value(failed.get());
+		json.key("progress", false);
+		json.value(total>0 ? (double)done / total : 1.0);
+		json.key("elapsedSeconds", false);
+		json.value(elapsed / 1000.0);
+		json.key("rendersPerSecond", false);
+		json.value(rate);
+		if (!state.isDone() && elapsed>0 && done>0) {
+			json.key("etaSeconds", false);
+			json.value((total - done) * (elapsed / 1000.0) / done);
+		}
+		if (error!=null) {
+			json.key("error", false);
+			json.value(error);
+		}
+		json.endObject();
+	}
+}
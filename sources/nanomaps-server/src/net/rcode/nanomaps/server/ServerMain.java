@@ -1,9 +1,12 @@
 package net.rcode.nanomaps.server;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -11,6 +14,11 @@ import net.rcode.core.httpserver.HttpServer;
 import net.rcode.core.httpserver.SimpleRequestDispatcher;
 import net.rcode.core.io.NamedThreadFactory;
 import net.rcode.core.web.FilesRequestHandler;
+import net.rcode.nanomaps.server.cache.MBTilesTileCache;
+import net.rcode.nanomaps.server.cache.MemoryTileCache;
+import net.rcode.nanomaps.server.cache.PackTileCache;
+import net.rcode.nanomaps.server.cache.TieredTileCache;
+import net.rcode.nanomaps.server.cache.TileCache;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.ChannelFactory;
@@ -25,14 +33,18 @@ import org.slf4j.LoggerFactory;
  */
 public class ServerMain {
 	private static final Logger logger=LoggerFactory.getLogger(ServerMain.class);
+	private static final int MEMORY_CACHE_SLAB_SIZE=1024*1024;
 	private int serverPort=7666;
+	private Properties config;
 	
 	private ExecutorService serverBossExecutor;
 	private ExecutorService serverWorkerExecutor;
 	private ExecutorService webWorkerThreadPool;
 	
 	
-	public ServerMain() {
+	public ServerMain(Properties config) {
+		this.config=config;
+		
 		// Netty server setup
 		serverBossExecutor=Executors.newCachedThreadPool(new NamedThreadFactory("ServerBoss"));
 		serverWorkerExecutor=Executors.newCachedThreadPool(new NamedThreadFactory("ServerWorker"));
@@ -55,11 +67,23 @@ public class ServerMain {
 		bootstrap.setPipelineFactory(server);
 
 		// Map repository/renderer
+		int renderThreads=Runtime.getRuntime().availableProcessors()+1;
 		FileSystemMapRepository repository=new FileSystemMapRepository(new File("repository").getAbsoluteFile());
+		repository.setPrewarm(MapRequestHandler.class, renderThreads);
 		repository.scan();
 		
-		RenderService renderService=new RenderService(Runtime.getRuntime().availableProcessors()+1);
+		String encodeThreadsProp=config.getProperty("encodeThreads", "").trim();
+		int encodeThreads=encodeThreadsProp.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(encodeThreadsProp);
+		RenderService renderService=new RenderService(renderThreads, encodeThreads);
 		//RenderService renderService=new RenderService(1);
+		renderService.setTileAdmission(
+				Integer.parseInt(config.getProperty("renderMaxQueuedTiles", "0")),
+				Long.parseLong(config.getProperty("renderMaxWaitTiles", "0")));
+		renderService.setWmsAdmission(
+				Integer.parseInt(config.getProperty("renderMaxQueuedWms", "0")),
+				Long.parseLong(config.getProperty("renderMaxWaitWms", "0")));
+		renderService.setDefaultTimeout(Long.parseLong(
+				config.getProperty("renderDefaultTimeout", String.valueOf(RenderService.DEFAULT_TIMEOUT)).trim()));
 
 		// Http Server setup
 		SimpleRequestDispatcher mainDispatcher=new SimpleRequestDispatcher();
@@ -68,8 +92,70 @@ public class ServerMain {
 		// URL Rewrites (must come first)
 		mainDispatcher.rewriteStatic("/", "/static/index.html");
 		
+		// Admin
+		AdminStatsRequestHandler statsHandler=new AdminStatsRequestHandler();
+		
+		// Tile cache
+		TileCache tileCache=null;
+		String tileCacheDir=config.getProperty("tileCacheDir");
+		if (tileCacheDir!=null && !tileCacheDir.isEmpty()) {
+			String tileCacheType=config.getProperty("tileCacheType", "mbtiles").trim();
+			if ("pack".equalsIgnoreCase(tileCacheType)) {
+				int packFileMb=Integer.parseInt(config.getProperty("packFileMb", "256"));
+				if (packFileMb<1 || packFileMb>1024) {
+					throw new IllegalArgumentException("packFileMb must be between 1 and 1024");
+				}
+				PackTileCache packCache=new PackTileCache(new File(tileCacheDir).getAbsoluteFile(), packFileMb*1024*1024);
+				statsHandler.addStatsSource(packCache);
+				tileCache=packCache;
+			} else if ("mbtiles".equalsIgnoreCase(tileCacheType)) {
+				int retentionDays=Integer.parseInt(config.getProperty("tileCacheRetentionDays", "7"));
+				tileCache=new MBTilesTileCache(new File(tileCacheDir).getAbsoluteFile(), retentionDays*24L*3600*1000);
+			} else {
+				throw new IllegalArgumentException("Unknown tileCacheType " + tileCacheType);
+			}
+			logger.info("Caching tiles in " + tileCacheDir + " (" + tileCacheType + ")");
+		}
+		
+		long memoryCacheMb=Long.parseLong(config.getProperty("memoryCacheMb", "0"));
+		if (memoryCacheMb>0) {
+			MemoryTileCache memoryCache=new MemoryTileCache(memoryCacheMb*1024*1024, MEMORY_CACHE_SLAB_SIZE);
+			statsHandler.addStatsSource(memoryCache);
+			logger.info("Caching up to " + memoryCacheMb + "mb of tiles in memory");
+			
+			if (tileCache==null) tileCache=memoryCache;
+			else tileCache=new TieredTileCache(memoryCache, tileCache);
+		}
+		
+		// Write out queued tile stores on exit
+		if (tileCache!=null) {
+			final TileCache closingCache=tileCache;
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					logger.info("Closing tile cache");
+					closingCache.close();
+				}
+			}, "Tile cache shutdown"));
+		}
+		
+		statsHandler.addStatsSource(renderService);
+		statsHandler.addStatsSource(repository);
+		statsHandler.setMetrics(renderService.getMetrics());
+		
 		// Main map request handler
-		mainDispatcher.pathPrefix("/map", true, new MapRequestHandler(repository, renderService));
+		MapRequestHandler mapHandler=new MapRequestHandler(repository, renderService);
+		mapHandler.setTileCache(tileCache);
+		
+		long imagePoolMb=Long.parseLong(config.getProperty("imagePoolMb", "0"));
+		ImagePool imagePool=new ImagePool(imagePoolMb*1024*1024);
+		statsHandler.addStatsSource(imagePool);
+		mapHandler.setImagePool(imagePool);
+		mainDispatcher.pathPrefix("/map", true, mapHandler);
+		
+		// Cache seeding uses the map handler's render path
+		TileSeeder seeder=new TileSeeder(repository, renderService, mapHandler, tileCache);
+		statsHandler.addStatsSource(seeder);
 		
 		// Static files
 		File docRoot=new File("web");
@@ -77,19 +163,44 @@ public class ServerMain {
 		mainDispatcher.pathPrefix("/static", true, files);
 		
 		// Admin
-		mainDispatcher.path("/_admin/stats", new AdminStatsRequestHandler());
+		mainDispatcher.path("/_admin/stats", statsHandler);
+		mainDispatcher.path("/_admin/costs", new AdminCostsRequestHandler(renderService));
+		mainDispatcher.pathPrefix("/_admin/seed", true, new AdminSeedRequestHandler(seeder));
 		
 		// Listen
 		logger.info("Starting server on port " + serverPort);
 		bootstrap.bind(new InetSocketAddress(serverPort));
 	}
 	
+	/**
+	 * Load each properties file in turn, later files overriding earlier ones.
+	 * Files that do not exist are skipped.
+	 */
+	private static Properties loadConfig(String[] fileNames) throws IOException {
+		Properties config=new Properties();
+		for (String fileName: fileNames) {
+			File file=new File(fileName);
+			if (!file.isFile()) {
+				logger.info("Config file " + file + " does not exist.  Skipping.");
+				continue;
+			}
+			
+			FileInputStream in=new FileInputStream(file);
+			try {
+				config.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return config;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		logger.info("Initializing environment.  If something goes wrong here, library paths are likely not setup");
 		ProcessSetup.initEnvironment();
 		logger.info("Environment initialized");
 		
-		ServerMain s=new ServerMain();
+		ServerMain s=new ServerMain(loadConfig(args));
 		s.start();
 	}
 }
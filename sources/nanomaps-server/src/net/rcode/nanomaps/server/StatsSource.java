@@ -0,0 +1,22 @@
+package net.rcode.nanomaps.server;
+
+import java.util.Map;
+
+/**
+ * Implemented by components that publish counters on the admin stats page.
+ * @author stella
+ *
+ */
+public interface StatsSource {
+	/**
+	 * @return title of the section the stats are listed under
+	 */
+	public String getStatsTitle();
+
+	/**
+	 * Add current name/value pairs to the given map.  Values should be numbers.
+	 * Names may end in Prometheus style labels, eg. lane.active{map="osm"}.
+	 * @param stats
+	 */
+	public void collectStats(Map<String, Object> stats);
+}
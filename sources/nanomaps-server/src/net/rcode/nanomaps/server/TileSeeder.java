@@ -0,0 +1,127 @@
+package net.rcode.nanomaps.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mapnik.Box2d;
+import net.rcode.core.io.NamedThreadFactory;
+import net.rcode.nanomaps.server.cache.TileCache;
+import net.rcode.nanomaps.server.projection.RenderProjection;
+
+/**
+ * Runs cache seeding jobs (see SeedJob), each on its own thread.  Finished
+ * jobs are remembered for a while so their outcome can be looked up.
+ * 
+ * @author stella
+ *
+ */
+public class TileSeeder implements StatsSource {
+	private static final int MAX_DONE_JOBS=20;
+	
+	final MapRepository repository;
+	final RenderService renderService;
+	final MapRequestHandler renderer;
+	final TileCache tileCache;
+	
+	private ExecutorService executor=Executors.newCachedThreadPool(new NamedThreadFactory("Seeder"));
+	private Map<Integer, SeedJob> jobs=new LinkedHashMap<Integer, SeedJob>();
+	private int nextId=1;
+	
+	/**
+	 * @param repository
+	 * @param renderService
+	 * @param renderer handler whose render and encode steps (and settings) are used
+	 * @param tileCache cache to seed or null if there is none
+	 */
+	public TileSeeder(MapRepository repository, RenderService renderService, MapRequestHandler renderer, TileCache tileCache) {
+		this.repository=repository;
+		this.renderService=renderService;
+		this.renderer=renderer;
+		this.tileCache=tileCache;
+	}
+	
+	/**
+	 * Start a job
+	 * @param mapName
+	 * @param bounds area to seed
+	 * @param coordinatesAreGlobal true if bounds are longitude/latitude rather than map coordinates
+	 * @param minLevel
+	 * @param maxLevel
+	 * @param pixelRatios
+	 * @param format
+	 * @param maxRate most renders per second or 0 for no limit
+	 * @return the job
+	 */
+	public synchronized SeedJob submit(String mapName, Box2d bounds, boolean coordinatesAreGlobal,
+			int minLevel, int maxLevel, double[] pixelRatios, String format, double maxRate) {
+		if (tileCache==null) {
+			throw new IllegalStateException("There is no tile cache to seed");
+		}
+		MapLocator locator=repository.lookupMap(mapName);
+		if (locator==null || !locator.isValid()) {
+			throw new IllegalArgumentException("Map name " + mapName + " is not valid");
+		}
+		if (minLevel<0 || maxLevel<minLevel || maxLevel>RenderInfo.MAX_TILE_LEVEL) {
+			throw new IllegalArgumentException("Illegal level range " + minLevel + "-" + maxLevel);
+		}
+		if (pixelRatios.length==0) {
+			throw new IllegalArgumentException("No pixel ratios to seed");
+		}
+		
+		RenderProjection projection=RenderProjection.createDefaultProjection();
+		if (coordinatesAreGlobal) {
+			projection.clampToGrid(bounds);
+			projection.forward(bounds);
+		}
+		
+		SeedJob job=new SeedJob(this, nextId++, mapName, locator, projection, bounds,
+				minLevel, maxLevel, pixelRatios, format, maxRate);
+		jobs.put(job.getId(), job);
+		pruneDoneJobs();
+		executor.execute(job);
+		return job;
+	}
+	
+	public synchronized SeedJob getJob(int id) {
+		return jobs.get(id);
+	}
+	
+	public synchronized List<SeedJob> getJobs() {
+		return new ArrayList<SeedJob>(jobs.values());
+	}
+	
+	private void pruneDoneJobs() {
+		int done=0;
+		for (SeedJob job: jobs.values()) {
+			if (job.getState().isDone()) done++;
+		}
+		for (Iterator<SeedJob> iter=jobs.values().iterator(); done>MAX_DONE_JOBS && iter.hasNext(); ) {
+			if (iter.next().getState().isDone()) {
+				iter.remove();
+				done--;
+			}
+		}
+	}
+	
+	@Override
+	public String getStatsTitle() {
+		return "Tile Seeder";
+	}
+	
+	@Override
+	public synchronized void collectStats(Map<String, Object> stats) {
+		int active=0, paused=0;
+		for (SeedJob job: jobs.values()) {
+			SeedJob.State state=job.getState();
+			if (state==SeedJob.State.PAUSED) paused++;
+			else if (!state.isDone()) active++;
+		}
+		stats.put("activeJobs", active);
+		stats.put("pausedJobs", paused);
+	}
+}
@@ -0,0 +1,30 @@
+package net.rcode.nanomaps.server;
+
+import java.util.Map;
+
+/**
+ * A map whose tiles already exist and are read rather than rendered.  Tile
+ * requests for such a source are answered directly in the request thread
+ * and nothing goes through the RenderService.  Tiles are addressed in the
+ * default projection with a top-left origin.
+ *
+ * @author stella
+ *
+ */
+public interface TileSource extends MapSource {
+	/**
+	 * @return tile contents or null if there is no such tile
+	 * @throws Exception
+	 */
+	public byte[] readTile(int level, int x, int y) throws Exception;
+	
+	/**
+	 * @return mapnik style format name of the stored tiles (eg. "png")
+	 */
+	public String getFormat();
+	
+	/**
+	 * @return descriptive metadata about the tile set
+	 */
+	public Map<String, String> getMetadata();
+}
@@ -0,0 +1,370 @@
+package net.rcode.nanomaps.server.cache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteJob;
+import com.almworks.sqlite4java.SQLiteQueue;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+/**
+ * Access to a single SQLite database in the MBTiles layout.  Tiles are addressed
+ * with the server's top-left origin tile coordinates and flipped to the TMS
+ * row numbering that MBTiles uses on the way in and out.
+ * <p>
+ * SQLite connections are confined to the thread that opened them, so reads
+ * are done on a per-thread connection in the calling thread and never wait on
+ * writes (the database is put in WAL mode).  Each thread keeps at most
+ * MAX_READ_CONNECTIONS_PER_THREAD of them, and since only the owning thread
+ * can dispose a connection, a thread disposes its connections to closed files
+ * the next time it reads.  Writes are queued and applied in batches on a
+ * single background SQLiteQueue thread.
+ *
+ * @author stella
+ *
+ */
+public class MBTilesFile {
+	private static final Logger logger=LoggerFactory.getLogger(MBTilesFile.class);
+
+	private static final String EXISTS_TILE_SQL="SELECT 1 FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+	private static final String SELECT_TILE_SQL="SELECT tile_data FROM tiles WHERE zoom_level=? AND tile_column=? AND tile_row=?";
+	private static final String INSERT_TILE_SQL="INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?,?,?,?)";
+
+	/**
+	 * Maximum number of writes that can be queued before new writes are dropped
+	 */
+	private static final int MAX_PENDING_WRITES=4096;
+
+	/**
+	 * Most read connections a thread keeps open, across all files
+	 */
+	private static final int MAX_READ_CONNECTIONS_PER_THREAD=16;
+
+	/**
+	 * Read connections of the current thread by file, least recently used first
+	 */
+	private static final ThreadLocal<LinkedHashMap<MBTilesFile, SQLiteConnection>> readConnections=
+		new ThreadLocal<LinkedHashMap<MBTilesFile,SQLiteConnection>>() {
+			@Override
+			protected LinkedHashMap<MBTilesFile, SQLiteConnection> initialValue() {
+				return new LinkedHashMap<MBTilesFile, SQLiteConnection>(16, 0.75f, true);
+			}
+		};
+
+	private File file;
+	private boolean writable;
+	private boolean blockWhenFull;
+	private boolean durable;
+	private volatile SQLiteQueue writeQueue;
+	private volatile boolean closed;
+
+	private ConcurrentLinkedQueue<PendingWrite> pendingWrites=new ConcurrentLinkedQueue<PendingWrite>();
+	private AtomicInteger pendingWriteCount=new AtomicInteger();
+	private AtomicBoolean flushScheduled=new AtomicBoolean();
+
+	private static class PendingWrite {
+		int level, x, y;
+		byte[] contents;
+	}
+
+	public MBTilesFile(File file, boolean writable) {
+		this.file=file;
+		this.writable=writable;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * By default writes are dropped when the write queue is full, so that a
+	 * cache never holds up serving.  Set this to have writeTile wait for the
+	 * queue to drain instead (eg. for a bulk export).
+	 * @param blockWhenFull
+	 */
+	public void setBlockWhenFull(boolean blockWhenFull) {
+		this.blockWhenFull=blockWhenFull;
+	}
+
+	/**
+	 * By default a commit is only synced to disk at checkpoints, so the last
+	 * writes can be lost if the machine (rather than the process) goes down.
+	 * Set this before open to sync every commit, so that writes are durable
+	 * once flushPendingWrites returns.
+	 * @param durable
+	 */
+	public void setDurable(boolean durable) {
+		this.durable=durable;
+	}
+
+	/**
+	 * Open the file, creating the schema if writable
+	 * @throws SQLiteException
+	 */
+	public void open() throws SQLiteException {
+		if (!writable) {
+			if (!file.isFile()) {
+				throw new SQLiteException(0, "MBTiles file " + file + " does not exist");
+			}
+			return;
+		}
+
+		file.getParentFile().mkdirs();
+		writeQueue=new SQLiteQueue(file);
+		writeQueue.start();
+		writeQueue.execute(new SQLiteJob<Object>() {
+			@Override
+			protected Object job(SQLiteConnection connection) throws Throwable {
+				connection.exec("PRAGMA journal_mode=WAL");
+				connection.exec(durable ? "PRAGMA synchronous=FULL" : "PRAGMA synchronous=NORMAL");
+				connection.exec("CREATE TABLE IF NOT EXISTS metadata (name text, value text)");
+				connection.exec("CREATE UNIQUE INDEX IF NOT EXISTS name ON metadata (name)");
+				connection.exec("CREATE TABLE IF NOT EXISTS tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+				connection.exec("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+				return null;
+			}
+		}).complete();
+	}
+
+	/**
+	 * Stop the write queue, flushing pending writes.  Read connections held by
+	 * other threads are disposed the next time those threads read.
+	 */
+	public void close() {
+		closed=true;
+		disposeClosedConnections(readConnections.get());
+		if (writeQueue!=null) {
+			flushPendingWrites();
+			writeQueue.stop(true);
+			try {
+				writeQueue.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writeQueue=null;
+		}
+	}
+
+	/**
+	 * Read a tile in the calling thread
+	 * @return tile contents or null
+	 */
+	public byte[] readTile(int level, int x, int y) throws SQLiteException {
+		SQLiteConnection connection=getReadConnection();
+		SQLiteStatement st=connection.prepare(SELECT_TILE_SQL);
+		try {
+			st.bind(1, level);
+			st.bind(2, x);
+			st.bind(3, flipRow(level, y));
+			if (st.step()) {
+				return st.columnBlob(0);
+			}
+			return null;
+		} finally {
+			st.dispose();
+		}
+	}
+
+	/**
+	 * Check for a tile in the calling thread without reading its contents
+	 */
+	public boolean hasTile(int level, int x, int y) throws SQLiteException {
+		SQLiteConnection connection=getReadConnection();
+		SQLiteStatement st=connection.prepare(EXISTS_TILE_SQL);
+		try {
+			st.bind(1, level);
+			st.bind(2, x);
+			st.bind(3, flipRow(level, y));
+			return st.step();
+		} finally {
+			st.dispose();
+		}
+	}
+
+	/**
+	 * Queue a tile to be written.  Returns immediately unless the queue is full
+	 * and blockWhenFull is set.  Writes to a closed file are dropped.
+	 */
+	public void writeTile(int level, int x, int y, byte[] contents) {
+		// Read before closed, which close sets first
+		SQLiteQueue queue=writeQueue;
+		if (closed) {
+			logger.warn("Dropping tile write to " + file + ": file is closed");
+			return;
+		}
+		if (queue==null) {
+			throw new IllegalStateException("MBTiles file " + file + " is not open for writing");
+		}
+		while (pendingWriteCount.incrementAndGet()>MAX_PENDING_WRITES) {
+			pendingWriteCount.decrementAndGet();
+			if (!blockWhenFull) {
+				logger.warn("Dropping tile write to " + file + ": write queue is full");
+				return;
+			}
+			flushPendingWrites();
+		}
+
+		PendingWrite write=new PendingWrite();
+		write.level=level;
+		write.x=x;
+		write.y=y;
+		write.contents=contents;
+		pendingWrites.add(write);
+
+		if (flushScheduled.compareAndSet(false, true)) {
+			queue.execute(new SQLiteJob<Object>() {
+				@Override
+				protected Object job(SQLiteConnection connection) throws Throwable {
+					flushScheduled.set(false);
+					drainPendingWrites(connection);
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Block until all queued writes have been applied
+	 */
+	public void flushPendingWrites() {
+		SQLiteQueue queue=writeQueue;
+		if (queue==null) return;
+		queue.execute(new SQLiteJob<Object>() {
+			@Override
+			protected Object job(SQLiteConnection connection) throws Throwable {
+				drainPendingWrites(connection);
+				return null;
+			}
+		}).complete();
+	}
+
+	public Map<String,String> readMetadata() throws SQLiteException {
+		Map<String,String> ret=new HashMap<String, String>();
+		SQLiteStatement st=getReadConnection().prepare("SELECT name, value FROM metadata");
+		try {
+			while (st.step()) {
+				ret.put(st.columnString(0), st.columnString(1));
+			}
+		} finally {
+			st.dispose();
+		}
+		return ret;
+	}
+
+	public void writeMetadata(final Map<String,String> metadata) {
+		writeQueue.execute(new SQLiteJob<Object>() {
+			@Override
+			protected Object job(SQLiteConnection connection) throws Throwable {
+				SQLiteStatement st=connection.prepare("INSERT OR REPLACE INTO metadata (name, value) VALUES (?,?)");
+				try {
+					for (Map.Entry<String, String> entry: metadata.entrySet()) {
+						st.bind(1, entry.getKey());
+						st.bind(2, entry.getValue());
+						st.step();
+						st.reset();
+					}
+				} finally {
+					st.dispose();
+				}
+				return null;
+			}
+		}).complete();
+	}
+
+	/**
+	 * Apply the queued writes in one transaction.  If any of them fails the
+	 * whole batch is rolled back and lost, as a cache can afford to.
+	 */
+	private void drainPendingWrites(SQLiteConnection connection) throws SQLiteException {
+		if (pendingWrites.isEmpty()) return;
+
+		connection.exec("BEGIN");
+		boolean committed=false;
+		SQLiteStatement st=null;
+		int count=0;
+		try {
+			st=connection.prepare(INSERT_TILE_SQL);
+			PendingWrite write;
+			while ((write=pendingWrites.poll())!=null) {
+				pendingWriteCount.decrementAndGet();
+				count++;
+				st.bind(1, write.level);
+				st.bind(2, write.x);
+				st.bind(3, flipRow(write.level, write.y));
+				st.bind(4, write.contents);
+				st.step();
+				st.reset();
+			}
+			st.dispose();
+			st=null;
+			connection.exec("COMMIT");
+			committed=true;
+		} finally {
+			if (st!=null) st.dispose();
+			if (!committed) {
+				logger.error("Rolling back " + count + " tile writes to " + file);
+				try {
+					connection.exec("ROLLBACK");
+				} catch (SQLiteException e) {
+					logger.error("Error rolling back writes to " + file, e);
+				}
+			}
+		}
+	}
+
+	private SQLiteConnection getReadConnection() throws SQLiteException {
+		if (closed) {
+			throw new SQLiteException(0, "MBTiles file " + file + " is closed");
+		}
+
+		LinkedHashMap<MBTilesFile, SQLiteConnection> connections=readConnections.get();
+		disposeClosedConnections(connections);
+		SQLiteConnection connection=connections.get(this);
+		if (connection!=null) return connection;
+
+		connection=new SQLiteConnection(file);
+		connection.openReadonly();
+		connections.put(this, connection);
+		if (connections.size()>MAX_READ_CONNECTIONS_PER_THREAD) {
+			Iterator<SQLiteConnection> eldest=connections.values().iterator();
+			eldest.next().dispose();
+			eldest.remove();
+		}
+		return connection;
+	}
+
+	/**
+	 * Dispose the current thread's connections to files that have been closed
+	 */
+	private static void disposeClosedConnections(LinkedHashMap<MBTilesFile, SQLiteConnection> connections) {
+		for (Iterator<Map.Entry<MBTilesFile, SQLiteConnection>> iter=connections.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<MBTilesFile, SQLiteConnection> entry=iter.next();
+			if (entry.getKey().closed) {
+				entry.getValue().dispose();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * MBTiles uses TMS numbering with the origin at the bottom
+	 */
+	private static int flipRow(int level, int y) {
+		return (1<<level) - 1 - y;
+	}
+}
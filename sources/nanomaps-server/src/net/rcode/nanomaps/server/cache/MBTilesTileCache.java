@@ -0,0 +1,277 @@
+package net.rcode.nanomaps.server.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent TileCache that keeps one MBTiles database per map and variant
+ * under a base directory:
+ * <pre>
+ *   {basedir}/{mapName}/{variant}.mbtiles
+ * </pre>
+ * Each file is a plain MBTiles file and can be opened with other tools.
+ * Since the variant incorporates the resource identity tag, a changed map
+ * simply starts writing to a new file.  The files it leaves behind are deleted
+ * once they have not been used for the retention period: when the cache is
+ * created, and for a map whenever one of its variants gets a new file.
+ * <p>
+ * Files are opened read-only for lookups and only reopened for writing (which
+ * takes a write thread per file) when a tile is stored to them.  Opening a file
+ * only holds up requests for that file.
+ *
+ * @author stella
+ *
+ */
+public class MBTilesTileCache implements TileCache {
+	private static final Logger logger=LoggerFactory.getLogger(MBTilesTileCache.class);
+	private static final String FILE_SUFFIX=".mbtiles";
+
+	private File basedir;
+	private long retentionMillis;
+
+	/**
+	 * Slots of the files in use by map name and variant.  Synchronize on this
+	 * to access.
+	 */
+	private Map<String, Slot> slots=new HashMap<String, Slot>();
+	private boolean closed;
+
+	/**
+	 * A file and when it was last used.  The file is opened and closed under
+	 * the lock of the slot, so other files can be used in the meantime.
+	 */
+	private static class Slot {
+		volatile MBTilesFile file;
+		volatile long lastUsed;
+
+		/**
+		 * Set once the slot has been removed.  Guarded by the slot.
+		 */
+		boolean disposed;
+
+		void dispose() {
+			MBTilesFile toClose;
+			synchronized (this) {
+				disposed=true;
+				toClose=file;
+				file=null;
+			}
+			if (toClose!=null) toClose.close();
+		}
+	}
+
+	/**
+	 * @param basedir
+	 * @param retentionMillis how long a file can go unused before it is deleted
+	 */
+	public MBTilesTileCache(File basedir, long retentionMillis) {
+		this.basedir=basedir;
+		this.retentionMillis=retentionMillis;
+
+		File[] mapDirs=basedir.listFiles();
+		if (mapDirs!=null) {
+			for (File mapDir: mapDirs) {
+				if (mapDir.isDirectory()) pruneVariants(mapDir.getName());
+			}
+		}
+	}
+
+	public File getBasedir() {
+		return basedir;
+	}
+
+	@Override
+	public ChannelBuffer lookup(TileKey key) {
+		MBTilesFile file=getFile(key, false);
+		if (file==null) return null;
+
+		try {
+			byte[] contents=file.readTile(key.getLevel(), key.getX(), key.getY());
+			if (contents==null) return null;
+			return ChannelBuffers.wrappedBuffer(contents);
+		} catch (Exception e) {
+			logger.error("Error reading tile " + key + " from cache", e);
+			return null;
+		}
+	}
+
+	@Override
+	public boolean contains(TileKey key) {
+		MBTilesFile file=getFile(key, false);
+		if (file==null) return false;
+
+		try {
+			return file.hasTile(key.getLevel(), key.getX(), key.getY());
+		} catch (Exception e) {
+			logger.error("Error reading tile " + key + " from cache", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Queue a tile to be written.  The tile is dropped if its file is closed
+	 * or cannot be written.
+	 */
+	@Override
+	public void store(TileKey key, byte[] contents) {
+		MBTilesFile file=getFile(key, true);
+		if (file==null) return;
+		try {
+			file.writeTile(key.getLevel(), key.getX(), key.getY(), contents);
+		} catch (RuntimeException e) {
+			logger.error("Error writing tile " + key + " to cache", e);
+		}
+	}
+
+	@Override
+	public void storeBackground(TileKey key, byte[] contents) {
+		store(key, contents);
+	}
+
+	@Override
+	public void close() {
+		List<Slot> toClose;
+		synchronized (this) {
+			toClose=new ArrayList<Slot>(slots.values());
+			slots.clear();
+			closed=true;
+		}
+
+		for (Slot slot: toClose) {
+			// Keep the last use across restarts for pruning
+			MBTilesFile file=slot.file;
+			if (file!=null && slot.lastUsed>file.getFile().lastModified()) {
+				file.getFile().setLastModified(slot.lastUsed);
+			}
+			slot.dispose();
+		}
+	}
+
+	/**
+	 * @param key
+	 * @param create true to open the file for writing, creating it if needed
+	 * @return the file or null if it does not exist and create is false
+	 */
+	private MBTilesFile getFile(TileKey key, boolean create) {
+		String name=key.getMapName() + "/" + key.getVariant();
+		Slot slot;
+		synchronized (this) {
+			if (closed) return null;
+			slot=slots.get(name);
+			if (slot==null) {
+				slot=new Slot();
+				slots.put(name, slot);
+			}
+		}
+		slot.lastUsed=System.currentTimeMillis();
+
+		MBTilesFile file=slot.file;
+		if (file!=null && (file.isWritable() || !create)) return file;
+
+		File dbFile=new File(new File(basedir, key.getMapName()), key.getVariant() + FILE_SUFFIX);
+		boolean exists;
+		synchronized (slot) {
+			if (slot.disposed) return null;
+			file=slot.file;
+			if (file!=null && (file.isWritable() || !create)) return file;
+
+			exists=dbFile.isFile();
+			if (!exists && !create) return null;
+
+			if (file!=null) {
+				// Open read-only.  Reopen for writing.
+				slot.file=null;
+				file.close();
+			}
+
+			file=new MBTilesFile(dbFile, create);
+			try {
+				file.open();
+				if (!exists) {
+					Map<String,String> metadata=new HashMap<String, String>();
+					metadata.put("name", key.getMapName());
+					metadata.put("type", "baselayer");
+					metadata.put("version", "1.0");
+					metadata.put("description", "nanomaps-server tile cache");
+					metadata.put("format", key.getFormat());
+					metadata.put("variant", key.getVariant());
+					file.writeMetadata(metadata);
+				}
+			} catch (Exception e) {
+				logger.error("Error opening tile cache file " + dbFile, e);
+				file.close();
+				return null;
+			}
+
+			logger.info("Opened tile cache " + dbFile);
+			slot.file=file;
+		}
+
+		if (!exists) pruneVariants(key.getMapName());
+		return file;
+	}
+
+	/**
+	 * Delete the files of a map that have not been used for the retention
+	 * period.  Files that are not in use were last used when last modified.
+	 */
+	private void pruneVariants(String mapName) {
+		File[] children=new File(basedir, mapName).listFiles();
+		if (children==null) return;
+
+		long cutoff=System.currentTimeMillis() - retentionMillis;
+		Map<String, File> candidates=new HashMap<String, File>();
+		for (File child: children) {
+			String fileName=child.getName();
+			if (!fileName.endsWith(FILE_SUFFIX) || lastModified(child)>=cutoff) continue;
+			candidates.put(mapName + "/" + fileName.substring(0, fileName.length() - FILE_SUFFIX.length()), child);
+		}
+		if (candidates.isEmpty()) return;
+
+		// Disposed slots keep the files from being opened while they are deleted
+		Map<String, Slot> pruned=new HashMap<String, Slot>();
+		synchronized (this) {
+			if (closed) return;
+			for (Map.Entry<String, File> entry: candidates.entrySet()) {
+				Slot slot=slots.get(entry.getKey());
+				if (slot!=null && slot.lastUsed>=cutoff) continue;
+				if (slot==null) {
+					slot=new Slot();
+					slot.dispose();
+					slots.put(entry.getKey(), slot);
+				}
+				pruned.put(entry.getKey(), slot);
+			}
+		}
+
+		for (Map.Entry<String, Slot> entry: pruned.entrySet()) {
+			entry.getValue().dispose();
+			File child=candidates.get(entry.getKey());
+			logger.info("Deleting unused tile cache " + child);
+			child.delete();
+			new File(child.getPath() + "-wal").delete();
+			new File(child.getPath() + "-shm").delete();
+		}
+
+		synchronized (this) {
+			for (Map.Entry<String, Slot> entry: pruned.entrySet()) {
+				if (slots.get(entry.getKey())==entry.getValue()) slots.remove(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * @return when the database was last written, including its write ahead log
+	 */
+	private static long lastModified(File dbFile) {
+		return Math.max(dbFile.lastModified(), new File(dbFile.getPath() + "-wal").lastModified());
+	}
+}
@@ -0,0 +1,274 @@
+package net.rcode.nanomaps.server.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.rcode.nanomaps.server.StatsSource;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Byte bounded in-memory TileCache that keeps tile contents off of the Java heap.
+ * <p>
+ * Memory is carved into fixed size direct ByteBuffer slabs which are filled
+ * append-only, one at a time.  When the budget is exhausted the oldest slab is
+ * evicted as a unit.  Eviction is frequency aware: entries in the evicted slab
+ * that have been hit since they were written are copied forward into the
+ * current slab with their hit count halved, so hot tiles survive and cold
+ * tiles age out.
+ * <p>
+ * Hits are copied out of the slab under a read lock.  A view of the slab could
+ * still be waiting to be written to a slow client when the slab is evicted and
+ * refilled, so handing out views would risk sending another tile's bytes.
+ *
+ * @author stella
+ *
+ */
+public class MemoryTileCache implements TileCache, StatsSource {
+	private static final int MAX_FREQUENCY=15;
+
+	private final int slabSize;
+	private final int maxTileSize;
+	private final int maxSlabs;
+
+	private final ConcurrentHashMap<TileKey, Entry> index=new ConcurrentHashMap<TileKey, Entry>();
+
+	/**
+	 * Held to read slab contents.  Held exclusively to write slabs and to
+	 * manage them.
+	 */
+	private final ReentrantReadWriteLock lock=new ReentrantReadWriteLock();
+
+	// Slab management.  Guarded by lock.
+	private Slab head;
+	private LinkedList<Slab> fullSlabs=new LinkedList<Slab>();
+	private Slab spare;
+	private int allocatedSlabs;
+
+	// Stats
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+	private final AtomicLong stores=new AtomicLong();
+	private final AtomicLong droppedStores=new AtomicLong();
+	private final AtomicLong evictions=new AtomicLong();
+	private final AtomicLong reinsertions=new AtomicLong();
+
+	private static class Slab {
+		final ByteBuffer buffer;
+		final List<Entry> entries=new ArrayList<Entry>();
+		int used;
+
+		Slab(int size) {
+			buffer=ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	private static class Entry {
+		final TileKey key;
+		final Slab slab;
+		final int offset;
+		final int length;
+		volatile int frequency;
+
+		Entry(TileKey key, Slab slab, int offset, int length) {
+			this.key=key;
+			this.slab=slab;
+			this.offset=offset;
+			this.length=length;
+		}
+
+		ByteBuffer slice() {
+			ByteBuffer dup=slab.buffer.duplicate();
+			dup.limit(offset+length);
+			dup.position(offset);
+			return dup.slice();
+		}
+	}
+
+	/**
+	 * @param maxBytes total bytes of tile data to hold
+	 * @param slabSize bytes per slab.  Tiles larger than half of this are not cached.
+	 */
+	public MemoryTileCache(long maxBytes, int slabSize) {
+		this.slabSize=slabSize;
+		this.maxTileSize=slabSize/2;
+		this.maxSlabs=(int) Math.max(2, maxBytes/slabSize);
+	}
+
+	@Override
+	public ChannelBuffer lookup(TileKey key) {
+		ChannelBuffer contents=null;
+		lock.readLock().lock();
+		try {
+			// Looked up under the lock so that the slab cannot be evicted
+			// and refilled while it is copied
+			Entry entry=index.get(key);
+			if (entry!=null) {
+				int frequency=entry.frequency;
+				if (frequency<MAX_FREQUENCY) entry.frequency=frequency+1;
+				contents=ChannelBuffers.copiedBuffer(entry.slice());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (contents==null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return contents;
+	}
+
+	@Override
+	public boolean contains(TileKey key) {
+		lock.readLock().lock();
+		try {
+			return index.containsKey(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void store(TileKey key, byte[] contents) {
+		if (contents.length>maxTileSize) {
+			droppedStores.incrementAndGet();
+			return;
+		}
+
+		lock.writeLock().lock();
+		try {
+			Slab slab=reserve(contents.length);
+			if (slab==null) {
+				droppedStores.incrementAndGet();
+				return;
+			}
+
+			ByteBuffer dup=slab.buffer.duplicate();
+			dup.position(slab.used);
+			dup.put(contents);
+
+			Entry entry=new Entry(key, slab, slab.used, contents.length);
+			slab.used+=contents.length;
+			slab.entries.add(entry);
+			index.put(key, entry);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		stores.incrementAndGet();
+	}
+
+	@Override
+	public void storeBackground(TileKey key, byte[] contents) {
+		store(key, contents);
+	}
+
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			index.clear();
+			head=null;
+			fullSlabs.clear();
+			spare=null;
+			allocatedSlabs=0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String getStatsTitle() {
+		return "Memory Tile Cache";
+	}
+
+	@Override
+	public void collectStats(Map<String, Object> stats) {
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("stores", stores.get());
+		stats.put("droppedStores", droppedStores.get());
+		stats.put("evictions", evictions.get());
+		stats.put("reinsertions", reinsertions.get());
+		stats.put("entries", index.size());
+		lock.readLock().lock();
+		try {
+			stats.put("allocatedBytes", (long)allocatedSlabs * slabSize);
+			stats.put("maxBytes", (long)maxSlabs * slabSize);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Find a slab with room for length bytes, advancing the head if needed.
+	 * Must be called with the write lock held.
+	 * @return slab or null if no memory can be made available
+	 */
+	private Slab reserve(int length) {
+		if (head!=null && slabSize-head.used>=length) return head;
+
+		Slab next;
+		if (spare!=null) {
+			next=spare;
+			spare=null;
+		} else if (allocatedSlabs<maxSlabs) {
+			allocatedSlabs++;
+			next=new Slab(slabSize);
+		} else {
+			return null;
+		}
+
+		if (head!=null) fullSlabs.addLast(head);
+		head=next;
+
+		// Once the budget is allocated, evict the oldest slab to be the next
+		// spare.  Survivors of the eviction are copied forward into the fresh
+		// head, leaving at least half of it for new tiles.
+		if (allocatedSlabs>=maxSlabs && !fullSlabs.isEmpty()) {
+			spare=evictOldest();
+		}
+		return head;
+	}
+
+	/**
+	 * Evict the oldest full slab, copying its hot entries into the head.
+	 * @return the emptied slab
+	 */
+	private Slab evictOldest() {
+		Slab victim=fullSlabs.removeFirst();
+		for (Entry entry: victim.entries) {
+			if (index.get(entry.key)!=entry) continue;
+
+			int frequency=entry.frequency;
+			if (frequency>0 && head.used+entry.length<=maxTileSize) {
+				// Copy forward into the head
+				ByteBuffer dup=head.buffer.duplicate();
+				dup.position(head.used);
+				dup.put(entry.slice());
+
+				Entry moved=new Entry(entry.key, head, head.used, entry.length);
+				moved.frequency=frequency/2;
+				head.used+=entry.length;
+				head.entries.add(moved);
+				index.replace(entry.key, entry, moved);
+				reinsertions.incrementAndGet();
+			} else {
+				index.remove(entry.key, entry);
+				evictions.incrementAndGet();
+			}
+		}
+
+		victim.used=0;
+		victim.entries.clear();
+		return victim;
+	}
+}
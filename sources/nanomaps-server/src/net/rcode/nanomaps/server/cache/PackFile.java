@@ -0,0 +1,198 @@
+package net.rcode.nanomaps.server.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One append-only file of tile records in a PackStore, mapped into memory
+ * for its whole life.  A record is a header (magic, level, x, y, length)
+ * followed by the tile contents.  The header is written last so that a record
+ * torn by a crash ends the file when it is opened again.
+ * <p>
+ * The pack being appended to is mapped at its full size up front.  Once full
+ * it is sealed, which truncates it to the records it holds.
+ *
+ * @author stella
+ *
+ */
+class PackFile {
+	static final int RECORD_MAGIC=0x4e4d5054;
+	static final int HEADER_SIZE=20;
+
+	private final int id;
+	private final File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+
+	/**
+	 * Buffer the writer positions.  Readers work from the map, whose position
+	 * never changes.
+	 */
+	private ByteBuffer writeBuffer;
+	private int end;
+	private boolean sealed;
+
+	/**
+	 * Bytes of records the index still points at.  Maintained by PackStore.
+	 */
+	long liveBytes;
+
+	private PackFile(int id, File file) {
+		this.id=id;
+		this.file=file;
+	}
+
+	/**
+	 * Open a pack for appending, creating it if needed
+	 * @param size bytes to map
+	 */
+	static PackFile openActive(int id, File file, int size) throws IOException {
+		PackFile pack=new PackFile(id, file);
+		pack.raf=new RandomAccessFile(file, "rw");
+		int mapSize=(int) Math.max(size, Math.min(pack.raf.length(), Integer.MAX_VALUE));
+		pack.map=pack.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mapSize);
+		pack.writeBuffer=pack.map.duplicate();
+		pack.end=pack.scanEnd();
+		return pack;
+	}
+
+	/**
+	 * Open a sealed pack read-only
+	 */
+	static PackFile openSealed(int id, File file) throws IOException {
+		PackFile pack=new PackFile(id, file);
+		pack.raf=new RandomAccessFile(file, "r");
+		pack.map=pack.raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, pack.raf.length());
+		pack.end=pack.map.capacity();
+		pack.sealed=true;
+		return pack;
+	}
+
+	/**
+	 * @return offset just past the last complete record
+	 */
+	private int scanEnd() {
+		int offset=0;
+		int limit=map.capacity();
+		while (offset+HEADER_SIZE<=limit && map.getInt(offset)==RECORD_MAGIC) {
+			int length=map.getInt(offset+16);
+			if (length<0 || length>limit-offset-HEADER_SIZE) break;
+			offset+=HEADER_SIZE+length;
+		}
+		return offset;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return offset after the last record
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * Append a record
+	 * @return offset of the record or -1 if it does not fit
+	 */
+	int append(int level, int x, int y, byte[] contents) {
+		return append(level, x, y, ByteBuffer.wrap(contents));
+	}
+
+	/**
+	 * Append a record with the remaining bytes of contents
+	 * @return offset of the record or -1 if it does not fit
+	 */
+	int append(int level, int x, int y, ByteBuffer contents) {
+		if (sealed) throw new IllegalStateException("Pack " + file + " is sealed");
+		int length=contents.remaining();
+		if (length>map.capacity()-end-HEADER_SIZE) return -1;
+
+		int offset=end;
+		writeBuffer.position(offset+HEADER_SIZE);
+		writeBuffer.put(contents);
+		writeBuffer.putInt(offset+4, level);
+		writeBuffer.putInt(offset+8, x);
+		writeBuffer.putInt(offset+12, y);
+		writeBuffer.putInt(offset+16, length);
+		writeBuffer.putInt(offset, RECORD_MAGIC);
+		end=offset+HEADER_SIZE+length;
+		return offset;
+	}
+
+	/**
+	 * @return contents of the record at offset if it is the given tile, else
+	 * null.  The buffer is a view of the mapped file.
+	 */
+	ByteBuffer read(int offset, int length, int level, int x, int y) {
+		if (offset<0 || length<0 || offset>end-HEADER_SIZE-length) return null;
+		if (map.getInt(offset)!=RECORD_MAGIC || map.getInt(offset+16)!=length ||
+				map.getInt(offset+4)!=level || map.getInt(offset+8)!=x || map.getInt(offset+12)!=y) {
+			return null;
+		}
+
+		ByteBuffer dup=map.duplicate();
+		dup.limit(offset+HEADER_SIZE+length);
+		dup.position(offset+HEADER_SIZE);
+		return dup.slice();
+	}
+
+	/**
+	 * @return the record header fields (level, x, y, length) at offset, or
+	 * null if there is no record there
+	 */
+	int[] readHeader(int offset) {
+		if (offset<0 || offset>end-HEADER_SIZE || map.getInt(offset)!=RECORD_MAGIC) return null;
+		int length=map.getInt(offset+16);
+		if (length<0 || length>end-offset-HEADER_SIZE) return null;
+		return new int[] { map.getInt(offset+4), map.getInt(offset+8), map.getInt(offset+12), length };
+	}
+
+	/**
+	 * Stop appending and trim the file to its records.  The mapping is kept,
+	 * so views handed out stay valid.
+	 */
+	void seal() throws IOException {
+		if (sealed) return;
+		map.force();
+		raf.setLength(end);
+		sealed=true;
+		writeBuffer=null;
+	}
+
+	void force() {
+		if (!sealed) map.force();
+	}
+
+	/**
+	 * Close the file.  The mapping itself lives on until it is garbage
+	 * collected, so views still being written to sockets stay valid.
+	 */
+	void close() throws IOException {
+		if (raf!=null) {
+			raf.close();
+			raf=null;
+		}
+	}
+
+	void delete() throws IOException {
+		close();
+		if (!file.delete()) {
+			throw new IOException("Could not delete pack " + file);
+		}
+	}
+}
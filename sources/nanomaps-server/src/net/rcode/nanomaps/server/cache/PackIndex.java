@@ -0,0 +1,221 @@
+package net.rcode.nanomaps.server.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped hash table from tile address to where its record is in the
+ * pack files of a PackStore.  Opening an index only maps it, so a store of
+ * any size is ready at once and its hot part stays in the page cache.
+ * <p>
+ * The file is a header (magic, capacity, count, unused) followed by capacity
+ * slots of (long key, int pack, int offset, int length, int unused), probed
+ * linearly.  Entries are replaced but never removed, so no tombstones are
+ * needed.  When the table gets three quarters full it is rehashed into a file
+ * twice the size which is then renamed over the old one.
+ * <p>
+ * Not thread safe.  PackStore guards it with its lock.
+ *
+ * @author stella
+ *
+ */
+class PackIndex {
+	private static final int MAGIC=0x4e4d5049;
+	private static final int HEADER_SIZE=16;
+	private static final int SLOT_SIZE=24;
+	private static final int MIN_CAPACITY=1024;
+
+	/**
+	 * Largest table that fits in one mapping
+	 */
+	private static final int MAX_CAPACITY=1<<26;
+
+	/**
+	 * Highest level whose tile addresses fit in a key
+	 */
+	static final int MAX_LEVEL=29;
+
+	private File file;
+	private RandomAccessFile raf;
+	private MappedByteBuffer map;
+	private int capacity;
+	private int count;
+
+	private PackIndex(File file) {
+		this.file=file;
+	}
+
+	/**
+	 * Open an index, creating an empty one if the file does not exist or is
+	 * not an index
+	 */
+	static PackIndex open(File file) throws IOException {
+		PackIndex index=new PackIndex(file);
+		if (file.isFile() && file.length()>=HEADER_SIZE) {
+			index.map(file);
+			if (index.map.getInt(0)==MAGIC && index.capacity>=MIN_CAPACITY && Integer.bitCount(index.capacity)==1 &&
+					file.length()==HEADER_SIZE+(long)index.capacity*SLOT_SIZE) {
+				return index;
+			}
+			index.close();
+		}
+
+		create(file, MIN_CAPACITY).close();
+		index.map(file);
+		return index;
+	}
+
+	private static RandomAccessFile create(File file, int capacity) throws IOException {
+		RandomAccessFile raf=new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		raf.setLength(HEADER_SIZE+(long)capacity*SLOT_SIZE);
+		raf.writeInt(MAGIC);
+		raf.writeInt(capacity);
+		raf.writeInt(0);
+		return raf;
+	}
+
+	private void map(File file) throws IOException {
+		raf=new RandomAccessFile(file, "rw");
+		map=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		capacity=map.getInt(4);
+		count=map.getInt(8);
+	}
+
+	/**
+	 * @return key for a tile address.  Never 0, which marks an empty slot.
+	 */
+	static long key(int level, int x, int y) {
+		return 1L<<63 | (long)level<<58 | (long)x<<29 | y;
+	}
+
+	/**
+	 * @return true if the address can be stored
+	 */
+	static boolean isAddressable(int level, int x, int y) {
+		if (level<0 || level>MAX_LEVEL) return false;
+		int extent=1<<level;
+		return x>=0 && y>=0 && x<extent && y<extent;
+	}
+
+	private static int slotOf(long key, int capacity) {
+		long h=key*0x9E3779B97F4A7C15L;
+		return (int)(h>>>(64-Integer.numberOfTrailingZeros(capacity)));
+	}
+
+	/**
+	 * @return position of the slot holding key or -1
+	 */
+	int find(long key) {
+		int mask=capacity-1;
+		for (int slot=slotOf(key, capacity);; slot=(slot+1)&mask) {
+			int pos=HEADER_SIZE+slot*SLOT_SIZE;
+			long slotKey=map.getLong(pos);
+			if (slotKey==key) return pos;
+			if (slotKey==0) return -1;
+		}
+	}
+
+	int getPack(int pos) {
+		return map.getInt(pos+8);
+	}
+
+	int getOffset(int pos) {
+		return map.getInt(pos+12);
+	}
+
+	int getLength(int pos) {
+		return map.getInt(pos+16);
+	}
+
+	/**
+	 * Add or replace an entry
+	 * @return false if the index is full
+	 */
+	boolean put(long key, int pack, int offset, int length) throws IOException {
+		int pos=find(key);
+		if (pos<0) {
+			if ((count+1)*4L>capacity*3L) {
+				if (capacity>=MAX_CAPACITY) return false;
+				grow();
+			}
+			pos=insertPosition(map, capacity, key);
+			count++;
+			map.putInt(8, count);
+		}
+		writeSlot(map, pos, key, pack, offset, length);
+		return true;
+	}
+
+	private static int insertPosition(MappedByteBuffer map, int capacity, long key) {
+		int mask=capacity-1;
+		for (int slot=slotOf(key, capacity);; slot=(slot+1)&mask) {
+			int pos=HEADER_SIZE+slot*SLOT_SIZE;
+			if (map.getLong(pos)==0) return pos;
+		}
+	}
+
+	private static void writeSlot(MappedByteBuffer map, int pos, long key, int pack, int offset, int length) {
+		map.putInt(pos+8, pack);
+		map.putInt(pos+12, offset);
+		map.putInt(pos+16, length);
+		map.putLong(pos, key);
+	}
+
+	private void grow() throws IOException {
+		int newCapacity=capacity*2;
+		File newFile=new File(file.getParentFile(), file.getName() + ".new");
+		RandomAccessFile newRaf=create(newFile, newCapacity);
+		MappedByteBuffer newMap=newRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newRaf.length());
+		for (int slot=0; slot<capacity; slot++) {
+			int pos=HEADER_SIZE+slot*SLOT_SIZE;
+			long key=map.getLong(pos);
+			if (key==0) continue;
+			writeSlot(newMap, insertPosition(newMap, newCapacity, key), key,
+					map.getInt(pos+8), map.getInt(pos+12), map.getInt(pos+16));
+		}
+		newMap.putInt(8, count);
+		newMap.force();
+
+		if (!newFile.renameTo(file)) {
+			newRaf.close();
+			newFile.delete();
+			throw new IOException("Could not replace pack index " + file);
+		}
+		raf.close();
+		raf=newRaf;
+		map=newMap;
+		capacity=newCapacity;
+	}
+
+	int size() {
+		return count;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return position of the given slot number if it is in use, else -1.
+	 * For walking the whole index.
+	 */
+	int slotPosition(int slot) {
+		int pos=HEADER_SIZE+slot*SLOT_SIZE;
+		return map.getLong(pos)==0 ? -1 : pos;
+	}
+
+	void force() {
+		map.force();
+	}
+
+	void close() throws IOException {
+		if (raf!=null) {
+			raf.close();
+			raf=null;
+		}
+	}
+}
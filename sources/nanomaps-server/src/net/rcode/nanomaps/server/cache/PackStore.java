@@ -0,0 +1,299 @@
+package net.rcode.nanomaps.server.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The tiles of one map and variant in a PackTileCache: a directory holding a
+ * PackIndex and numbered pack files.  New records are appended to the newest
+ * pack.  A replaced tile leaves its old record behind as garbage, which
+ * compaction reclaims by copying the live records of a mostly dead pack
+ * forward and deleting it.
+ * <p>
+ * Lookups may come from any thread.  Everything else is only ever called from
+ * the one writer thread of the cache, so the writer reads the index without
+ * locking and only locks to change it.
+ *
+ * @author stella
+ *
+ */
+class PackStore {
+	private static final Logger logger=LoggerFactory.getLogger(PackStore.class);
+	private static final Pattern PACK_FILE_PATTERN=Pattern.compile("^(\\d+)\\.pack$");
+	private static final String INDEX_FILE_NAME="index";
+
+	private File dir;
+	private int packSize;
+	private PackIndex index;
+
+	/**
+	 * Packs by id.  Guarded by lock.
+	 */
+	private Map<Integer, PackFile> packs=new HashMap<Integer, PackFile>();
+	private PackFile active;
+	private ReentrantReadWriteLock lock=new ReentrantReadWriteLock();
+	private boolean indexFull;
+
+	// Compaction state
+	private PackFile compacting;
+	private int compactOffset;
+	private Set<Integer> uncompactable=new HashSet<Integer>();
+	private long compactedRecords;
+	private long reclaimedBytes;
+
+	PackStore(File dir, int packSize) {
+		this.dir=dir;
+		this.packSize=packSize;
+	}
+
+	File getDir() {
+		return dir;
+	}
+
+	void open() throws IOException {
+		dir.mkdirs();
+		index=PackIndex.open(new File(dir, INDEX_FILE_NAME));
+
+		int maxId=0;
+		File[] children=dir.listFiles();
+		if (children!=null) {
+			for (File child: children) {
+				Matcher m=PACK_FILE_PATTERN.matcher(child.getName());
+				if (m.matches()) maxId=Math.max(maxId, Integer.parseInt(m.group(1)));
+			}
+			for (File child: children) {
+				Matcher m=PACK_FILE_PATTERN.matcher(child.getName());
+				if (!m.matches()) continue;
+				int id=Integer.parseInt(m.group(1));
+				if (id==maxId) continue;
+				PackFile pack;
+				if (child.length()>=packSize) {
+					// Was never sealed (crash)
+					pack=PackFile.openActive(id, child, packSize);
+					pack.seal();
+				} else {
+					pack=PackFile.openSealed(id, child);
+				}
+				packs.put(id, pack);
+			}
+		}
+		active=PackFile.openActive(Math.max(maxId, 1), packFile(Math.max(maxId, 1)), packSize);
+		packs.put(active.getId(), active);
+
+		// Live bytes per pack come from the index
+		for (int slot=0; slot<index.getCapacity(); slot++) {
+			int pos=index.slotPosition(slot);
+			if (pos<0) continue;
+			PackFile pack=packs.get(index.getPack(pos));
+			if (pack!=null) pack.liveBytes+=PackFile.HEADER_SIZE+index.getLength(pos);
+		}
+	}
+
+	private File packFile(int id) {
+		return new File(dir, id + ".pack");
+	}
+
+	/**
+	 * Lookup a tile from any thread
+	 * @return view of the tile contents in the mapped pack or null
+	 */
+	ByteBuffer lookup(int level, int x, int y) {
+		if (!PackIndex.isAddressable(level, x, y)) return null;
+		lock.readLock().lock();
+		try {
+			int pos=index.find(PackIndex.key(level, x, y));
+			if (pos<0) return null;
+			PackFile pack=packs.get(index.getPack(pos));
+			if (pack==null) return null;
+			return pack.read(index.getOffset(pos), index.getLength(pos), level, x, y);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Append a tile, replacing any previous record of it.  Writer thread only.
+	 * @return false if the tile could not be stored
+	 */
+	boolean store(int level, int x, int y, ByteBuffer contents) throws IOException {
+		if (!PackIndex.isAddressable(level, x, y) || indexFull) return false;
+		int length=contents.remaining();
+		if (length>packSize-PackFile.HEADER_SIZE) return false;
+
+		int offset=active.append(level, x, y, contents);
+		if (offset<0) {
+			rollover();
+			offset=active.append(level, x, y, contents);
+		}
+
+		long key=PackIndex.key(level, x, y);
+		int oldPos=index.find(key);
+		lock.writeLock().lock();
+		try {
+			if (oldPos>=0) {
+				PackFile oldPack=packs.get(index.getPack(oldPos));
+				if (oldPack!=null) oldPack.liveBytes-=PackFile.HEADER_SIZE+index.getLength(oldPos);
+			}
+			if (!index.put(key, active.getId(), offset, length)) {
+				logger.warn("Pack index of " + dir + " is full.  No more tiles will be stored.");
+				indexFull=true;
+				return false;
+			}
+			active.liveBytes+=PackFile.HEADER_SIZE+length;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Seal the active pack and start a new one
+	 */
+	private void rollover() throws IOException {
+		active.seal();
+		PackFile next=PackFile.openActive(active.getId()+1, packFile(active.getId()+1), packSize);
+		lock.writeLock().lock();
+		try {
+			packs.put(next.getId(), next);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		active=next;
+	}
+
+	/**
+	 * Do a bounded amount of compaction work.  Writer thread only.
+	 * @param maxRecords most records to look at
+	 * @return true if there was work to do
+	 */
+	boolean compactStep(int maxRecords) throws IOException {
+		if (compacting==null) {
+			compacting=pickCompactionVictim();
+			compactOffset=0;
+			if (compacting==null) return false;
+		}
+		if (compacting.liveBytes==0) {
+			finishCompaction();
+			return true;
+		}
+
+		for (int i=0; i<maxRecords && compactOffset<compacting.getEnd(); i++) {
+			int[] header=compacting.readHeader(compactOffset);
+			if (header==null) break;
+			int offset=compactOffset;
+			compactOffset+=PackFile.HEADER_SIZE+header[3];
+
+			// Only records the index points at are live
+			int pos=index.find(PackIndex.key(header[0], header[1], header[2]));
+			if (pos<0 || index.getPack(pos)!=compacting.getId() || index.getOffset(pos)!=offset) continue;
+
+			ByteBuffer contents=compacting.read(offset, header[3], header[0], header[1], header[2]);
+			if (store(header[0], header[1], header[2], contents)) compactedRecords++;
+		}
+
+		if (compactOffset>=compacting.getEnd() || compacting.readHeader(compactOffset)==null) {
+			finishCompaction();
+		}
+		return true;
+	}
+
+	private void finishCompaction() throws IOException {
+		PackFile done=compacting;
+		compacting=null;
+		if (done.liveBytes>0) {
+			// Something kept us from moving every record.  Keep the pack.
+			logger.warn("Could not compact pack " + done.getFile() + ": " + done.liveBytes + " live bytes remain");
+			uncompactable.add(done.getId());
+			return;
+		}
+
+		lock.writeLock().lock();
+		try {
+			packs.remove(done.getId());
+		} finally {
+			lock.writeLock().unlock();
+		}
+		reclaimedBytes+=done.getEnd();
+		done.delete();
+		logger.info("Compacted pack " + done.getFile());
+	}
+
+	/**
+	 * @return the sealed pack with the least live data, if under half of it is live
+	 */
+	private PackFile pickCompactionVictim() {
+		PackFile victim=null;
+		double victimRatio=0.5;
+		for (PackFile pack: packs.values()) {
+			if (!pack.isSealed() || uncompactable.contains(pack.getId())) continue;
+			double ratio=pack.getEnd()==0 ? 0 : (double)pack.liveBytes / pack.getEnd();
+			if (ratio<victimRatio) {
+				victim=pack;
+				victimRatio=ratio;
+			}
+		}
+		return victim;
+	}
+
+	/**
+	 * Add this store's figures to the given totals (packs, bytes, live bytes, tiles)
+	 */
+	void collectStats(long[] totals) {
+		lock.readLock().lock();
+		try {
+			for (PackFile pack: packs.values()) {
+				totals[0]++;
+				totals[1]+=pack.getEnd();
+				totals[2]+=pack.liveBytes;
+			}
+			totals[3]+=index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long getCompactedRecords() {
+		return compactedRecords;
+	}
+
+	long getReclaimedBytes() {
+		return reclaimedBytes;
+	}
+
+	/**
+	 * Write everything out.  Writer thread only.
+	 */
+	void force() {
+		active.force();
+		index.force();
+	}
+
+	void close() throws IOException {
+		List<PackFile> toClose;
+		lock.writeLock().lock();
+		try {
+			force();
+			toClose=new ArrayList<PackFile>(packs.values());
+			packs.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		for (PackFile pack: toClose) {
+			pack.close();
+		}
+		index.close();
+	}
+}
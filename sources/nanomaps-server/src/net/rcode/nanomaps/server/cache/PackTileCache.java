@@ -0,0 +1,300 @@
+package net.rcode.nanomaps.server.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.rcode.nanomaps.server.StatsSource;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent TileCache for large, read-mostly pyramids.  Each map and
+ * variant gets a directory of append-only pack files and a memory mapped
+ * index:
+ * <pre>
+ *   {basedir}/{mapName}/{variant}/index
+ *   {basedir}/{mapName}/{variant}/{n}.pack
+ * </pre>
+ * Hits are returned as a ChannelBuffer wrapping a slice of the mapped pack,
+ * so tile contents are never copied onto the Java heap and are sent to the
+ * socket straight from the page cache.  Lookups only take a read lock.
+ * <p>
+ * Stores are queued to a single writer thread, which appends them to the
+ * packs and, when it has nothing else to do, compacts packs that replaced
+ * tiles have left mostly dead.
+ *
+ * @author stella
+ *
+ */
+public class PackTileCache implements TileCache, StatsSource {
+	private static final Logger logger=LoggerFactory.getLogger(PackTileCache.class);
+
+	/**
+	 * Maximum number of stores that can be queued before new stores are dropped
+	 */
+	private static final int MAX_PENDING_WRITES=4096;
+
+	/**
+	 * Records looked at per compaction step, between checks for new stores
+	 */
+	private static final int COMPACT_STEP_RECORDS=256;
+
+	private static final long IDLE_POLL_MILLIS=1000;
+
+	private File basedir;
+	private int packSize;
+
+	/**
+	 * Open stores by map name and variant.  Created under the lock of this.
+	 */
+	private ConcurrentHashMap<String, PackStore> packStores=new ConcurrentHashMap<String, PackStore>();
+
+	private LinkedBlockingQueue<PendingWrite> pendingWrites=new LinkedBlockingQueue<PendingWrite>(MAX_PENDING_WRITES);
+	private Thread writer;
+	private volatile boolean closed;
+
+	// Stats
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+	private final AtomicLong stores=new AtomicLong();
+	private final AtomicLong droppedStores=new AtomicLong();
+
+	private static class PendingWrite {
+		TileKey key;
+		byte[] contents;
+
+		/**
+		 * Set for a flush marker
+		 */
+		CountDownLatch flushed;
+	}
+
+	/**
+	 * @param basedir
+	 * @param packSize bytes per pack file.  Tiles larger than this are not cached.
+	 */
+	public PackTileCache(File basedir, int packSize) {
+		this.basedir=basedir;
+		this.packSize=packSize;
+
+		writer=new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "PackTileCache writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public File getBasedir() {
+		return basedir;
+	}
+
+	@Override
+	public ChannelBuffer lookup(TileKey key) {
+		PackStore store=getStore(key, false);
+		ByteBuffer contents=store==null ? null : store.lookup(key.getLevel(), key.getX(), key.getY());
+		if (contents==null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return ChannelBuffers.wrappedBuffer(contents);
+	}
+
+	@Override
+	public boolean contains(TileKey key) {
+		PackStore store=getStore(key, false);
+		return store!=null && store.lookup(key.getLevel(), key.getX(), key.getY())!=null;
+	}
+
+	@Override
+	public void store(TileKey key, byte[] contents) {
+		if (closed || contents.length>packSize-PackFile.HEADER_SIZE) {
+			droppedStores.incrementAndGet();
+			return;
+		}
+
+		PendingWrite write=new PendingWrite();
+		write.key=key;
+		write.contents=contents;
+		if (!pendingWrites.offer(write)) {
+			droppedStores.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void storeBackground(TileKey key, byte[] contents) {
+		store(key, contents);
+	}
+
+	/**
+	 * Block until all queued stores have been written
+	 */
+	public void flush() {
+		if (closed) return;
+		PendingWrite marker=new PendingWrite();
+		marker.flushed=new CountDownLatch(1);
+		try {
+			pendingWrites.put(marker);
+			marker.flushed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close() {
+		flush();
+		closed=true;
+		writer.interrupt();
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<PackStore> toClose;
+		synchronized (this) {
+			toClose=new ArrayList<PackStore>(packStores.values());
+			packStores.clear();
+		}
+		for (PackStore store: toClose) {
+			try {
+				store.close();
+			} catch (IOException e) {
+				logger.error("Error closing tile cache " + store.getDir(), e);
+			}
+		}
+	}
+
+	private void writeLoop() {
+		boolean idle=false;
+		while (!closed) {
+			PendingWrite write;
+			try {
+				write=idle ? pendingWrites.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS) : pendingWrites.poll();
+			} catch (InterruptedException e) {
+				continue;
+			}
+
+			if (write!=null) {
+				idle=false;
+				if (write.flushed!=null) {
+					for (PackStore store: packStores.values()) {
+						store.force();
+					}
+					write.flushed.countDown();
+					continue;
+				}
+				writeTile(write);
+				continue;
+			}
+
+			// Nothing queued.  Make some progress on compaction.
+			idle=!compactStep();
+		}
+	}
+
+	private void writeTile(PendingWrite write) {
+		TileKey key=write.key;
+		PackStore store=getStore(key, true);
+		if (store==null) {
+			droppedStores.incrementAndGet();
+			return;
+		}
+
+		try {
+			if (store.store(key.getLevel(), key.getX(), key.getY(), ByteBuffer.wrap(write.contents))) {
+				stores.incrementAndGet();
+			} else {
+				droppedStores.incrementAndGet();
+			}
+		} catch (IOException e) {
+			logger.error("Error writing tile " + key + " to cache", e);
+			droppedStores.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return true if any store had compaction work
+	 */
+	private boolean compactStep() {
+		boolean worked=false;
+		for (PackStore store: packStores.values()) {
+			try {
+				if (store.compactStep(COMPACT_STEP_RECORDS)) worked=true;
+			} catch (IOException e) {
+				logger.error("Error compacting tile cache " + store.getDir(), e);
+			}
+		}
+		return worked;
+	}
+
+	private PackStore getStore(TileKey key, boolean create) {
+		String name=key.getMapName() + "/" + key.getVariant();
+		PackStore store=packStores.get(name);
+		if (store!=null) return store;
+
+		File dir=new File(new File(basedir, key.getMapName()), key.getVariant());
+		if (!create && !dir.isDirectory()) return null;
+
+		synchronized (this) {
+			store=packStores.get(name);
+			if (store!=null || closed) return store;
+
+			store=new PackStore(dir, packSize);
+			try {
+				store.open();
+			} catch (IOException e) {
+				logger.error("Error opening tile cache " + dir, e);
+				return null;
+			}
+
+			logger.info("Opened tile cache " + dir);
+			packStores.put(name, store);
+			return store;
+		}
+	}
+
+	@Override
+	public String getStatsTitle() {
+		return "Pack Tile Cache";
+	}
+
+	@Override
+	public void collectStats(Map<String, Object> stats) {
+		long[] totals=new long[4];
+		long compacted=0, reclaimed=0;
+		for (PackStore store: packStores.values()) {
+			store.collectStats(totals);
+			compacted+=store.getCompactedRecords();
+			reclaimed+=store.getReclaimedBytes();
+		}
+
+		stats.put("hits", hits.get());
+		stats.put("misses", misses.get());
+		stats.put("stores", stores.get());
+		stats.put("droppedStores", droppedStores.get());
+		stats.put("pendingStores", pendingWrites.size());
+		stats.put("tiles", totals[3]);
+		stats.put("packFiles", totals[0]);
+		stats.put("packBytes", totals[1]);
+		stats.put("liveBytes", totals[2]);
+		stats.put("compactedTiles", compacted);
+		stats.put("reclaimedBytes", reclaimed);
+	}
+}
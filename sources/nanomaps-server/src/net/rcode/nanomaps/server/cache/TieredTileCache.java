@@ -0,0 +1,57 @@
+package net.rcode.nanomaps.server.cache;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Chains a fast front cache with a larger backing cache.  Hits in the backing
+ * cache are promoted to the front and stores go to both, except background
+ * stores, which only go to the back.
+ *
+ * @author stella
+ *
+ */
+public class TieredTileCache implements TileCache {
+	private TileCache front;
+	private TileCache back;
+
+	public TieredTileCache(TileCache front, TileCache back) {
+		this.front=front;
+		this.back=back;
+	}
+
+	@Override
+	public ChannelBuffer lookup(TileKey key) {
+		ChannelBuffer contents=front.lookup(key);
+		if (contents!=null) return contents;
+
+		contents=back.lookup(key);
+		if (contents!=null) {
+			byte[] promoted=new byte[contents.readableBytes()];
+			contents.getBytes(contents.readerIndex(), promoted);
+			front.store(key, promoted);
+		}
+		return contents;
+	}
+
+	@Override
+	public boolean contains(TileKey key) {
+		return front.contains(key) || back.contains(key);
+	}
+
+	@Override
+	public void store(TileKey key, byte[] contents) {
+		front.store(key, contents);
+		back.store(key, contents);
+	}
+
+	@Override
+	public void storeBackground(TileKey key, byte[] contents) {
+		back.storeBackground(key, contents);
+	}
+
+	@Override
+	public void close() {
+		front.close();
+		back.close();
+	}
+}
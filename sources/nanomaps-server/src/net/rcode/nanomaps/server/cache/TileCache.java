@@ -0,0 +1,49 @@
+package net.rcode.nanomaps.server.cache;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A store of previously rendered tiles.
+ *
+ * @author stella
+ *
+ */
+public interface TileCache {
+	/**
+	 * Lookup a tile.  This is called on web worker threads and should not
+	 * block on anything other than local I/O.
+	 * @param key
+	 * @return the tile contents or null if not cached
+	 */
+	public ChannelBuffer lookup(TileKey key);
+
+	/**
+	 * Check whether a tile is cached without fetching it.  Unlike lookup this
+	 * has no side effects: nothing is counted, promoted or marked as used.
+	 * @param key
+	 * @return true if the tile is cached
+	 */
+	public boolean contains(TileKey key);
+
+	/**
+	 * Store a rendered tile.  Implementations should return quickly and defer
+	 * expensive work to the background.
+	 * @param key
+	 * @param contents
+	 */
+	public void store(TileKey key, byte[] contents);
+
+	/**
+	 * Store a tile that nobody is waiting for, such as one rendered by a seed
+	 * job.  Caches with a fast tier should keep it out of that tier so that
+	 * bulk rendering does not push out the tiles being served.
+	 * @param key
+	 * @param contents
+	 */
+	public void storeBackground(TileKey key, byte[] contents);
+
+	/**
+	 * Release all resources, flushing pending writes
+	 */
+	public void close();
+}
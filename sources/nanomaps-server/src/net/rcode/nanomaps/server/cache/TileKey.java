@@ -0,0 +1,82 @@
+package net.rcode.nanomaps.server.cache;
+
+/**
+ * Identifies a single cached tile.  The variant is an opaque digest of everything
+ * other than the tile address that affects the rendered bytes (resource identity,
+ * size, pixel ratio, format, projection parameters).
+ *
+ * @author stella
+ *
+ */
+public final class TileKey {
+	private final String mapName;
+	private final String variant;
+	private final int level;
+	private final int x;
+	private final int y;
+	private final String format;
+
+	public TileKey(String mapName, String variant, String format, int level, int x, int y) {
+		this.mapName=mapName;
+		this.variant=variant;
+		this.format=format;
+		this.level=level;
+		this.x=x;
+		this.y=y;
+	}
+
+	public String getMapName() {
+		return mapName;
+	}
+
+	public String getVariant() {
+		return variant;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	/**
+	 * @return a key for another tile of the same map and variant
+	 */
+	public TileKey sibling(int level, int x, int y) {
+		return new TileKey(mapName, variant, format, level, x, y);
+	}
+
+	@Override
+	public int hashCode() {
+		int h=mapName.hashCode();
+		h=h*31 + variant.hashCode();
+		h=h*31 + level;
+		h=h*31 + x;
+		h=h*31 + y;
+		return h;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj==this) return true;
+		if (!(obj instanceof TileKey)) return false;
+		TileKey other=(TileKey) obj;
+		return level==other.level && x==other.x && y==other.y &&
+			mapName.equals(other.mapName) && variant.equals(other.variant);
+	}
+
+	@Override
+	public String toString() {
+		return mapName + "/" + variant + "/" + level + "/" + x + "/" + y;
+	}
+}
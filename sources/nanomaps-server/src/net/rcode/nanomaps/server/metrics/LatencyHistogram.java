@@ -0,0 +1,104 @@
+package net.rcode.nanomaps.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size, lock free histogram of durations in microseconds.  Buckets are
+ * log-linear in the style of HdrHistogram: each power of two is split into
+ * eight linear sub-buckets, so a recorded value is known to within 12.5%
+ * from a microsecond up to about 38 hours.  Recording is a couple of atomic
+ * increments and never allocates.
+ *
+ * @author stella
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS=3;
+	private static final int SUB_COUNT=1<<SUB_BITS;
+	private static final int MAX_EXPONENT=36;
+	private static final long MAX_VALUE=(1L<<(MAX_EXPONENT+1))-1;
+	private static final int BUCKET_COUNT=(MAX_EXPONENT-SUB_BITS+2)*SUB_COUNT;
+	
+	private final AtomicLongArray counts=new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count=new AtomicLong();
+	private final AtomicLong sum=new AtomicLong();
+	
+	/**
+	 * Record a duration
+	 * @param micros
+	 */
+	public void record(long micros) {
+		if (micros<0) micros=0;
+		else if (micros>MAX_VALUE) micros=MAX_VALUE;
+		counts.incrementAndGet(bucketOf(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+	}
+	
+	/**
+	 * Record a duration measured with System.nanoTime
+	 * @param nanos
+	 */
+	public void recordNanos(long nanos) {
+		record(nanos/1000);
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * @return sum of all recorded values in microseconds
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+	
+	/**
+	 * @return number of recorded values known to be at most the given value.
+	 * Values sharing a bucket with the limit but larger than it are not counted.
+	 */
+	public long countAtOrBelow(long micros) {
+		long total=0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			if (upperBoundOf(i)>micros) break;
+			total+=counts.get(i);
+		}
+		return total;
+	}
+	
+	/**
+	 * @return the value below which the given fraction of recorded values fall,
+	 * to the precision of the buckets
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long total=count.get();
+		if (total==0) return 0;
+		long target=(long) Math.ceil(quantile * total);
+		if (target<1) target=1;
+		
+		long seen=0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			seen+=counts.get(i);
+			if (seen>=target) return upperBoundOf(i);
+		}
+		return MAX_VALUE;
+	}
+	
+	static int bucketOf(long value) {
+		if (value<SUB_COUNT) return (int) value;
+		int exponent=63 - Long.numberOfLeadingZeros(value);
+		int sub=(int) ((value >>> (exponent-SUB_BITS)) & (SUB_COUNT-1));
+		return (exponent-SUB_BITS+1)*SUB_COUNT + sub;
+	}
+	
+	static long upperBoundOf(int bucket) {
+		if (bucket<SUB_COUNT) return bucket;
+		int exponent=bucket/SUB_COUNT + SUB_BITS - 1;
+		int sub=bucket%SUB_COUNT;
+		int shift=exponent-SUB_BITS;
+		long lower=((long)(SUB_COUNT+sub)) << shift;
+		return lower + (1L<<shift) - 1;
+	}
+}
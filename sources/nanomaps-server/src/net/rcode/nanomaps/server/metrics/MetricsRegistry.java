@@ -0,0 +1,53 @@
+package net.rcode.nanomaps.server.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the latency histograms of the server, one per metric name and label set
+ *
+ * @author stella
+ *
+ */
+public class MetricsRegistry {
+	private static class Series {
+		final String name;
+		final String labelString;
+		final LatencyHistogram histogram=new LatencyHistogram();
+		
+		Series(String name, String labelString) {
+			this.name=name;
+			this.labelString=labelString;
+		}
+	}
+	
+	private ConcurrentHashMap<String, Series> series=new ConcurrentHashMap<String, Series>();
+	
+	/**
+	 * Get or create a histogram
+	 * @param name metric name
+	 * @param labels alternating label names and values
+	 */
+	public LatencyHistogram histogram(String name, String... labels) {
+		String labelString=PrometheusWriter.labelString(labels);
+		String key=name + '{' + labelString + '}';
+		Series existing=series.get(key);
+		if (existing==null) {
+			Series created=new Series(name, labelString);
+			existing=series.putIfAbsent(key, created);
+			if (existing==null) existing=created;
+		}
+		return existing.histogram;
+	}
+	
+	/**
+	 * Write all histograms, grouped by name
+	 */
+	public void write(PrometheusWriter out) {
+		Map<String, Series> sorted=new TreeMap<String, Series>(series);
+		for (Series s: sorted.values()) {
+			out.histogramSeries(s.name, s.labelString, s.histogram);
+		}
+	}
+}
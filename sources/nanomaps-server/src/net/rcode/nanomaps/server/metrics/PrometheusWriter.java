@@ -0,0 +1,116 @@
+package net.rcode.nanomaps.server.metrics;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes metrics in the Prometheus text exposition format.  Labels are given
+ * as alternating name/value pairs.
+ *
+ * @author stella
+ *
+ */
+public class PrometheusWriter {
+	/**
+	 * Upper bounds (in seconds) of the buckets histograms are exported with
+	 */
+	private static final double[] BUCKET_BOUNDS={
+		0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+	};
+	
+	private StringBuilder out=new StringBuilder(16384);
+	private Set<String> typed=new HashSet<String>();
+	
+	public void gauge(String name, double value, String... labels) {
+		sample(name, "gauge", name, labelString(labels), value);
+	}
+	
+	public void counter(String name, double value, String... labels) {
+		sample(name, "counter", name, labelString(labels), value);
+	}
+	
+	/**
+	 * Write a histogram of microsecond values in seconds
+	 */
+	public void histogram(String name, LatencyHistogram histogram, String... labels) {
+		histogramSeries(name, labelString(labels), histogram);
+	}
+	
+	/**
+	 * Write a histogram with labels already formatted
+	 */
+	public void histogramSeries(String name, String labelString, LatencyHistogram histogram) {
+		String prefix=labelString.isEmpty() ? "" : labelString + ",";
+		for (double bound: BUCKET_BOUNDS) {
+			long count=histogram.countAtOrBelow((long) (bound*1000000));
+			sample(name, "histogram", name + "_bucket", prefix + "le=\"" + bound + "\"", count);
+		}
+		sample(name, "histogram", name + "_bucket", prefix + "le=\"+Inf\"", histogram.getCount());
+		sample(name, "histogram", name + "_sum", labelString, histogram.getSum() / 1000000.0);
+		sample(name, "histogram", name + "_count", labelString, histogram.getCount());
+	}
+	
+	/**
+	 * Write a sample with labels already formatted (comma separated name="value")
+	 */
+	public void sample(String family, String type, String name, String labelString, double value) {
+		if (typed.add(family)) {
+			out.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+		}
+		out.append(name);
+		if (!labelString.isEmpty()) {
+			out.append('{').append(labelString).append('}');
+		}
+		out.append(' ');
+		if (value==Math.rint(value) && Math.abs(value)<1e15) out.append((long) value);
+		else out.append(value);
+		out.append('\n');
+	}
+	
+	/**
+	 * Turn free text into a valid metric name component
+	 */
+	public static String sanitizeName(String text) {
+		StringBuilder name=new StringBuilder(text.length());
+		boolean underscore=false;
+		for (int i=0; i<text.length(); i++) {
+			char c=Character.toLowerCase(text.charAt(i));
+			boolean valid=(c>='a' && c<='z') || (c>='0' && c<='9');
+			if (valid) {
+				if (underscore && name.length()>0) name.append('_');
+				name.append(c);
+				underscore=false;
+			} else {
+				underscore=true;
+			}
+		}
+		return name.toString();
+	}
+	
+	/**
+	 * Format label pairs
+	 */
+	public static String labelString(String... labels) {
+		if (labels.length==0) return "";
+		StringBuilder ret=new StringBuilder(64);
+		for (int i=0; i+1<labels.length; i+=2) {
+			if (ret.length()>0) ret.append(',');
+			ret.append(labels[i]).append("=\"");
+			String value=labels[i+1];
+			if (value==null) value="";
+			for (int j=0; j<value.length(); j++) {
+				char c=value.charAt(j);
+				if (c=='\\' || c=='"') ret.append('\\').append(c);
+				else if (c=='\n') ret.append("\\n");
+				else ret.append(c);
+			}
+			ret.append('"');
+		}
+		return ret.toString();
+	}
+	
+	@Override
+	public String toString() {
+		return out.toString();
+	}
+}
@@ -7,25 +7,40 @@ import mapnik.Projection;
 /**
  * RenderProjection that uses Proj4 (via mapnik.Projection class for its backing
  * implementation.
+ * <p>
+ * The native projection comes from the shared ProjectionCache and is
+ * released by dispose.  Only the tile grid (origin and reference resolution)
+ * belongs to this instance.
  * 
  * @author stella
  *
  */
 public class Proj4RenderProjection extends RenderProjection {
+	private ProjectionCache cache;
+	private ProjectionCache.Entry cacheEntry;
 	protected Projection projection;
 	protected String srs;
 	protected double referenceResolution=100000;
 	protected Coord origin;
 	
 	public Proj4RenderProjection(String srs) {
-		this.projection=new Projection(srs);
-		this.srs=srs;
+		this(ProjectionCache.getShared(), srs);
+	}
+	
+	public Proj4RenderProjection(ProjectionCache cache, String srs) {
+		this.cache=cache;
+		this.cacheEntry=cache.acquire(srs);
+		this.projection=cacheEntry.getProjection();
+		this.srs=cacheEntry.getSrs();
 		this.origin=new Coord();
 	}
 	
 	@Override
 	public void dispose() {
-		projection.dispose();
+		if (cacheEntry!=null) {
+			cache.release(cacheEntry);
+			cacheEntry=null;
+		}
 	}
 
 	@Override
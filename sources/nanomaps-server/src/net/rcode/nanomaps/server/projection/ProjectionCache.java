@@ -0,0 +1,152 @@
+package net.rcode.nanomaps.server.projection;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import mapnik.Projection;
+
+/**
+ * Bounded cache of native proj4 projections by srs, so that requests for
+ * the same srs share one instead of each parsing its own.  The native
+ * projection is immutable once created (mapnik serializes calls into proj4
+ * where it needs to), so it can be used from any number of threads.
+ * <p>
+ * Entries are reference counted.  When the cache is over its size, the least
+ * recently used entries are dropped, but a projection is only disposed once
+ * the last holder has released it.
+ * 
+ * @author stella
+ *
+ */
+public class ProjectionCache {
+	private static final ProjectionCache shared=new ProjectionCache(32);
+	
+	/**
+	 * A native projection and its reference count
+	 */
+	public static class Entry {
+		private final String srs;
+		private final Projection projection;
+		private int references;
+		private boolean evicted;
+		private boolean disposed;
+		
+		Entry(String srs, Projection projection) {
+			this.srs=srs;
+			this.projection=projection;
+		}
+		
+		public String getSrs() {
+			return srs;
+		}
+		
+		public Projection getProjection() {
+			return projection;
+		}
+		
+		boolean isDisposed() {
+			return disposed;
+		}
+		
+		void dispose() {
+			disposed=true;
+			projection.dispose();
+		}
+	}
+	
+	private final int maxSize;
+	private final LinkedHashMap<String, Entry> entries=new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long hits;
+	private long misses;
+	
+	public ProjectionCache(int maxSize) {
+		this.maxSize=maxSize;
+	}
+	
+	/**
+	 * @return the cache used by Proj4RenderProjection
+	 */
+	public static ProjectionCache getShared() {
+		return shared;
+	}
+	
+	/**
+	 * Normalize an srs so that trivially different spellings share an entry
+	 */
+	public static String normalizeSrs(String srs) {
+		return srs.trim().replaceAll("\\s+", " ");
+	}
+	
+	/**
+	 * Get the projection for srs, creating it if needed.  The caller must
+	 * release the returned entry when done with it.
+	 * @param srs proj4 init string
+	 * @throws RuntimeException if proj4 can't parse srs
+	 */
+	public synchronized Entry acquire(String srs) {
+		String key=normalizeSrs(srs);
+		Entry entry=entries.get(key);
+		if (entry!=null) {
+			hits++;
+		} else {
+			misses++;
+			entry=new Entry(key, new Projection(key));
+			entries.put(key, entry);
+			trim();
+		}
+		
+		entry.references++;
+		return entry;
+	}
+	
+	/**
+	 * Release an entry returned by acquire
+	 */
+	public synchronized void release(Entry entry) {
+		if (entry.references<=0) {
+			throw new IllegalStateException("Projection released more times than acquired");
+		}
+		entry.references--;
+		if (entry.evicted && entry.references==0) {
+			entry.dispose();
+		}
+	}
+	
+	/**
+	 * Drop every entry, disposing those not in use
+	 */
+	public synchronized void clear() {
+		for (Entry entry: entries.values()) {
+			evict(entry);
+		}
+		entries.clear();
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	private void trim() {
+		Iterator<Entry> iter=entries.values().iterator();
+		while (entries.size()>maxSize && iter.hasNext()) {
+			Entry entry=iter.next();
+			iter.remove();
+			evict(entry);
+		}
+	}
+	
+	private void evict(Entry entry) {
+		entry.evicted=true;
+		if (entry.references==0) {
+			entry.dispose();
+		}
+	}
+}
@@ -4,6 +4,10 @@ import mapnik.Box2d;
 import mapnik.Coord;
 
 public abstract class RenderProjection {
+	/**
+	 * Slack for rounding in tileRange
+	 */
+	private static final double TILE_EPSILON=1e-9;
 
 	/**
 	 * @return Create a new instance of the default tile projection
@@ -24,6 +28,10 @@ public abstract class RenderProjection {
 	}
 
 	public static RenderProjection createFromProj4Params(String srsDefn) {
+		if (WebMercatorRenderProjection.isWebMercator(srsDefn)) {
+			return new WebMercatorRenderProjection();
+		}
+		
 		try {
 			return new Proj4RenderProjection(srsDefn);
 		} catch (Exception e) {
@@ -56,6 +64,14 @@ public abstract class RenderProjection {
 	public abstract void forward(Box2d bounds);
 	public abstract void inverse(Box2d bounds);
 
+	/**
+	 * Clamp geographic bounds to the area the tile grid covers, before they
+	 * are projected to find a tile range.  Does nothing by default.
+	 * @param bounds longitude/latitude envelope
+	 */
+	public void clampToGrid(Box2d bounds) {
+	}
+
 	/**
 	 * Project tile coordinates to an envelope in the projection coordinate system
 	 * @param level
@@ -68,6 +84,49 @@ public abstract class RenderProjection {
 	public abstract Box2d projectTile(int level, int x, int y, int tileWidth,
 			int tileHeight);
 
+	/**
+	 * Find the tiles that cover an area, using projectTile to locate the tile grid.
+	 * The result is clamped to the 2^level x 2^level tiles of the level, so
+	 * an area reaching past the edge of the world (or to infinity, as the
+	 * poles do in mercator) only covers the tiles that exist.
+	 * @param bounds envelope in the projection coordinate system
+	 * @param level
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @return minX, minY, maxX, maxY (inclusive)
+	 */
+	public int[] tileRange(Box2d bounds, int level, int tileWidth, int tileHeight) {
+		Box2d origin=projectTile(level, 0, 0, tileWidth, tileHeight);
+		Box2d diagonal=projectTile(level, 1, 1, tileWidth, tileHeight);
+		double tileSpanX=origin.maxx - origin.minx;
+		double tileSpanY=origin.maxy - origin.miny;
+		
+		int minX=(int)Math.floor((bounds.minx - origin.minx) / tileSpanX + TILE_EPSILON);
+		int maxX=(int)Math.ceil((bounds.maxx - origin.minx) / tileSpanX - TILE_EPSILON) - 1;
+		int minY, maxY;
+		if (diagonal.miny<origin.miny) {
+			// Rows count down from the top
+			minY=(int)Math.floor((origin.maxy - bounds.maxy) / tileSpanY + TILE_EPSILON);
+			maxY=(int)Math.ceil((origin.maxy - bounds.miny) / tileSpanY - TILE_EPSILON) - 1;
+		} else {
+			minY=(int)Math.floor((bounds.miny - origin.miny) / tileSpanY + TILE_EPSILON);
+			maxY=(int)Math.ceil((bounds.maxy - origin.miny) / tileSpanY - TILE_EPSILON) - 1;
+		}
+		
+		int last=(1<<level) - 1;
+		minX=clamp(minX, 0, last);
+		minY=clamp(minY, 0, last);
+		maxX=clamp(maxX, 0, last);
+		maxY=clamp(maxY, 0, last);
+		
+		// A degenerate area still touches one tile
+		return new int[] { minX, minY, Math.max(minX, maxX), Math.max(minY, maxY) };
+	}
+	
+	private static int clamp(int value, int min, int max) {
+		return value<min ? min : (value>max ? max : value);
+	}
+	
 	/**
 	 * @param level
 	 * @return The resolution in projected units/px for the given level
@@ -1,21 +1,153 @@
 package net.rcode.nanomaps.server.projection;
 
+import mapnik.Box2d;
+import mapnik.Coord;
+
 
 /**
- * Standard web mercator tile system
+ * Standard web mercator tile system.  Spherical mercator is closed form, so
+ * this is done in Java rather than through Proj4: no native projection has to
+ * be created (and disposed) for each request.  The results match
+ * Proj4RenderProjection with SRS to within floating point error.
+ * 
  * @author stella
  *
  */
-public class WebMercatorRenderProjection extends Proj4RenderProjection {
+public class WebMercatorRenderProjection extends RenderProjection {
 	public static final String SRS="+proj=merc +a=6378137 +b=6378137 +lat_ts=0.0 +lon_0=0.0 +x_0=0.0 +y_0=0 +k=1.0 +units=m +nadgrids=@null +no_defs +over";
 	private static final double HIGHEST_RES=78271.5170;
+	private static final double RADIUS=6378137.0;
+	
+	/**
+	 * Latitude of the top and bottom edges of the tile grid
+	 */
+	public static final double MAX_LATITUDE=85.05112878;
+	
+	protected double referenceResolution=HIGHEST_RES;
+	protected Coord origin;
 	
 	public WebMercatorRenderProjection() {
-		super(SRS);
-		setReferenceResolution(HIGHEST_RES);
-		origin.x=-180.0;
-		origin.y=85.05112878;
+		origin=new Coord(-180.0, MAX_LATITUDE);
 		forward(origin);
 	}
 	
+	/**
+	 * @param srsDefn proj4 init string
+	 * @return true if srsDefn is spherical web mercator and can be done with
+	 * this class
+	 */
+	public static boolean isWebMercator(String srsDefn) {
+		String normalized=srsDefn.trim().replaceAll("\\s+", " ");
+		if (normalized.equals(SRS)) return true;
+		
+		normalized=normalized.toLowerCase();
+		return normalized.equals("+init=epsg:3857") ||
+			normalized.equals("+init=epsg:900913") ||
+			normalized.equals("+init=epsg:3785");
+	}
+	
+	@Override
+	public void dispose() {
+	}
+
+	@Override
+	public String getSrs() {
+		return SRS;
+	}
+
+	@Override
+	public Box2d projectTile(int level, int x, int y, int tileWidth,
+			int tileHeight) {
+		double resolution=resolutionFromLevel(level);
+		
+		double ulx=x*tileWidth*resolution + origin.x;
+		double uly=origin.y - y*tileHeight*resolution;
+		double lrx=ulx + tileWidth*resolution;
+		double lry=uly - tileHeight*resolution;
+		
+		Box2d ret=new Box2d(Math.min(ulx,lrx), Math.min(uly,lry), Math.max(ulx,lrx), Math.max(uly,lry));
+		return ret;
+	}
+
+	@Override
+	public double resolutionFromLevel(int level) {
+		return referenceResolution/Math.pow(2, level-1);
+	}
+
+	@Override
+	public double levelFromResolution(double resolution) {
+		return Math.log(referenceResolution/resolution) / Math.log(2) + 1;
+	}
+
+	@Override
+	public void forward(Coord coord) {
+		coord.x=forwardX(coord.x);
+		coord.y=forwardY(coord.y);
+	}
+
+	@Override
+	public void inverse(Coord coord) {
+		coord.x=inverseX(coord.x);
+		coord.y=inverseY(coord.y);
+	}
+
+	/**
+	 * Projects the min and max corners, as mapnik does
+	 */
+	@Override
+	public void forward(Box2d bounds) {
+		bounds.minx=forwardX(bounds.minx);
+		bounds.miny=forwardY(bounds.miny);
+		bounds.maxx=forwardX(bounds.maxx);
+		bounds.maxy=forwardY(bounds.maxy);
+	}
+
+	@Override
+	public void inverse(Box2d bounds) {
+		bounds.minx=inverseX(bounds.minx);
+		bounds.miny=inverseY(bounds.miny);
+		bounds.maxx=inverseX(bounds.maxx);
+		bounds.maxy=inverseY(bounds.maxy);
+	}
+
+	/**
+	 * Latitudes past the edge of the grid are clamped to it, since the poles
+	 * project to infinity
+	 */
+	@Override
+	public void clampToGrid(Box2d bounds) {
+		bounds.miny=clampLatitude(bounds.miny);
+		bounds.maxy=clampLatitude(bounds.maxy);
+	}
+
+	@Override
+	public void setProjectedOrigin(Coord originCoord) {
+		origin.x=originCoord.x;
+		origin.y=originCoord.y;
+	}
+
+	@Override
+	public void setReferenceResolution(double referenceResolution) {
+		this.referenceResolution=referenceResolution;
+	}
+
+	private static double forwardX(double lng) {
+		return RADIUS * Math.toRadians(lng);
+	}
+	
+	private static double clampLatitude(double lat) {
+		return Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat));
+	}
+	
+	private static double forwardY(double lat) {
+		return RADIUS * Math.log(Math.tan(Math.PI/4 + Math.toRadians(lat)/2));
+	}
+	
+	private static double inverseX(double x) {
+		return Math.toDegrees(x / RADIUS);
+	}
+	
+	private static double inverseY(double y) {
+		return Math.toDegrees(2*Math.atan(Math.exp(y / RADIUS)) - Math.PI/2);
+	}
 }
@@ -0,0 +1,268 @@
+package net.rcode.nanomaps.server.util;
+
+import java.util.Arrays;
+
+/**
+ * Reduces an ARGB image to a palette of at most N colors.  Map tiles tend to
+ * use few distinct colors, so when the image has no more than N of them the
+ * palette is exact and nothing is lost.  Otherwise the distinct colors are
+ * split by median cut (weighted by pixel count, over alpha, red, green and
+ * blue) and each box is represented by its average.  No dithering is done,
+ * which keeps lines and labels crisp.
+ * 
+ * @author stella
+ *
+ */
+public class ColorQuantizer {
+	/**
+	 * Result of quantizing: a palette (ARGB, not premultiplied) and the index
+	 * of each pixel into it
+	 */
+	public static class Result {
+		public final int[] palette;
+		public final byte[] indexes;
+		
+		Result(int[] palette, byte[] indexes) {
+			this.palette=palette;
+			this.indexes=indexes;
+		}
+	}
+	
+	/**
+	 * Open addressing table of distinct colors and their pixel counts
+	 */
+	private static class ColorTable {
+		int[] colors;
+		int[] counts;
+		boolean[] used;
+		int size;
+		
+		ColorTable(int capacity) {
+			int tableSize=Integer.highestOneBit(Math.max(16, capacity*2)) << 1;
+			colors=new int[tableSize];
+			counts=new int[tableSize];
+			used=new boolean[tableSize];
+		}
+		
+		int slotOf(int color) {
+			int mask=colors.length-1;
+			int slot=(color * 0x9E3779B1) >>> 7 & mask;
+			while (used[slot] && colors[slot]!=color) {
+				slot=(slot+1) & mask;
+			}
+			return slot;
+		}
+		
+		void add(int color) {
+			int slot=slotOf(color);
+			if (!used[slot]) {
+				used[slot]=true;
+				colors[slot]=color;
+				size++;
+			}
+			counts[slot]++;
+		}
+	}
+	
+	/**
+	 * A range of entries (sorted along some channel) that becomes one palette color
+	 */
+	private static class Box {
+		final int start;
+		final int end;
+		long weight;
+		int widestShift;
+		int widestRange;
+		
+		Box(int start, int end) {
+			this.start=start;
+			this.end=end;
+		}
+	}
+	
+	private static final int[] CHANNEL_SHIFTS={ 24, 16, 8, 0 };
+	
+	/**
+	 * Quantize an image
+	 * @param argb pixels, row major
+	 * @param maxColors palette size limit, 2 to 256
+	 */
+	public static Result quantize(int[] argb, int maxColors) {
+		if (maxColors<2 || maxColors>256) {
+			throw new IllegalArgumentException("Palette size must be 2 to 256");
+		}
+		
+		// Fully transparent pixels are all the same
+		ColorTable table=new ColorTable(Math.min(argb.length, 65536));
+		for (int i=0; i<argb.length; i++) {
+			int color=normalize(argb[i]);
+			argb[i]=color;
+			if (table.size*2 >= table.colors.length) table=grow(table);
+			table.add(color);
+		}
+		
+		// Gather the distinct colors
+		int count=table.size;
+		int[] colors=new int[count];
+		int[] counts=new int[count];
+		int n=0;
+		for (int slot=0; slot<table.colors.length; slot++) {
+			if (!table.used[slot]) continue;
+			colors[n]=table.colors[slot];
+			counts[n]=table.counts[slot];
+			n++;
+		}
+		
+		int[] palette;
+		int[] entryIndex=new int[count];
+		if (count<=maxColors) {
+			palette=colors.clone();
+			for (int i=0; i<count; i++) entryIndex[i]=i;
+		} else {
+			palette=medianCut(colors, counts, maxColors, entryIndex);
+		}
+		
+		// Map every distinct color (by table slot) to its palette index
+		int[] slotIndex=new int[table.colors.length];
+		for (int i=0; i<count; i++) {
+			slotIndex[table.slotOf(colors[i])]=entryIndex[i];
+		}
+		
+		byte[] indexes=new byte[argb.length];
+		int lastColor=0, lastIndex=-1;
+		for (int i=0; i<argb.length; i++) {
+			int color=argb[i];
+			if (color!=lastColor || lastIndex<0) {
+				lastColor=color;
+				lastIndex=slotIndex[table.slotOf(color)];
+			}
+			indexes[i]=(byte)lastIndex;
+		}
+		
+		return new Result(palette, indexes);
+	}
+	
+	private static int normalize(int color) {
+		return (color>>>24)==0 ? 0 : color;
+	}
+	
+	private static ColorTable grow(ColorTable table) {
+		ColorTable bigger=new ColorTable(table.colors.length);
+		for (int slot=0; slot<table.colors.length; slot++) {
+			if (!table.used[slot]) continue;
+			int newSlot=bigger.slotOf(table.colors[slot]);
+			bigger.used[newSlot]=true;
+			bigger.colors[newSlot]=table.colors[slot];
+			bigger.counts[newSlot]=table.counts[slot];
+			bigger.size++;
+		}
+		return bigger;
+	}
+	
+	/**
+	 * Split the colors into boxes.  colors and counts are reordered in place.
+	 * entryIndex receives the palette index of each (reordered) entry.
+	 * @return palette
+	 */
+	private static int[] medianCut(int[] colors, int[] counts, int maxColors, int[] entryIndex) {
+		Box[] boxes=new Box[maxColors];
+		int boxCount=1;
+		boxes[0]=measure(colors, counts, new Box(0, colors.length));
+		
+		while (boxCount<maxColors) {
+			// Split the box with the most weight spread over the widest range
+			Box best=null;
+			int bestIndex=-1;
+			double bestScore=0;
+			for (int i=0; i<boxCount; i++) {
+				Box box=boxes[i];
+				if (box.end-box.start<2 || box.widestRange==0) continue;
+				double score=(double)box.weight * box.widestRange;
+				if (score>bestScore) {
+					best=box;
+					bestIndex=i;
+					bestScore=score;
+				}
+			}
+			if (best==null) break;
+			
+			sortByChannel(colors, counts, best.start, best.end, best.widestShift);
+			
+			// Weighted median
+			long half=best.weight/2, running=0;
+			int split=best.start+1;
+			for (int i=best.start; i<best.end-1; i++) {
+				running+=counts[i];
+				if (running>=half) {
+					split=i+1;
+					break;
+				}
+			}
+			
+			boxes[bestIndex]=measure(colors, counts, new Box(best.start, split));
+			boxes[boxCount++]=measure(colors, counts, new Box(split, best.end));
+		}
+		
+		int[] palette=new int[boxCount];
+		for (int b=0; b<boxCount; b++) {
+			Box box=boxes[b];
+			long a=0, r=0, g=0, bl=0;
+			for (int i=box.start; i<box.end; i++) {
+				int c=colors[i], w=counts[i];
+				a+=(long)(c>>>24)*w;
+				r+=(long)(c>>16 & 0xff)*w;
+				g+=(long)(c>>8 & 0xff)*w;
+				bl+=(long)(c & 0xff)*w;
+				entryIndex[i]=b;
+			}
+			long half=box.weight/2;
+			palette[b]=normalize((int)((a+half)/box.weight) << 24 |
+					(int)((r+half)/box.weight) << 16 |
+					(int)((g+half)/box.weight) << 8 |
+					(int)((bl+half)/box.weight));
+		}
+		return palette;
+	}
+	
+	private static Box measure(int[] colors, int[] counts, Box box) {
+		int[] min={ 255, 255, 255, 255 }, max={ 0, 0, 0, 0 };
+		long weight=0;
+		for (int i=box.start; i<box.end; i++) {
+			int c=colors[i];
+			for (int ch=0; ch<4; ch++) {
+				int v=c>>>CHANNEL_SHIFTS[ch] & 0xff;
+				if (v<min[ch]) min[ch]=v;
+				if (v>max[ch]) max[ch]=v;
+			}
+			weight+=counts[i];
+		}
+		box.weight=weight;
+		for (int ch=0; ch<4; ch++) {
+			if (max[ch]-min[ch]>box.widestRange) {
+				box.widestRange=max[ch]-min[ch];
+				box.widestShift=CHANNEL_SHIFTS[ch];
+			}
+		}
+		return box;
+	}
+	
+	/**
+	 * Sort a range of entries by one channel, keeping counts with their colors
+	 */
+	private static void sortByChannel(int[] colors, int[] counts, int start, int end, int shift) {
+		// Pack the channel value above the entry index into a sortable long
+		long[] keys=new long[end-start];
+		for (int i=start; i<end; i++) {
+			keys[i-start]=(long)(colors[i]>>>shift & 0xff) << 32 | (i & 0xffffffffL);
+		}
+		Arrays.sort(keys);
+		int[] sortedColors=new int[keys.length], sortedCounts=new int[keys.length];
+		for (int k=0; k<keys.length; k++) {
+			int i=(int)keys[k];
+			sortedColors[k]=colors[i];
+			sortedCounts[k]=counts[i];
+		}
+		System.arraycopy(sortedColors, 0, colors, start, keys.length);
+		System.arraycopy(sortedCounts, 0, counts, start, keys.length);
+	}
+}
@@ -0,0 +1,122 @@
+package net.rcode.nanomaps.server.util;
+
+/**
+ * Hilbert curve ordering of tile addresses.  Consecutive positions on the
+ * curve are always neighbouring cells, so walking tiles in this order keeps
+ * successive renders on nearby data.
+ * 
+ * @author stella
+ *
+ */
+public class HilbertCurve {
+	/**
+	 * Side of the square blocks a RangeWalker covers with one curve
+	 */
+	public static final int BLOCK_SIZE=256;
+	
+	/**
+	 * Convert a distance along the curve to cell coordinates
+	 * @param n side of the square, a power of two
+	 * @param d distance, 0 to n*n-1
+	 * @param xy receives x and y
+	 */
+	public static void d2xy(int n, int d, int[] xy) {
+		int x=0, y=0, t=d;
+		for (int s=1; s<n; s*=2) {
+			int rx=1 & (t/2);
+			int ry=1 & (t ^ rx);
+			if (ry==0) {
+				if (rx==1) {
+					x=s-1-x;
+					y=s-1-y;
+				}
+				int swap=x;
+				x=y;
+				y=swap;
+			}
+			x+=s*rx;
+			y+=s*ry;
+			t/=4;
+		}
+		xy[0]=x;
+		xy[1]=y;
+	}
+	
+	/**
+	 * Walks every cell of a rectangle.  The rectangle is cut into square blocks
+	 * of up to BLOCK_SIZE, visited row by row in alternating directions, and
+	 * the cells of each block are visited in curve order.
+	 */
+	public static class RangeWalker {
+		private final int minX, minY, maxX, maxY;
+		private final int blockSize;
+		private final long blocksX, blocksY;
+		private final int[] xy=new int[2];
+		private long block;
+		private int d;
+		private int x, y;
+		
+		/**
+		 * @param minX
+		 * @param minY
+		 * @param maxX inclusive
+		 * @param maxY inclusive
+		 */
+		public RangeWalker(int minX, int minY, int maxX, int maxY) {
+			this.minX=minX;
+			this.minY=minY;
+			this.maxX=maxX;
+			this.maxY=maxY;
+			
+			long side=Math.max((long)maxX-minX+1, (long)maxY-minY+1);
+			int size=1;
+			while (size<side && size<BLOCK_SIZE) size*=2;
+			blockSize=size;
+			blocksX=maxX<minX ? 0 : ((long)maxX-minX+blockSize) / blockSize;
+			blocksY=maxY<minY ? 0 : ((long)maxY-minY+blockSize) / blockSize;
+		}
+		
+		/**
+		 * @return number of cells in the rectangle
+		 */
+		public long size() {
+			if (maxX<minX || maxY<minY) return 0;
+			return ((long)maxX-minX+1) * ((long)maxY-minY+1);
+		}
+		
+		/**
+		 * Advance to the next cell
+		 * @return false when there are no more
+		 */
+		public boolean next() {
+			int cells=blockSize*blockSize;
+			while (block<blocksX*blocksY) {
+				long blockY=block / blocksX;
+				long blockX=block % blocksX;
+				if ((blockY & 1)!=0) blockX=blocksX-1-blockX;
+				
+				while (d<cells) {
+					d2xy(blockSize, d++, xy);
+					long cellX=minX + blockX*blockSize + xy[0];
+					long cellY=minY + blockY*blockSize + xy[1];
+					if (cellX<=maxX && cellY<=maxY) {
+						x=(int)cellX;
+						y=(int)cellY;
+						return true;
+					}
+				}
+				block++;
+				d=0;
+			}
+			return false;
+		}
+		
+		public int getX() {
+			return x;
+		}
+		
+		public int getY() {
+			return y;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package net.rcode.nanomaps.server.util;
 
+import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -8,19 +9,19 @@ import org.jboss.netty.util.CharsetUtil;
 
 /**
  * Feed various content to this in order to derive a hash value
- * suitable for representing the version of the content.
+ * suitable for representing the version of the content.  The hash depends
+ * on nothing but what is fed in, so it is the same across restarts and
+ * across servers.
  * 
  * @author stella
  *
  */
 public class IdentityHasher {
-	private static final String SEED=System.currentTimeMillis() + ":";
 	private MessageDigest digest;
 	
 	public IdentityHasher() {
 		try {
 			digest=MessageDigest.getInstance("MD5");
-			digest.update(SEED.getBytes(CharsetUtil.UTF_16BE));
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException("Cannot get MD5 digester", e);
 		}
@@ -38,6 +39,19 @@ public class IdentityHasher {
 		digest.update(new byte[] { ':' });
 	}
 	
+	/**
+	 * Append the size and modification time of a file (not its path, which
+	 * can differ between servers)
+	 */
+	public void appendFileState(File file) {
+		if (file.isFile()) {
+			append(file.length() + ":" + file.lastModified());
+		} else {
+			append("missing");
+		}
+		appendSep();
+	}
+	
 	public String getHash() {
 		byte[] hash=digest.digest();
 		return Base64.encodeBase64URLSafeString(hash);
@@ -0,0 +1,103 @@
+package net.rcode.nanomaps.server.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+/**
+ * Finds the files a mapnik map file references: datasource files (with the
+ * companion files of a shapefile) and the images used by symbolizers.  Used
+ * to fold the state of a map's data into its identity tag.
+ *
+ * @author stella
+ *
+ */
+public class MapnikFileReferences {
+	private static final String[] SHAPE_EXTENSIONS={ ".shp", ".shx", ".dbf", ".prj", ".index", ".cpg" };
+
+	/**
+	 * @param xml contents of the map file, with entities expanded
+	 * @param baseDir directory that relative paths are resolved against
+	 * @return referenced files in document order, whether or not they exist
+	 * @throws DocumentException
+	 */
+	public static List<File> find(CharSequence xml, File baseDir) throws DocumentException {
+		Document doc=DocumentHelper.parseText(xml.toString());
+		Element root=doc.getRootElement();
+		Set<File> files=new LinkedHashSet<File>();
+
+		// Named base directories for datasources
+		Map<String, String> fileSources=new HashMap<String, String>();
+		for (Iterator<?> iter=root.elementIterator("FileSource"); iter.hasNext(); ) {
+			Element fileSource=(Element) iter.next();
+			String name=fileSource.attributeValue("name");
+			if (name!=null) fileSources.put(name, fileSource.getTextTrim());
+		}
+
+		collect(root, baseDir, fileSources, files);
+		return new ArrayList<File>(files);
+	}
+
+	private static void collect(Element element, File baseDir, Map<String, String> fileSources, Set<File> files) {
+		if ("Datasource".equals(element.getName())) {
+			collectDatasource(element, baseDir, fileSources, files);
+		}
+
+		// Symbolizer images and the like
+		for (Iterator<?> iter=element.attributeIterator(); iter.hasNext(); ) {
+			Attribute attribute=(Attribute) iter.next();
+			if ("file".equals(attribute.getName()) && !attribute.getValue().trim().isEmpty()) {
+				files.add(resolve(baseDir, attribute.getValue().trim()));
+			}
+		}
+
+		for (Iterator<?> iter=element.elementIterator(); iter.hasNext(); ) {
+			collect((Element) iter.next(), baseDir, fileSources, files);
+		}
+	}
+
+	private static void collectDatasource(Element datasource, File baseDir, Map<String, String> fileSources, Set<File> files) {
+		Map<String, String> params=new HashMap<String, String>();
+		for (Iterator<?> iter=datasource.elementIterator("Parameter"); iter.hasNext(); ) {
+			Element param=(Element) iter.next();
+			String name=param.attributeValue("name");
+			if (name!=null) params.put(name, param.getTextTrim());
+		}
+
+		String file=params.get("file");
+		if (file==null || file.isEmpty()) return;
+
+		File dir=baseDir;
+		String base=params.get("base");
+		if (base!=null && fileSources.containsKey(base)) {
+			dir=resolve(baseDir, fileSources.get(base));
+		}
+
+		if ("shape".equals(params.get("type"))) {
+			String stem=file.endsWith(".shp") ? file.substring(0, file.length()-4) : file;
+			for (String extension: SHAPE_EXTENSIONS) {
+				File companion=resolve(dir, stem + extension);
+				if (extension.equals(".shp") || companion.exists()) files.add(companion);
+			}
+		} else {
+			files.add(resolve(dir, file));
+		}
+	}
+
+	private static File resolve(File baseDir, String path) {
+		File file=new File(path);
+		if (!file.isAbsolute()) file=new File(baseDir, path);
+		return file;
+	}
+}
@@ -0,0 +1,355 @@
+package net.rcode.nanomaps.server.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of expensive objects.  Idle objects are kept in a few stripes,
+ * each with its own lock, and a thread checks out from the stripe its id maps
+ * to before looking at the others, so render threads rarely contend.  Each
+ * stripe is used newest first, which leaves the objects that are not needed
+ * at the bottom, where trimming finds them.
+ * <p>
+ * At most maxIdle objects are kept; releasing one more destroys it.  Objects
+ * idle for longer than the idle timeout are destroyed down to minIdle.  This
+ * is done as a side effect of release, so the pool needs no thread of its own.
+ * If maxTotal is set, at most that many objects exist at once, idle or checked
+ * out, and borrow waits for one to be released rather than create more.
+ * <p>
+ * A closed pool keeps nothing: objects still checked out when it is closed
+ * are destroyed as they are released.
+ * 
+ * @author stella
+ *
+ */
+public abstract class ObjectPool<T> {
+	private static final int STRIPES=4;
+	
+	private static class Idle<T> {
+		final T object;
+		final long since;
+		
+		Idle(T object, long since) {
+			this.object=object;
+			this.since=since;
+		}
+	}
+	
+	private final ArrayDeque<Idle<T>>[] stripes;
+	private final AtomicInteger idleCount=new AtomicInteger();
+	private final AtomicLong lastTrim=new AtomicLong(System.currentTimeMillis());
+	
+	private volatile int minIdle;
+	private volatile int maxIdle;
+	private volatile long idleTimeoutMillis;
+	private volatile int maxTotal;
+	private volatile boolean closed;
+	
+	/**
+	 * Objects in existence.  Synchronize on liveLock to access.  Waiters for
+	 * an object are notified on liveLock.
+	 */
+	private final Object liveLock=new Object();
+	private int live;
+	
+	private final AtomicLong hits=new AtomicLong();
+	private final AtomicLong misses=new AtomicLong();
+	private final AtomicLong created=new AtomicLong();
+	private final AtomicLong destroyed=new AtomicLong();
+	private final AtomicLong createNanos=new AtomicLong();
+	private final AtomicLong maxCreateNanos=new AtomicLong();
+	
+	@SuppressWarnings("unchecked")
+	public ObjectPool(int minIdle, int maxIdle, long idleTimeoutMillis) {
+		stripes=(ArrayDeque<Idle<T>>[]) new ArrayDeque<?>[STRIPES];
+		for (int i=0; i<STRIPES; i++) {
+			stripes[i]=new ArrayDeque<Idle<T>>();
+		}
+		setLimits(minIdle, maxIdle, idleTimeoutMillis);
+	}
+	
+	/**
+	 * Create a new object for the pool
+	 */
+	protected abstract T create();
+	
+	/**
+	 * Release the resources of an object that is leaving the pool
+	 */
+	protected abstract void destroy(T object);
+	
+	/**
+	 * @param minIdle idle objects kept regardless of the idle timeout
+	 * @param maxIdle most idle objects kept
+	 * @param idleTimeoutMillis idle time after which objects over minIdle are
+	 * destroyed, 0 to keep them
+	 */
+	public void setLimits(int minIdle, int maxIdle, long idleTimeoutMillis) {
+		this.minIdle=minIdle;
+		this.maxIdle=Math.max(minIdle, maxIdle);
+		this.idleTimeoutMillis=idleTimeoutMillis;
+	}
+	
+	public int getMinIdle() {
+		return minIdle;
+	}
+	
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+	
+	/**
+	 * @param maxTotal most objects in existence at once, 0 for no limit
+	 */
+	public void setMaxTotal(int maxTotal) {
+		this.maxTotal=maxTotal;
+		synchronized (liveLock) {
+			liveLock.notifyAll();
+		}
+	}
+	
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+	
+	/**
+	 * Check out an object, creating one if none is idle.  Waits for an object
+	 * to be released if maxTotal of them already exist.
+	 * @throws IllegalStateException if interrupted while waiting
+	 */
+	public T borrow() {
+		for (;;) {
+			T object=pollIdle();
+			if (object!=null) {
+				hits.incrementAndGet();
+				return object;
+			}
+			if (reserve()) break;
+			awaitRelease();
+		}
+		
+		misses.incrementAndGet();
+		return createReserved();
+	}
+	
+	private T pollIdle() {
+		int home=homeStripe();
+		for (int i=0; i<STRIPES; i++) {
+			ArrayDeque<Idle<T>> stripe=stripes[(home+i) % STRIPES];
+			Idle<T> idle;
+			synchronized (stripe) {
+				idle=stripe.pollLast();
+			}
+			if (idle!=null) {
+				idleCount.decrementAndGet();
+				return idle.object;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Count an object that is about to be created
+	 * @return false if maxTotal already exist
+	 */
+	private boolean reserve() {
+		synchronized (liveLock) {
+			int limit=maxTotal;
+			if (limit>0 && live>=limit) return false;
+			live++;
+			return true;
+		}
+	}
+	
+	private void unreserve() {
+		synchronized (liveLock) {
+			live--;
+			liveLock.notifyAll();
+		}
+	}
+	
+	private void awaitRelease() {
+		synchronized (liveLock) {
+			// Released since we looked
+			int limit=maxTotal;
+			if (idleCount.get()>0 || limit<=0 || live<limit) return;
+			try {
+				liveLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted waiting for a pooled object");
+			}
+		}
+	}
+	
+	/**
+	 * Return an object to the pool
+	 */
+	public void release(T object) {
+		if (closed) {
+			destroyCounted(object);
+			return;
+		}
+		
+		long now=System.currentTimeMillis();
+		if (idleCount.incrementAndGet()>maxIdle) {
+			idleCount.decrementAndGet();
+			destroyCounted(object);
+		} else {
+			ArrayDeque<Idle<T>> stripe=stripes[homeStripe()];
+			synchronized (stripe) {
+				stripe.addLast(new Idle<T>(object, now));
+			}
+			
+			// Lost a race with close
+			if (closed) clear();
+			
+			if (maxTotal>0) {
+				synchronized (liveLock) {
+					liveLock.notifyAll();
+				}
+			}
+		}
+		
+		long timeout=idleTimeoutMillis;
+		long last=lastTrim.get();
+		if (timeout>0 && now-last>=timeout/4 && lastTrim.compareAndSet(last, now)) {
+			trim(now);
+		}
+	}
+	
+	/**
+	 * Create objects until minIdle are idle
+	 */
+	public void prewarm() {
+		while (!closed && idleCount.get()<minIdle && reserve()) {
+			release(createReserved());
+		}
+	}
+	
+	/**
+	 * Destroy idle objects that have been unused for longer than the idle
+	 * timeout, keeping minIdle
+	 * @return number destroyed
+	 */
+	public int trim(long now) {
+		long timeout=idleTimeoutMillis;
+		if (timeout<=0) return 0;
+		
+		int count=0;
+		for (ArrayDeque<Idle<T>> stripe: stripes) {
+			for (;;) {
+				Idle<T> idle;
+				synchronized (stripe) {
+					idle=stripe.peekFirst();
+					if (idle==null || now-idle.since<timeout) break;
+					if (idleCount.decrementAndGet()<minIdle) {
+						idleCount.incrementAndGet();
+						break;
+					}
+					stripe.pollFirst();
+				}
+				destroyCounted(idle.object);
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Destroy all idle objects
+	 */
+	public void clear() {
+		for (ArrayDeque<Idle<T>> stripe: stripes) {
+			synchronized (stripe) {
+				Iterator<Idle<T>> iter=stripe.iterator();
+				while (iter.hasNext()) {
+					Idle<T> idle=iter.next();
+					iter.remove();
+					idleCount.decrementAndGet();
+					destroyCounted(idle.object);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Destroy all idle objects and any that are released from now on
+	 */
+	public void close() {
+		closed=true;
+		clear();
+	}
+	
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getCreated() {
+		return created.get();
+	}
+	
+	public long getDestroyed() {
+		return destroyed.get();
+	}
+	
+	/**
+	 * @return total time spent creating objects
+	 */
+	public long getCreateNanos() {
+		return createNanos.get();
+	}
+	
+	public long getMaxCreateNanos() {
+		return maxCreateNanos.get();
+	}
+	
+	/**
+	 * Create an object that has been counted by reserve
+	 */
+	private T createReserved() {
+		long start=System.nanoTime();
+		T object;
+		try {
+			object=create();
+		} catch (RuntimeException e) {
+			unreserve();
+			throw e;
+		} catch (Error e) {
+			unreserve();
+			throw e;
+		}
+		long elapsed=System.nanoTime() - start;
+		
+		created.incrementAndGet();
+		createNanos.addAndGet(elapsed);
+		for (;;) {
+			long max=maxCreateNanos.get();
+			if (elapsed<=max || maxCreateNanos.compareAndSet(max, elapsed)) break;
+		}
+		return object;
+	}
+	
+	private void destroyCounted(T object) {
+		destroyed.incrementAndGet();
+		try {
+			destroy(object);
+		} finally {
+			unreserve();
+		}
+	}
+	
+	private static int homeStripe() {
+		return (int) (Thread.currentThread().getId() % STRIPES);
+	}
+}
@@ -0,0 +1,173 @@
+package net.rcode.nanomaps.server.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes palette (color type 3) PNGs from ARGB pixels, quantizing with
+ * ColorQuantizer.  Palette PNGs are typically a third the size of the
+ * truecolor+alpha PNGs mapnik writes for map tiles.
+ * <p>
+ * Formats are named "png8" or "png8:colors=N" (N from 2 to 256).
+ * 
+ * @author stella
+ *
+ */
+public class Png8Encoder {
+	public static final int DEFAULT_COLORS=256;
+	
+	private static final byte[] SIGNATURE={ (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+	private static final String COLORS_OPTION="colors=";
+	
+	/**
+	 * @param format output format
+	 * @return true if format names palette png output
+	 */
+	public static boolean isPng8(String format) {
+		return format!=null && (format.equals("png8") || format.startsWith("png8:"));
+	}
+	
+	/**
+	 * Parse the palette size out of a png8 format string
+	 * @param format
+	 * @return number of colors
+	 * @throws IllegalArgumentException on a malformed format
+	 */
+	public static int colorsOf(String format) {
+		if (!isPng8(format)) {
+			throw new IllegalArgumentException("Not a png8 format: " + format);
+		}
+		int colors=DEFAULT_COLORS;
+		if (format.length()>4) {
+			for (String option: format.substring(5).split(":")) {
+				if (!option.startsWith(COLORS_OPTION)) {
+					throw new IllegalArgumentException("Unknown png8 option: " + option);
+				}
+				try {
+					colors=Integer.parseInt(option.substring(COLORS_OPTION.length()));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Illegal png8 colors: " + option);
+				}
+			}
+		}
+		if (colors<2 || colors>256) {
+			throw new IllegalArgumentException("png8 colors must be 2 to 256");
+		}
+		return colors;
+	}
+	
+	/**
+	 * Encode an image (or subimage)
+	 */
+	public static byte[] encode(BufferedImage image, int colors) throws IOException {
+		int width=image.getWidth(), height=image.getHeight();
+		int[] argb=image.getRGB(0, 0, width, height, null, 0, width);
+		return encode(argb, width, height, colors);
+	}
+	
+	/**
+	 * Encode raw pixels
+	 * @param argb non-premultiplied ARGB pixels, row major.  Modified in place.
+	 * @param width
+	 * @param height
+	 * @param colors maximum palette size
+	 * @return png bytes
+	 */
+	public static byte[] encode(int[] argb, int width, int height, int colors) throws IOException {
+		if (argb.length<width*height) {
+			throw new IllegalArgumentException("Pixel buffer too small");
+		}
+		ColorQuantizer.Result q=ColorQuantizer.quantize(argb, colors);
+		
+		// Put translucent entries first so the tRNS chunk can stop at the last of them
+		int[] palette=q.palette;
+		int[] order=new int[palette.length];
+		int[] remap=new int[palette.length];
+		int n=0;
+		for (int i=0; i<palette.length; i++) {
+			if ((palette[i]>>>24)!=0xff) order[n++]=i;
+		}
+		int translucent=n;
+		for (int i=0; i<palette.length; i++) {
+			if ((palette[i]>>>24)==0xff) order[n++]=i;
+		}
+		for (int i=0; i<order.length; i++) {
+			remap[order[i]]=i;
+		}
+		
+		byte[] plte=new byte[palette.length*3];
+		byte[] trns=new byte[translucent];
+		for (int i=0; i<order.length; i++) {
+			int c=palette[order[i]];
+			plte[i*3]=(byte)(c>>16);
+			plte[i*3+1]=(byte)(c>>8);
+			plte[i*3+2]=(byte)c;
+			if (i<translucent) trns[i]=(byte)(c>>>24);
+		}
+		
+		// Filter type 0 on every row: palette data rarely benefits from filtering
+		byte[] indexes=q.indexes;
+		byte[] raw=new byte[(width+1)*height];
+		for (int y=0, src=0, dst=0; y<height; y++) {
+			raw[dst++]=0;
+			for (int x=0; x<width; x++) {
+				raw[dst++]=(byte)remap[indexes[src++] & 0xff];
+			}
+		}
+		
+		ByteArrayOutputStream out=new ByteArrayOutputStream(raw.length/4 + plte.length + 128);
+		out.write(SIGNATURE);
+		
+		byte[] ihdr=new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8]=8;	// bit depth
+		ihdr[9]=3;	// color type: palette
+		writeChunk(out, "IHDR", ihdr, ihdr.length);
+		writeChunk(out, "PLTE", plte, plte.length);
+		if (translucent>0) writeChunk(out, "tRNS", trns, trns.length);
+		
+		Deflater deflater=new Deflater(Deflater.DEFAULT_COMPRESSION);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream idat=new ByteArrayOutputStream(raw.length/4 + 64);
+			byte[] buffer=new byte[8192];
+			while (!deflater.finished()) {
+				int count=deflater.deflate(buffer);
+				idat.write(buffer, 0, count);
+			}
+			writeChunk(out, "IDAT", idat.toByteArray(), idat.size());
+		} finally {
+			deflater.end();
+		}
+		
+		writeChunk(out, "IEND", new byte[0], 0);
+		return out.toByteArray();
+	}
+	
+	private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data, int length) {
+		byte[] header=new byte[8];
+		putInt(header, 0, length);
+		for (int i=0; i<4; i++) header[4+i]=(byte)type.charAt(i);
+		out.write(header, 0, 8);
+		out.write(data, 0, length);
+		
+		CRC32 crc=new CRC32();
+		crc.update(header, 4, 4);
+		crc.update(data, 0, length);
+		byte[] trailer=new byte[4];
+		putInt(trailer, 0, (int)crc.getValue());
+		out.write(trailer, 0, 4);
+	}
+	
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset]=(byte)(value>>>24);
+		b[offset+1]=(byte)(value>>>16);
+		b[offset+2]=(byte)(value>>>8);
+		b[offset+3]=(byte)value;
+	}
+}
@@ -0,0 +1,86 @@
+package net.rcode.nanomaps.server.util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Cuts a rendered metatile into individual tiles.  The metatile is taken as
+ * PNG bytes (mapnik's lossless output) and each tile is re-encoded with ImageIO,
+ * or with Png8Encoder for palette output.
+ *
+ * @author stella
+ *
+ */
+public class TileSlicer {
+	/**
+	 * @param format output format (as passed to mapnik)
+	 * @return true if tiles can be sliced into this format
+	 */
+	public static boolean canSlice(String format) {
+		return Png8Encoder.isPng8(format) || imageIOFormat(format)!=null;
+	}
+
+	/**
+	 * Slice a metatile
+	 * @param metatilePng encoded metatile
+	 * @param columns
+	 * @param rows
+	 * @param format output format of each tile
+	 * @return encoded tiles in row major order
+	 * @throws IOException
+	 */
+	public static byte[][] slice(byte[] metatilePng, int columns, int rows, String format) throws IOException {
+		boolean png8=Png8Encoder.isPng8(format);
+		int colors=png8 ? Png8Encoder.colorsOf(format) : 0;
+		String ioFormat=imageIOFormat(format);
+		if (ioFormat==null && !png8) {
+			throw new IllegalArgumentException("Cannot slice tiles in format " + format);
+		}
+
+		BufferedImage metatile=ImageIO.read(new ByteArrayInputStream(metatilePng));
+		if (metatile==null) {
+			throw new IOException("Could not decode metatile");
+		}
+
+		int tileWidth=metatile.getWidth() / columns;
+		int tileHeight=metatile.getHeight() / rows;
+		boolean opaque="jpeg".equals(ioFormat);
+
+		byte[][] tiles=new byte[columns*rows][];
+		ByteArrayOutputStream out=new ByteArrayOutputStream(16384);
+		for (int row=0; row<rows; row++) {
+			for (int column=0; column<columns; column++) {
+				BufferedImage tile=metatile.getSubimage(column*tileWidth, row*tileHeight, tileWidth, tileHeight);
+				if (png8) {
+					tiles[row*columns + column]=Png8Encoder.encode(tile, colors);
+					continue;
+				}
+				if (opaque) {
+					// JPEG encoding can't deal with an alpha channel
+					BufferedImage rgb=new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+					Graphics2D g=rgb.createGraphics();
+					g.drawImage(tile, 0, 0, null);
+					g.dispose();
+					tile=rgb;
+				}
+
+				out.reset();
+				ImageIO.write(tile, ioFormat, out);
+				tiles[row*columns + column]=out.toByteArray();
+			}
+		}
+
+		return tiles;
+	}
+
+	private static String imageIOFormat(String format) {
+		if ("png".equals(format)) return "png";
+		if ("jpg".equals(format) || "jpeg".equals(format)) return "jpeg";
+		return null;
+	}
+}
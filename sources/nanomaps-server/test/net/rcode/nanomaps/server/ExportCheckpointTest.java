@@ -0,0 +1,74 @@
+package net.rcode.nanomaps.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Test;
+
+public class ExportCheckpointTest {
+	@Test
+	public void testResume() throws Exception {
+		File file=File.createTempFile("export", ".checkpoint");
+		file.delete();
+		try {
+			ExportCheckpoint checkpoint=new ExportCheckpoint(file, "map=test levels=0-4");
+			checkpoint.open();
+			assertEquals(0, checkpoint.getCompletedCount());
+			checkpoint.markComplete(3, 0, 0);
+			checkpoint.markComplete(3, 8, 0);
+			checkpoint.commit(checkpoint.takePending());
+			
+			// Marked but never committed
+			checkpoint.markComplete(4, 0, 8);
+			checkpoint.close();
+			
+			// Simulate a crash in the middle of a line
+			FileOutputStream out=new FileOutputStream(file, true);
+			out.write("4/8/".getBytes("UTF-8"));
+			out.close();
+			
+			checkpoint=new ExportCheckpoint(file, "map=test levels=0-4");
+			checkpoint.open();
+			assertEquals(2, checkpoint.getCompletedCount());
+			assertTrue(checkpoint.isComplete(3, 0, 0));
+			assertTrue(checkpoint.isComplete(3, 8, 0));
+			assertFalse(checkpoint.isComplete(4, 0, 8));
+			assertFalse(checkpoint.isComplete(4, 8, 8));
+			
+			// The torn line is gone and new completions append cleanly
+			checkpoint.markComplete(4, 8, 8);
+			checkpoint.commit(checkpoint.takePending());
+			checkpoint.close();
+			
+			checkpoint=new ExportCheckpoint(file, "map=test levels=0-4");
+			checkpoint.open();
+			assertEquals(3, checkpoint.getCompletedCount());
+			assertTrue(checkpoint.isComplete(4, 8, 8));
+			checkpoint.close();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testDifferentExportIsNotResumed() throws Exception {
+		File file=File.createTempFile("export", ".checkpoint");
+		file.delete();
+		try {
+			ExportCheckpoint checkpoint=new ExportCheckpoint(file, "map=test levels=0-4");
+			checkpoint.open();
+			checkpoint.close();
+			
+			try {
+				new ExportCheckpoint(file, "map=test levels=0-5").open();
+				fail("Expected a different export to be refused");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package net.rcode.nanomaps.server;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MapRequestHandlerTest {
+	private static MapLocator locator(String metatile) {
+		AbstractMapLocator locator=new AbstractMapLocator() {
+			@Override
+			public boolean isValid() {
+				return true;
+			}
+
+			@Override
+			public MapSource resolve(RenderRequest request) throws Exception {
+				return null;
+			}
+		};
+		if (metatile!=null) locator.getProperties().put("metatile", metatile);
+		return locator;
+	}
+
+	@Test
+	public void testMetatileSize() {
+		assertEquals(1, MapRequestHandler.metatileSize(locator(null), "png", 10));
+		assertEquals(8, MapRequestHandler.metatileSize(locator("8"), "png", 10));
+		assertEquals(1, MapRequestHandler.metatileSize(locator("8"), "svg", 10));
+
+		// Never larger than the level
+		assertEquals(1, MapRequestHandler.metatileSize(locator("8"), "png", 0));
+		assertEquals(2, MapRequestHandler.metatileSize(locator("8"), "png", 1));
+
+		for (String bad: new String[] { "6", "0", "-4", "x" }) {
+			try {
+				MapRequestHandler.metatileSize(locator(bad), "png", 10);
+				fail(bad);
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testIsGzipped() {
+		assertTrue(MapRequestHandler.isGzipped(new byte[] { 0x1f, (byte)0x8b, 8, 0 }));
+		assertFalse(MapRequestHandler.isGzipped(new byte[] { 0x1a, 0x02 }));
+		assertFalse(MapRequestHandler.isGzipped(new byte[] { 0x1f }));
+	}
+}
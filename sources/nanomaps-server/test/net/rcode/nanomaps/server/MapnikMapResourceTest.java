@@ -0,0 +1,98 @@
+package net.rcode.nanomaps.server;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import mapnik.MapDefinition;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MapnikMapResourceTest {
+	/**
+	 * Resource that doesn't parse its map and records which maps it disposes
+	 */
+	private static class RecordingResource extends MapnikMapResource {
+		List<MapDefinition> loaded=new ArrayList<MapDefinition>();
+		List<MapDefinition> disposed=new ArrayList<MapDefinition>();
+
+		RecordingResource(File mapFile) throws Exception {
+			super(mapFile);
+		}
+
+		@Override
+		synchronized MapDefinition loadMap() {
+			MapDefinition m=new MapDefinition();
+			loaded.add(m);
+			return m;
+		}
+
+		@Override
+		synchronized void disposeMap(MapDefinition m) {
+			disposed.add(m);
+		}
+	}
+
+	private File dir;
+	private File mapFile;
+
+	@Before
+	public void setUp() throws Exception {
+		dir=File.createTempFile("mapnikresource", "");
+		dir.delete();
+		dir.mkdirs();
+		mapFile=new File(dir, "test.mapnik.xml");
+		FileOutputStream out=new FileOutputStream(mapFile);
+		try {
+			out.write("<Map srs=\"+proj=latlong\"></Map>".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] children=file.listFiles();
+		if (children!=null) {
+			for (File child: children) delete(child);
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testDisposeReleasesTemplate() throws Exception {
+		RecordingResource resource=new RecordingResource(mapFile);
+		resource.initialize(new StaticMapRepository());
+		assertEquals(1, resource.loaded.size());
+		MapDefinition template=resource.loaded.get(0);
+
+		MapDefinition pooled=resource.createMap(MapRequestHandler.class);
+		MapDefinition checkedOut=resource.createMap(MapRequestHandler.class);
+		resource.recycleMap(MapRequestHandler.class, pooled);
+		assertEquals(1, resource.loaded.size());
+
+		resource.dispose();
+		assertTrue(resource.disposed.contains(template));
+		assertTrue(resource.disposed.contains(pooled));
+		assertFalse(resource.disposed.contains(checkedOut));
+
+		// Nothing is copied from the freed template any more
+		assertNull(resource.copyTemplate());
+		MapDefinition late=resource.createMap(MapRequestHandler.class);
+		assertEquals(2, resource.loaded.size());
+		assertSame(late, resource.loaded.get(1));
+
+		resource.recycleMap(MapRequestHandler.class, checkedOut);
+		resource.recycleMap(MapRequestHandler.class, late);
+		assertEquals(4, resource.disposed.size());
+	}
+}
@@ -0,0 +1,70 @@
+package net.rcode.nanomaps.server;
+
+import static org.junit.Assert.*;
+
+import mapnik.Box2d;
+
+import org.junit.Test;
+
+public class RenderCostEstimatorTest {
+	private static RenderRequest tile(String mapName, int level) {
+		RenderRequest rr=new RenderRequest();
+		rr.mapName=mapName;
+		rr.renderInfo=new RenderInfo();
+		rr.renderInfo.tiled=true;
+		rr.renderInfo.tileLevel=level;
+		return rr;
+	}
+
+	private static RenderRequest wms(String mapName, double size) {
+		RenderRequest rr=new RenderRequest();
+		rr.mapName=mapName;
+		rr.renderInfo=new RenderInfo();
+		rr.renderInfo.bounds=new Box2d(0, 0, size, size);
+		return rr;
+	}
+
+	@Test
+	public void testMovingAverage() {
+		RenderCostEstimator estimator=new RenderCostEstimator();
+
+		// The first sample is taken as is and later ones move it by a fifth
+		estimator.record(tile("map", 10), 200);
+		assertEquals(200.0, estimator.estimate(tile("map", 10)), 0.001);
+		estimator.record(tile("map", 10), 100);
+		assertEquals(180.0, estimator.estimate(tile("map", 10)), 0.001);
+		estimator.record(tile("map", 10), 280);
+		assertEquals(200.0, estimator.estimate(tile("map", 10)), 0.001);
+	}
+
+	@Test
+	public void testUnseenKeys() {
+		RenderCostEstimator estimator=new RenderCostEstimator();
+		assertEquals(100.0, estimator.estimate(tile("map", 10)), 0.001);
+		assertEquals(100.0, estimator.estimate(wms("map", 100)), 0.001);
+
+		// Unknown work on a known map is as expensive as the worst of it
+		estimator.record(tile("map", 10), 50);
+		estimator.record(tile("map", 12), 400);
+		assertEquals(400.0, estimator.estimate(tile("map", 11)), 0.001);
+		assertEquals(400.0, estimator.estimate(wms("map", 100)), 0.001);
+		assertEquals(100.0, estimator.estimate(tile("other", 10)), 0.001);
+	}
+
+	@Test
+	public void testWmsAreaBuckets() {
+		RenderCostEstimator estimator=new RenderCostEstimator();
+		estimator.record(wms("map", 100), 40);
+		estimator.record(wms("map", 1000), 900);
+
+		// Nearly the same area falls in the same bucket
+		assertEquals(40.0, estimator.estimate(wms("map", 101)), 0.001);
+		assertEquals(900.0, estimator.estimate(wms("map", 1000)), 0.001);
+
+		// Tiles are kept apart from WMS requests
+		assertEquals(900.0, estimator.estimate(tile("map", 0)), 0.001);
+		estimator.record(tile("map", 0), 5);
+		assertEquals(5.0, estimator.estimate(tile("map", 0)), 0.001);
+		assertEquals(40.0, estimator.estimate(wms("map", 100)), 0.001);
+	}
+}
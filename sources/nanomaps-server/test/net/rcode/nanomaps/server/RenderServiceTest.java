@@ -0,0 +1,625 @@
+package net.rcode.nanomaps.server;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mapnik.Box2d;
+import mapnik.MapDefinition;
+
+import org.junit.Test;
+
+public class RenderServiceTest {
+	private static class DummyResource extends AbstractMapLocator implements MapResource, MapLocator {
+		private String identityTag;
+
+		/**
+		 * How long a render of this resource takes with the SleepingCallback
+		 */
+		long renderMillis;
+
+		public DummyResource(String identityTag) {
+			this.identityTag=identityTag;
+		}
+
+		public DummyResource(String identityTag, long renderMillis) {
+			this.identityTag=identityTag;
+			this.renderMillis=renderMillis;
+		}
+
+		@Override
+		public MapDefinition createMap(Object recycleTag) {
+			return null;
+		}
+
+		@Override
+		public boolean isValid() {
+			return true;
+		}
+
+		@Override
+		public void recycleMap(Object recycleTag, MapDefinition m) {
+		}
+
+		@Override
+		public MapResource resolve(RenderRequest request) throws Exception {
+			return this;
+		}
+
+		@Override
+		public String getIdentityTag() {
+			return identityTag;
+		}
+	}
+
+	/**
+	 * Callback that holds every render until released
+	 */
+	private static class GatedCallback implements RenderCallback {
+		CountDownLatch started=new CountDownLatch(1);
+		CountDownLatch release=new CountDownLatch(1);
+		CountDownLatch delivered;
+		AtomicInteger renderCount=new AtomicInteger();
+		List<RenderResult> results=new CopyOnWriteArrayList<RenderResult>();
+
+		GatedCallback(int expectedDeliveries) {
+			delivered=new CountDownLatch(expectedDeliveries);
+		}
+
+		@Override
+		public RenderResult doRender(RenderRequest rr) throws Exception {
+			renderCount.incrementAndGet();
+			started.countDown();
+			release.await();
+			return new RenderResult(new byte[] { 1, 2, 3 });
+		}
+
+		@Override
+		public void handleRenderComplete(RenderRequest rr, RenderResult result) {
+			results.add(result);
+			delivered.countDown();
+		}
+
+		@Override
+		public void handleCancelled(RenderRequest rr) {
+			delivered.countDown();
+		}
+
+		@Override
+		public void handleRenderError(RenderRequest rr, Throwable t) {
+			delivered.countDown();
+		}
+	}
+
+	/**
+	 * Callback that takes as long as the resource says and records completion
+	 * order by map and the peak number of concurrent renders
+	 */
+	private static class SleepingCallback implements RenderCallback {
+		CountDownLatch delivered;
+		List<String> completed=new CopyOnWriteArrayList<String>();
+		List<RenderRequest> rendered=new CopyOnWriteArrayList<RenderRequest>();
+		AtomicInteger expired=new AtomicInteger();
+		AtomicInteger running=new AtomicInteger();
+		AtomicInteger peakRunning=new AtomicInteger();
+
+		SleepingCallback(int expectedDeliveries) {
+			delivered=new CountDownLatch(expectedDeliveries);
+		}
+
+		@Override
+		public RenderResult doRender(RenderRequest rr) throws Exception {
+			rendered.add(rr);
+			int now=running.incrementAndGet();
+			for (;;) {
+				int peak=peakRunning.get();
+				if (now<=peak || peakRunning.compareAndSet(peak, now)) break;
+			}
+			try {
+				Thread.sleep(((DummyResource)rr.resource).renderMillis);
+			} finally {
+				running.decrementAndGet();
+			}
+			return new RenderResult(new byte[] { 1 });
+		}
+
+		@Override
+		public void handleRenderComplete(RenderRequest rr, RenderResult result) {
+			completed.add(rr.mapName);
+			delivered.countDown();
+		}
+
+		@Override
+		public void handleCancelled(RenderRequest rr) {
+			if (rr.expired) expired.incrementAndGet();
+			delivered.countDown();
+		}
+
+		@Override
+		public void handleRenderError(RenderRequest rr, Throwable t) {
+			delivered.countDown();
+		}
+	}
+
+	private static RenderRequest request(MapResource resource, double minx) {
+		RenderRequest rr=new RenderRequest();
+		rr.resource=resource;
+		rr.renderInfo=new RenderInfo();
+		rr.renderInfo.bounds=new Box2d(minx, 0, minx+10, 10);
+		rr.renderInfo.width=256;
+		rr.renderInfo.height=256;
+		rr.renderInfo.format="png";
+		return rr;
+	}
+
+	@Test
+	public void testIdenticalRequestsCoalesce() throws Exception {
+		RenderService service=new RenderService(1);
+		DummyResource resource=new DummyResource("tag");
+		GatedCallback callback=new GatedCallback(3);
+
+		service.submit(request(resource, 0), callback);
+		assertTrue(callback.started.await(5, TimeUnit.SECONDS));
+		service.submit(request(resource, 0), callback);
+		service.submit(request(resource, 0), callback);
+		callback.release.countDown();
+
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		assertEquals(1, callback.renderCount.get());
+		assertEquals(3, callback.results.size());
+		assertSame(callback.results.get(0), callback.results.get(2));
+	}
+
+	@Test
+	public void testCancelQueued() throws Exception {
+		RenderService service=new RenderService(1);
+		DummyResource resource=new DummyResource("tag");
+		GatedCallback callback=new GatedCallback(2);
+
+		service.submit(request(resource, 0), callback);
+		assertTrue(callback.started.await(5, TimeUnit.SECONDS));
+		Object queued=service.submit(request(resource, 10), callback);
+		Object leader=service.submit(request(resource, 20), callback);
+		Object follower=service.submit(request(resource, 20), callback);
+
+		// Queued request is pulled from the queue.  The follower detaches
+		// and the leader keeps going only until its last follower is gone.
+		assertTrue(service.cancel(queued));
+		assertFalse(service.cancel(leader));
+		assertTrue(service.cancel(follower));
+		callback.release.countDown();
+
+		// The first render plus a cancellation notice to the abandoned leader
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		assertEquals(1, callback.renderCount.get());
+
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertEquals(2L, stats.get("cancelledQueued"));
+		assertEquals(1L, stats.get("cancelledFollowers"));
+	}
+
+	@Test
+	public void testDistinctRequestsRenderSeparately() throws Exception {
+		RenderService service=new RenderService(1);
+		GatedCallback callback=new GatedCallback(3);
+		callback.release.countDown();
+
+		service.submit(request(new DummyResource("tag"), 0), callback);
+		service.submit(request(new DummyResource("tag"), 10), callback);
+		service.submit(request(new DummyResource(null), 10), callback);
+
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		assertEquals(3, callback.renderCount.get());
+	}
+
+	@Test
+	public void testSlowMapDoesNotStarveLightMap() throws Exception {
+		RenderService service=new RenderService(2);
+		DummyResource slow=new DummyResource(null, 200);
+		DummyResource light=new DummyResource(null, 1);
+		SleepingCallback callback=new SleepingCallback(15);
+
+		for (int i=0; i<10; i++) {
+			RenderRequest rr=request(slow, i*10);
+			rr.mapName="slow";
+			rr.laneConcurrency=1;
+			service.submit(rr, callback);
+		}
+		for (int i=0; i<5; i++) {
+			RenderRequest rr=request(light, i*10);
+			rr.mapName="light";
+			service.submit(rr, callback);
+		}
+
+		// The slow map never borrows the reserved thread while it has work
+		for (int i=0; i<500 && callback.completed.lastIndexOf("light")<0; i++) {
+			Thread.sleep(10);
+		}
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertEquals(0L, stats.get("lane.borrowed{map=\"slow\"}"));
+
+		assertTrue(callback.delivered.await(10, TimeUnit.SECONDS));
+
+		// The light map only had to wait for at most one slow render
+		int lastLight=callback.completed.lastIndexOf("light");
+		assertTrue("Light map finished at " + lastLight, lastLight<=5);
+	}
+
+	@Test
+	public void testIdleCapacityIsLent() throws Exception {
+		RenderService service=new RenderService(3);
+		DummyResource slow=new DummyResource(null, 100);
+		SleepingCallback callback=new SleepingCallback(6);
+
+		for (int i=0; i<6; i++) {
+			RenderRequest rr=request(slow, i*10);
+			rr.mapName="slow";
+			rr.laneConcurrency=1;
+			service.submit(rr, callback);
+		}
+
+		for (int i=0; i<500 && callback.peakRunning.get()<2; i++) {
+			Thread.sleep(10);
+		}
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertTrue(((Long)stats.get("lane.borrowed{map=\"slow\"}"))>0);
+
+		assertTrue(callback.delivered.await(10, TimeUnit.SECONDS));
+
+		// Over its cap by one borrowed thread, with one kept free
+		assertEquals(2, callback.peakRunning.get());
+	}
+
+	@Test
+	public void testIdleLanesAreDropped() throws Exception {
+		RenderService service=new RenderService(1);
+		DummyResource resource=new DummyResource(null, 1);
+		SleepingCallback callback=new SleepingCallback(3);
+
+		for (int i=0; i<3; i++) {
+			RenderRequest rr=request(resource, i*10);
+			rr.mapName="map" + i;
+			service.submit(rr, callback);
+		}
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+
+		// Lanes go once the render threads are done with their items
+		Map<String,Object> stats=new HashMap<String, Object>();
+		for (int i=0; i<500; i++) {
+			stats.clear();
+			service.collectStats(stats);
+			if (!stats.containsKey("lane.dispatched{map=\"map2\"}")) break;
+			Thread.sleep(10);
+		}
+		for (String key: stats.keySet()) {
+			assertFalse(key, key.startsWith("lane."));
+		}
+	}
+
+	@Test
+	public void testAdmissionLimits() throws Exception {
+		RenderService service=new RenderService(1);
+		service.setWmsAdmission(2, 0);
+		DummyResource resource=new DummyResource("tag");
+		GatedCallback callback=new GatedCallback(4);
+
+		service.submit(request(resource, 0), callback);
+		assertTrue(callback.started.await(5, TimeUnit.SECONDS));
+		service.submit(request(resource, 10), callback);
+		service.submit(request(resource, 20), callback);
+
+		// Identical to queued work so it is still accepted
+		service.submit(request(resource, 20), callback);
+
+		try {
+			service.submit(request(resource, 30), callback);
+			fail("Expected rejection");
+		} catch (RenderRejectedException e) {
+			assertTrue(e.getRetryAfterSeconds()>=1);
+		}
+
+		callback.release.countDown();
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertEquals(1L, stats.get("rejectedWms"));
+		assertEquals(0, stats.get("queuedWms"));
+	}
+
+	@Test
+	public void testAdmissionByEstimatedWait() throws Exception {
+		RenderService service=new RenderService(1);
+		service.setTileAdmission(0, 150);
+		DummyResource resource=new DummyResource(null);
+		GatedCallback callback=new GatedCallback(2);
+
+		// Nothing is known about the map, so each render is estimated at the default
+		service.submit(tileRequest(resource, 0), callback);
+		assertTrue(callback.started.await(5, TimeUnit.SECONDS));
+		service.submit(tileRequest(resource, 1), callback);
+		service.submit(tileRequest(resource, 2), callback);
+
+		try {
+			service.submit(tileRequest(resource, 3), callback);
+			fail("Expected rejection");
+		} catch (RenderRejectedException e) {
+			assertEquals(1, e.getRetryAfterSeconds());
+		}
+		callback.release.countDown();
+	}
+
+	private static RenderRequest tileRequest(MapResource resource, int x) {
+		RenderRequest rr=request(resource, x*10);
+		rr.renderInfo.tiled=true;
+		rr.renderInfo.tileLevel=5;
+		rr.renderInfo.tileX=x;
+		return rr;
+	}
+
+	@Test
+	public void testCheapWorkFirst() throws Exception {
+		RenderService service=new RenderService(1);
+		DummyResource resource=new DummyResource(null, 50);
+		SleepingCallback callback=new SleepingCallback(3);
+
+		RenderRequest expensive=tileRequest(resource, 1);
+		expensive.renderInfo.tileLevel=14;
+		RenderRequest cheap=tileRequest(resource, 2);
+		cheap.renderInfo.tileLevel=3;
+		service.getCostEstimator().record(expensive, 5000);
+		service.getCostEstimator().record(cheap, 10);
+
+		service.submit(tileRequest(resource, 0), callback);
+		Thread.sleep(20);
+		service.submit(expensive, callback);
+		service.submit(cheap, callback);
+
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+
+		// Without deadlines the estimated cost decides the order
+		assertEquals(5000.0, expensive.cost, 0.001);
+		assertEquals(10.0, cheap.cost, 0.001);
+		assertSame(cheap, callback.rendered.get(1));
+		assertSame(expensive, callback.rendered.get(2));
+	}
+
+	@Test
+	public void testLevelLabels() {
+		assertEquals("", RenderService.levelLabel(null));
+		RenderInfo renderInfo=new RenderInfo();
+		renderInfo.tiled=true;
+		renderInfo.tileLevel=12;
+		assertEquals("12", RenderService.levelLabel(renderInfo));
+
+		// Clients cannot add a series per made up level
+		renderInfo.tileLevel=RenderInfo.MAX_TILE_LEVEL+1;
+		assertEquals("other", RenderService.levelLabel(renderInfo));
+		renderInfo.tileLevel=-1;
+		assertEquals("other", RenderService.levelLabel(renderInfo));
+	}
+
+	@Test
+	public void testEarliestDeadlineFirst() throws Exception {
+		RenderService service=new RenderService(1);
+		service.setDefaultTimeout(45000);
+		DummyResource slow=new DummyResource(null, 200);
+		DummyResource fast=new DummyResource("fast", 1);
+		SleepingCallback callback=new SleepingCallback(6);
+		long now=System.currentTimeMillis();
+
+		service.submit(request(slow, 0), callback);
+		Thread.sleep(50);
+
+		RenderRequest late=request(fast, 10);
+		late.deadline=now + 60000;
+		RenderRequest soon=request(fast, 20);
+		soon.deadline=now + 30000;
+		RenderRequest none=request(fast, 30);
+		RenderRequest gone=request(fast, 40);
+		gone.deadline=now + 100;
+		RenderRequest goneFollower=request(fast, 40);
+		goneFollower.deadline=now + 100;
+
+		service.submit(late, callback);
+		service.submit(soon, callback);
+		service.submit(none, callback);
+		service.submit(gone, callback);
+		service.submit(goneFollower, callback);
+
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+
+		// The expired request and its follower are answered without a render.
+		// The request without a deadline is queued by the default timeout.
+		assertEquals(4, callback.rendered.size());
+		assertSame(soon, callback.rendered.get(1));
+		assertSame(none, callback.rendered.get(2));
+		assertSame(late, callback.rendered.get(3));
+		assertEquals(2, callback.expired.get());
+		assertTrue(gone.expired);
+		assertTrue(goneFollower.expired);
+	}
+
+	/**
+	 * Callback whose renders return immediately but whose encodes wait
+	 * until released
+	 */
+	private static class GatedEncodeCallback extends GatedCallback {
+		AtomicInteger encodeCount=new AtomicInteger();
+		CountDownLatch renders;
+
+		GatedEncodeCallback(int expectedRenders, int expectedDeliveries) {
+			super(expectedDeliveries);
+			renders=new CountDownLatch(expectedRenders);
+		}
+
+		@Override
+		public RenderResult doRender(RenderRequest rr) throws Exception {
+			renderCount.incrementAndGet();
+			renders.countDown();
+			return new RenderResult(new RenderResult.Encoder() {
+				@Override
+				public RenderResult encode() throws Exception {
+					encodeCount.incrementAndGet();
+					started.countDown();
+					release.await();
+					return new RenderResult(new byte[] { 4 });
+				}
+			});
+		}
+	}
+
+	@Test
+	public void testEncodeStage() throws Exception {
+		RenderService service=new RenderService(1, 1);
+		DummyResource resource=new DummyResource("tag");
+		GatedEncodeCallback callback=new GatedEncodeCallback(2, 3);
+
+		// The second render goes ahead while the first is stuck encoding
+		service.submit(request(resource, 0), callback);
+		assertTrue(callback.started.await(5, TimeUnit.SECONDS));
+		service.submit(request(resource, 10), callback);
+		assertTrue(callback.renders.await(5, TimeUnit.SECONDS));
+
+		// Requests arriving during the encode still coalesce
+		service.submit(request(resource, 0), callback);
+		callback.release.countDown();
+
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		assertEquals(2, callback.renderCount.get());
+		assertEquals(2, callback.encodeCount.get());
+		for (RenderResult result: callback.results) {
+			assertTrue(result.isEncoded());
+			assertEquals(4, result.getContents(0, 0)[0]);
+		}
+
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertEquals(1L, stats.get("coalesced"));
+		assertEquals(1, stats.get("encodeThreads"));
+	}
+
+	@Test
+	public void testEncodeQueueIsBounded() throws Exception {
+		RenderService service=new RenderService(1, 1);
+		DummyResource resource=new DummyResource("tag");
+		GatedEncodeCallback callback=new GatedEncodeCallback(4, 5);
+
+		// One encode running, two queued and the render thread encoding the
+		// fourth itself, so the fifth has to wait for a render thread
+		service.submit(request(resource, 0), callback);
+		assertTrue(callback.started.await(5, TimeUnit.SECONDS));
+		for (int i=1; i<4; i++) {
+			service.submit(request(resource, i*10), callback);
+		}
+		assertTrue(callback.renders.await(5, TimeUnit.SECONDS));
+		for (int i=0; i<500 && callback.encodeCount.get()<2; i++) {
+			Thread.sleep(10);
+		}
+		service.submit(request(resource, 40), callback);
+
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertEquals(2, stats.get("encodeQueued"));
+		assertEquals(1L, stats.get("encodedOnRenderThread"));
+		assertEquals(1, stats.get("queuedWms"));
+
+		// Queued encodes count against the admission limit
+		service.setWmsAdmission(3, 0);
+		try {
+			service.submit(request(resource, 50), callback);
+			fail("Expected rejection");
+		} catch (RenderRejectedException e) {
+		}
+
+		callback.release.countDown();
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		assertEquals(5, callback.encodeCount.get());
+	}
+
+	@Test
+	public void testEncodeOnRenderThread() throws Exception {
+		RenderService service=new RenderService(1);
+		GatedEncodeCallback callback=new GatedEncodeCallback(1, 1);
+		callback.release.countDown();
+
+		service.submit(request(new DummyResource("tag"), 0), callback);
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		assertEquals(1, callback.encodeCount.get());
+		assertEquals(4, callback.results.get(0).getContents(0, 0)[0]);
+	}
+
+	@Test
+	public void testBackgroundYieldsToInteractive() throws Exception {
+		RenderService service=new RenderService(2);
+		DummyResource resource=new DummyResource(null, 50);
+		SleepingCallback callback=new SleepingCallback(6);
+		
+		// Background work only ever gets one of the two threads
+		for (int i=0; i<4; i++) {
+			RenderRequest rr=request(resource, i*10);
+			rr.mapName="seed";
+			rr.background=true;
+			service.submit(rr, callback);
+		}
+		Thread.sleep(20);
+		for (int i=0; i<2; i++) {
+			RenderRequest rr=request(resource, 100 + i*10);
+			rr.mapName="interactive";
+			service.submit(rr, callback);
+		}
+		
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		
+		// Interactive requests go ahead of the queued background work
+		assertEquals("seed", callback.completed.get(0));
+		assertEquals("interactive", callback.completed.get(1));
+		assertEquals("interactive", callback.completed.get(2));
+		
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertEquals(4L, stats.get("backgroundDispatched"));
+		assertEquals(0, stats.get("queuedWms"));
+	}
+	
+	@Test
+	public void testInteractivePromotesBackground() throws Exception {
+		RenderService service=new RenderService(1);
+		DummyResource resource=new DummyResource("tag");
+		GatedCallback callback=new GatedCallback(4);
+		
+		service.submit(request(resource, 0), callback);
+		assertTrue(callback.started.await(5, TimeUnit.SECONDS));
+		
+		RenderRequest first=request(resource, 10);
+		first.background=true;
+		RenderRequest second=request(resource, 20);
+		second.background=true;
+		service.submit(first, callback);
+		service.submit(second, callback);
+		
+		// An interactive request for the second seed tile attaches to it
+		// and moves it ahead of the first
+		service.submit(request(resource, 20), callback);
+		assertFalse(second.background);
+		assertTrue(first.background);
+		callback.release.countDown();
+		
+		assertTrue(callback.delivered.await(5, TimeUnit.SECONDS));
+		assertEquals(3, callback.renderCount.get());
+		
+		Map<String,Object> stats=new HashMap<String, Object>();
+		service.collectStats(stats);
+		assertEquals(1L, stats.get("promotedBackground"));
+		assertEquals(1L, stats.get("backgroundDispatched"));
+	}
+}
@@ -0,0 +1,141 @@
+package net.rcode.nanomaps.server.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+public class MBTilesFileTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir=File.createTempFile("mbtiles", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		File[] children=dir.listFiles();
+		if (children!=null) {
+			for (File child: children) child.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		MBTilesFile file=new MBTilesFile(new File(dir, "test.mbtiles"), true);
+		file.open();
+		Map<String,String> metadata=new HashMap<String, String>();
+		metadata.put("format", "png");
+		file.writeMetadata(metadata);
+		file.writeTile(3, 1, 2, new byte[] { 1, 2, 3 });
+		file.flushPendingWrites();
+
+		assertArrayEquals(new byte[] { 1, 2, 3 }, file.readTile(3, 1, 2));
+		assertTrue(file.hasTile(3, 1, 2));
+		assertFalse(file.hasTile(3, 2, 1));
+		assertNull(file.readTile(3, 2, 1));
+		assertEquals("png", file.readMetadata().get("format"));
+		file.close();
+
+		// Rows are stored with the TMS origin at the bottom
+		SQLiteConnection connection=new SQLiteConnection(file.getFile());
+		connection.openReadonly();
+		SQLiteStatement st=connection.prepare("SELECT tile_row FROM tiles WHERE zoom_level=3 AND tile_column=1");
+		assertTrue(st.step());
+		assertEquals(5, st.columnInt(0));
+		st.dispose();
+		connection.dispose();
+
+		try {
+			file.readTile(3, 1, 2);
+			fail("Expected a closed file to refuse reads");
+		} catch (Exception e) {
+		}
+	}
+
+	@Test
+	public void testFailedWritesRollBack() throws Exception {
+		MBTilesFile file=new MBTilesFile(new File(dir, "test.mbtiles"), true);
+		file.open();
+
+		SQLiteConnection connection=new SQLiteConnection(file.getFile());
+		connection.open();
+		connection.exec("CREATE TRIGGER reject BEFORE INSERT ON tiles WHEN NEW.tile_column=2 " +
+				"BEGIN SELECT RAISE(ABORT, 'rejected'); END");
+
+		file.writeTile(3, 2, 0, new byte[] { 2 });
+		file.flushPendingWrites();
+		assertNull(file.readTile(3, 2, 0));
+
+		// No transaction is left open
+		connection.exec("DROP TRIGGER reject");
+		connection.dispose();
+		file.writeTile(3, 1, 0, new byte[] { 1 });
+		file.flushPendingWrites();
+		assertArrayEquals(new byte[] { 1 }, file.readTile(3, 1, 0));
+		file.close();
+	}
+
+	@Test
+	public void testWriteAfterClose() throws Exception {
+		MBTilesFile file=new MBTilesFile(new File(dir, "test.mbtiles"), true);
+		file.open();
+		file.writeTile(3, 1, 2, new byte[] { 1 });
+		file.close();
+
+		// Dropped rather than failing whoever rendered the tile
+		file.writeTile(3, 2, 2, new byte[] { 2 });
+
+		file=new MBTilesFile(new File(dir, "test.mbtiles"), false);
+		file.open();
+		assertNotNull(file.readTile(3, 1, 2));
+		assertNull(file.readTile(3, 2, 2));
+
+		// An open file that was never writable is still a mistake
+		try {
+			file.writeTile(3, 2, 2, new byte[] { 2 });
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+		file.close();
+	}
+
+	@Test
+	public void testReadOnly() throws Exception {
+		MBTilesFile file=new MBTilesFile(new File(dir, "missing.mbtiles"), false);
+		try {
+			file.open();
+			fail("Expected a missing read-only file to fail");
+		} catch (Exception e) {
+		}
+		assertFalse(file.getFile().exists());
+
+		MBTilesFile writer=new MBTilesFile(new File(dir, "test.mbtiles"), true);
+		writer.open();
+		writer.writeTile(0, 0, 0, new byte[] { 7 });
+		writer.close();
+
+		MBTilesFile reader=new MBTilesFile(writer.getFile(), false);
+		reader.open();
+		assertArrayEquals(new byte[] { 7 }, reader.readTile(0, 0, 0));
+		try {
+			reader.writeTile(0, 0, 0, new byte[] { 8 });
+			fail("Expected a read-only file to refuse writes");
+		} catch (IllegalStateException e) {
+		}
+		reader.close();
+	}
+}
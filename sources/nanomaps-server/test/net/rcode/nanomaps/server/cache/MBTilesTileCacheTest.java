@@ -0,0 +1,104 @@
+package net.rcode.nanomaps.server.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBTilesTileCacheTest {
+	private static final long DAY=24L*3600*1000;
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir=File.createTempFile("mbtilescache", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] children=file.listFiles();
+		if (children!=null) {
+			for (File child: children) delete(child);
+		}
+		file.delete();
+	}
+
+	private static TileKey key(String variant, int x) {
+		return new TileKey("test", variant, "png", 4, x, 3);
+	}
+
+	private static boolean hasWriteThread(File dbFile) {
+		for (Thread thread: Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().contains(dbFile.getName())) return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void testStoreLookupReopen() {
+		MBTilesTileCache cache=new MBTilesTileCache(dir, DAY);
+		assertNull(cache.lookup(key("v", 1)));
+		assertFalse(cache.contains(key("v", 1)));
+		assertFalse(new File(dir, "test").exists());
+
+		cache.store(key("v", 1), new byte[] { 1, 2 });
+		cache.close();
+
+		// Stores after close are dropped rather than reopening files
+		cache.store(key("v", 2), new byte[] { 3 });
+
+		cache=new MBTilesTileCache(dir, DAY);
+		ChannelBuffer hit=cache.lookup(key("v", 1));
+		assertNotNull(hit);
+		assertEquals(2, hit.readableBytes());
+		assertTrue(cache.contains(key("v", 1)));
+		assertFalse(cache.contains(key("v", 2)));
+
+		// Lookups open the file read-only, without a write thread
+		File dbFile=new File(new File(dir, "test"), "v.mbtiles");
+		assertFalse(hasWriteThread(dbFile));
+		cache.store(key("v", 2), new byte[] { 3 });
+		assertTrue(hasWriteThread(dbFile));
+		cache.close();
+		assertFalse(hasWriteThread(dbFile));
+	}
+
+	@Test
+	public void testUnusedVariantsArePruned() throws IOException {
+		File mapDir=new File(dir, "test");
+		mapDir.mkdirs();
+		File stale=new File(mapDir, "old.mbtiles");
+		File staleWal=new File(mapDir, "old.mbtiles-wal");
+		File recent=new File(mapDir, "recent.mbtiles");
+		stale.createNewFile();
+		staleWal.createNewFile();
+		recent.createNewFile();
+		long now=System.currentTimeMillis();
+		stale.setLastModified(now - 10*DAY);
+		staleWal.setLastModified(now - 10*DAY);
+		recent.setLastModified(now - DAY/2);
+
+		MBTilesTileCache cache=new MBTilesTileCache(dir, DAY);
+		assertFalse(stale.exists());
+		assertFalse(staleWal.exists());
+		assertTrue(recent.exists());
+
+		// A new variant prunes the map's files again
+		recent.setLastModified(now - 2*DAY);
+		cache.store(key("new", 0), new byte[] { 1 });
+		assertFalse(recent.exists());
+		assertTrue(new File(mapDir, "new.mbtiles").exists());
+		cache.close();
+	}
+}
@@ -0,0 +1,79 @@
+package net.rcode.nanomaps.server.cache;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+public class MemoryTileCacheTest {
+	private static TileKey key(int x) {
+		return new TileKey("test", "v", "png", 10, x, 0);
+	}
+
+	private static byte[] contents(int size, int fill) {
+		byte[] ret=new byte[size];
+		for (int i=0; i<size; i++) ret[i]=(byte)fill;
+		return ret;
+	}
+
+	@Test
+	public void testStoreLookup() {
+		MemoryTileCache cache=new MemoryTileCache(4096, 1024);
+		assertNull(cache.lookup(key(1)));
+
+		cache.store(key(1), contents(100, 1));
+		ChannelBuffer hit=cache.lookup(key(1));
+		assertNotNull(hit);
+		assertEquals(100, hit.readableBytes());
+		assertEquals(1, hit.getByte(99));
+	}
+
+	@Test
+	public void testOversizeNotCached() {
+		MemoryTileCache cache=new MemoryTileCache(4096, 1024);
+		cache.store(key(1), contents(600, 1));
+		assertNull(cache.lookup(key(1)));
+	}
+
+	@Test
+	public void testEvictionPrefersCold() {
+		MemoryTileCache cache=new MemoryTileCache(4096, 1024);
+
+		// Hot entry is hit repeatedly while cold entries stream through
+		cache.store(key(0), contents(200, 9));
+		for (int i=1; i<100; i++) {
+			assertNotNull("hot entry evicted at " + i, cache.lookup(key(0)));
+			cache.store(key(i), contents(200, i));
+		}
+
+		ChannelBuffer hot=cache.lookup(key(0));
+		assertEquals(9, hot.getByte(0));
+		assertNull(cache.lookup(key(1)));
+
+		Map<String,Object> stats=new HashMap<String, Object>();
+		cache.collectStats(stats);
+		assertTrue(((Long)stats.get("evictions"))>0);
+		assertTrue(((Long)stats.get("reinsertions"))>0);
+		assertTrue(((Long)stats.get("allocatedBytes"))<=4096);
+	}
+
+	@Test
+	public void testHitSurvivesSlabReuse() {
+		MemoryTileCache cache=new MemoryTileCache(4096, 1024);
+		cache.store(key(0), contents(200, 7));
+		ChannelBuffer hit=cache.lookup(key(0));
+
+		// Cycle every slab, as if the hit were still waiting on a slow client
+		for (int i=1; i<100; i++) {
+			cache.store(key(i), contents(200, i));
+		}
+		assertNull(cache.lookup(key(1)));
+
+		for (int i=0; i<200; i++) {
+			assertEquals(7, hit.getByte(i));
+		}
+	}
+}
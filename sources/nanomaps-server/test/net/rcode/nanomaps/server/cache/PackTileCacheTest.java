@@ -0,0 +1,135 @@
+package net.rcode.nanomaps.server.cache;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackTileCacheTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir=File.createTempFile("packcache", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] children=file.listFiles();
+		if (children!=null) {
+			for (File child: children) delete(child);
+		}
+		file.delete();
+	}
+
+	private static TileKey key(int x) {
+		return new TileKey("test", "v", "png", 12, x, 7);
+	}
+
+	private static byte[] contents(int size, int fill) {
+		byte[] ret=new byte[size];
+		for (int i=0; i<size; i++) ret[i]=(byte)fill;
+		return ret;
+	}
+
+	@Test
+	public void testStoreLookupReopen() {
+		PackTileCache cache=new PackTileCache(dir, 1024*1024);
+		assertNull(cache.lookup(key(1)));
+
+		cache.store(key(1), contents(100, 1));
+		cache.store(key(2), contents(300, 2));
+		cache.flush();
+
+		ChannelBuffer hit=cache.lookup(key(1));
+		assertNotNull(hit);
+		assertTrue(hit.isDirect());
+		assertEquals(100, hit.readableBytes());
+		assertEquals(1, hit.getByte(99));
+		assertNull(cache.lookup(key(3)));
+		cache.close();
+
+		cache=new PackTileCache(dir, 1024*1024);
+		hit=cache.lookup(key(2));
+		assertNotNull(hit);
+		assertEquals(300, hit.readableBytes());
+		assertEquals(2, hit.getByte(0));
+
+		Map<String,Object> stats=new HashMap<String, Object>();
+		cache.collectStats(stats);
+		assertEquals(2L, stats.get("tiles"));
+		cache.close();
+	}
+
+	@Test
+	public void testIndexGrowth() throws IOException {
+		PackStore store=new PackStore(new File(dir, "grow"), 1024*1024);
+		store.open();
+		for (int x=0; x<5000; x++) {
+			assertTrue(store.store(14, x, x/2, ByteBuffer.wrap(contents(8, x))));
+		}
+		store.close();
+
+		store=new PackStore(new File(dir, "grow"), 1024*1024);
+		store.open();
+		for (int x=0; x<5000; x++) {
+			ByteBuffer contents=store.lookup(14, x, x/2);
+			assertNotNull("tile " + x, contents);
+			assertEquals((byte)x, contents.get(0));
+		}
+		assertNull(store.lookup(14, 1, 1));
+		store.close();
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		PackStore store=new PackStore(new File(dir, "compact"), 4096);
+		store.open();
+
+		// Replace the same few tiles until several packs are mostly garbage
+		for (int round=0; round<20; round++) {
+			for (int x=0; x<4; x++) {
+				store.store(10, x, 0, ByteBuffer.wrap(contents(200, round)));
+			}
+		}
+		long[] before=new long[4];
+		store.collectStats(before);
+		assertTrue(before[0]>3);
+
+		while (store.compactStep(16)) {
+		}
+
+		long[] after=new long[4];
+		store.collectStats(after);
+		assertTrue(after[0]<before[0]);
+		assertTrue(store.getReclaimedBytes()>0);
+		for (int x=0; x<4; x++) {
+			ByteBuffer contents=store.lookup(10, x, 0);
+			assertNotNull(contents);
+			assertEquals(19, contents.get(199));
+		}
+		store.close();
+
+		// Deleted packs stay gone after reopening
+		store=new PackStore(new File(dir, "compact"), 4096);
+		store.open();
+		for (int x=0; x<4; x++) {
+			assertEquals(19, store.lookup(10, x, 0).get(0));
+		}
+		store.close();
+	}
+}
@@ -0,0 +1,36 @@
+package net.rcode.nanomaps.server.cache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TieredTileCacheTest {
+	private static TileKey key(int x) {
+		return new TileKey("test", "v", "png", 12, x, 7);
+	}
+
+	@Test
+	public void testBackgroundStoresSkipFront() {
+		MemoryTileCache front=new MemoryTileCache(1024*1024, 64*1024);
+		MemoryTileCache back=new MemoryTileCache(1024*1024, 64*1024);
+		TieredTileCache cache=new TieredTileCache(front, back);
+
+		cache.storeBackground(key(1), new byte[] { 1, 2, 3 });
+		assertFalse(front.contains(key(1)));
+		assertTrue(back.contains(key(1)));
+
+		// Checking for a tile does not promote it
+		assertTrue(cache.contains(key(1)));
+		assertFalse(front.contains(key(1)));
+		assertFalse(cache.contains(key(2)));
+
+		// Looking it up does
+		assertEquals(3, cache.lookup(key(1)).readableBytes());
+		assertTrue(front.contains(key(1)));
+
+		cache.store(key(2), new byte[] { 4 });
+		assertTrue(front.contains(key(2)));
+		assertTrue(back.contains(key(2)));
+		cache.close();
+	}
+}
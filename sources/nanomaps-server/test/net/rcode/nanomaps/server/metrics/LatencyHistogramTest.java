@@ -0,0 +1,52 @@
+package net.rcode.nanomaps.server.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	public void testBucketBounds() {
+		long last=-1;
+		for (long value=0; value<100000; value++) {
+			int bucket=LatencyHistogram.bucketOf(value);
+			long upper=LatencyHistogram.upperBoundOf(bucket);
+			assertTrue(upper>=value);
+			assertTrue("Precision at " + value, upper-value <= value/8);
+			assertTrue(upper>=last);
+			last=upper;
+		}
+	}
+
+	@Test
+	public void testCountsAndQuantiles() {
+		LatencyHistogram histogram=new LatencyHistogram();
+		for (int i=1; i<=1000; i++) {
+			histogram.record(i*1000);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500000L, histogram.getSum());
+		long median=histogram.getValueAtQuantile(0.5);
+		assertTrue(median>=500000 && median<=500000*9/8);
+		// 2^17-1 is the top of a bucket so the count is exact
+		assertEquals(131, histogram.countAtOrBelow(131071));
+		assertEquals(1000, histogram.countAtOrBelow(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testPrometheusOutput() {
+		LatencyHistogram histogram=new LatencyHistogram();
+		histogram.record(2000);
+		histogram.record(2000000);
+
+		PrometheusWriter out=new PrometheusWriter();
+		out.histogram("stage_seconds", histogram, "map", "a\"b");
+		String text=out.toString();
+		assertTrue(text.startsWith("# TYPE stage_seconds histogram\n"));
+		assertTrue(text.contains("stage_seconds_bucket{map=\"a\\\"b\",le=\"0.0025\"} 1\n"));
+		assertTrue(text.contains("stage_seconds_bucket{map=\"a\\\"b\",le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("stage_seconds_count{map=\"a\\\"b\"} 2\n"));
+		assertEquals("render_service", PrometheusWriter.sanitizeName("Render Service"));
+	}
+}
@@ -0,0 +1,83 @@
+package net.rcode.nanomaps.server.projection;
+
+import static org.junit.Assert.*;
+
+import mapnik.Mapnik;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ProjectionCacheTest {
+	private static final String LATLNG="+proj=longlat +ellps=WGS84 +datum=WGS84 +no_defs";
+	private static final String UTM="+proj=utm +zone=10 +datum=WGS84 +units=m +no_defs";
+	private static final String LAEA="+proj=laea +lat_0=52 +lon_0=10 +x_0=4321000 +y_0=3210000 +ellps=GRS80 +units=m +no_defs";
+
+	@BeforeClass
+	public static void initMapnik() {
+		Mapnik.initialize();
+	}
+
+	@Test
+	public void testShared() {
+		ProjectionCache cache=new ProjectionCache(4);
+		ProjectionCache.Entry first=cache.acquire(LATLNG);
+		ProjectionCache.Entry second=cache.acquire("  " + LATLNG.replace(" ", "   ") + " ");
+		assertSame(first, second);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		cache.release(first);
+		cache.release(second);
+		assertFalse(first.isDisposed());
+	}
+
+	@Test
+	public void testEvictionWaitsForRelease() {
+		ProjectionCache cache=new ProjectionCache(2);
+		ProjectionCache.Entry latlng=cache.acquire(LATLNG);
+		ProjectionCache.Entry utm=cache.acquire(UTM);
+		cache.release(utm);
+
+		// Evicts latlng, which is still held
+		ProjectionCache.Entry laea=cache.acquire(LAEA);
+		assertEquals(2, cache.size());
+		assertFalse(latlng.isDisposed());
+		cache.release(latlng);
+		assertTrue(latlng.isDisposed());
+
+		// Evicts utm, which is not
+		cache.acquire(LATLNG);
+		assertTrue(utm.isDisposed());
+		assertFalse(laea.isDisposed());
+
+		// Over release
+		cache.release(laea);
+		try {
+			cache.release(laea);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRenderProjectionsShareGrid() {
+		ProjectionCache cache=new ProjectionCache(4);
+		Proj4RenderProjection a=new Proj4RenderProjection(cache, LATLNG);
+		Proj4RenderProjection b=new Proj4RenderProjection(cache, LATLNG);
+		a.setReferenceResolution(1.0);
+		b.setReferenceResolution(2.0);
+		assertEquals(1.0, a.resolutionFromLevel(1), 0);
+		assertEquals(2.0, b.resolutionFromLevel(1), 0);
+		assertEquals(1, cache.size());
+
+		a.dispose();
+		a.dispose();
+		cache.clear();
+		ProjectionCache.Entry entry=cache.acquire(UTM);
+		assertEquals(1, cache.size());
+		cache.release(entry);
+		b.dispose();
+	}
+}
@@ -0,0 +1,155 @@
+package net.rcode.nanomaps.server.projection;
+
+import static org.junit.Assert.*;
+
+import mapnik.Box2d;
+import mapnik.Coord;
+import mapnik.Mapnik;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class WebMercatorRenderProjectionTest {
+	/**
+	 * Meters.  Proj4 and the closed form differ in the last few bits.
+	 */
+	private static final double EPSILON=1e-6;
+
+	@BeforeClass
+	public static void initMapnik() {
+		Mapnik.initialize();
+	}
+
+	/**
+	 * The same projection done by proj4
+	 */
+	private static Proj4RenderProjection createProj4() {
+		Proj4RenderProjection proj4=new Proj4RenderProjection(WebMercatorRenderProjection.SRS);
+		proj4.setReferenceResolution(78271.5170);
+		Coord origin=new Coord(-180.0, 85.05112878);
+		proj4.forward(origin);
+		proj4.setProjectedOrigin(origin);
+		return proj4;
+	}
+
+	@Test
+	public void testKnownValues() {
+		WebMercatorRenderProjection projection=new WebMercatorRenderProjection();
+		Coord coord=new Coord(180, 0);
+		projection.forward(coord);
+		assertEquals(20037508.342789244, coord.x, EPSILON);
+		assertEquals(0, coord.y, EPSILON);
+
+		Box2d world=projection.projectTile(0, 0, 0, 256, 256);
+		assertEquals(-20037508.34, world.minx, 0.01);
+		assertEquals(20037508.34, world.maxy, 0.01);
+		assertEquals(0, projection.levelFromResolution(projection.resolutionFromLevel(0)), 1e-9);
+	}
+
+	@Test
+	public void testMatchesProj4() {
+		WebMercatorRenderProjection projection=new WebMercatorRenderProjection();
+		Proj4RenderProjection proj4=createProj4();
+		try {
+			for (double lng=-180; lng<=180; lng+=7.5) {
+				for (double lat=-85; lat<=85; lat+=2.5) {
+					Coord expected=new Coord(lng, lat);
+					proj4.forward(expected);
+					Coord actual=new Coord(lng, lat);
+					projection.forward(actual);
+					assertEquals(expected.x, actual.x, EPSILON);
+					assertEquals(expected.y, actual.y, EPSILON);
+
+					proj4.inverse(expected);
+					projection.inverse(actual);
+					assertEquals(expected.x, actual.x, 1e-9);
+					assertEquals(expected.y, actual.y, 1e-9);
+				}
+			}
+
+			// Past the edge of the grid, as a global WMS request can go
+			for (double lat: new double[] { 85.5, 87.0, -89.0 }) {
+				Coord expected=new Coord(10, lat);
+				proj4.forward(expected);
+				Coord actual=new Coord(10, lat);
+				projection.forward(actual);
+				assertEquals(expected.y, actual.y, EPSILON);
+				assertTrue(Math.abs(actual.y)>20037508.35);
+			}
+
+			Box2d expected=new Box2d(-122.5, 37.7, -122.3, 37.9);
+			Box2d actual=new Box2d(expected);
+			proj4.forward(expected);
+			projection.forward(actual);
+			assertBoxEquals(expected, actual);
+			proj4.inverse(expected);
+			projection.inverse(actual);
+			assertEquals(expected.minx, actual.minx, 1e-9);
+			assertEquals(expected.maxy, actual.maxy, 1e-9);
+
+			for (int level=0; level<=20; level++) {
+				assertEquals(proj4.resolutionFromLevel(level), projection.resolutionFromLevel(level), 0);
+				int max=(1<<level)-1;
+				int[][] tiles={ {0, 0}, {max, max}, {max/2, max/3}, {max/5, max} };
+				for (int[] tile: tiles) {
+					assertBoxEquals(proj4.projectTile(level, tile[0], tile[1], 256, 256),
+							projection.projectTile(level, tile[0], tile[1], 256, 256));
+				}
+			}
+		} finally {
+			proj4.dispose();
+		}
+	}
+
+	@Test
+	public void testAliases() {
+		assertTrue(RenderProjection.createFromEpsgCode(3857) instanceof WebMercatorRenderProjection);
+		assertTrue(RenderProjection.createFromEpsgCode(900913) instanceof WebMercatorRenderProjection);
+		assertTrue(RenderProjection.createFromEpsgCode(3785) instanceof WebMercatorRenderProjection);
+		assertTrue(RenderProjection.createFromProj4Params(WebMercatorRenderProjection.SRS) instanceof WebMercatorRenderProjection);
+		assertTrue(RenderProjection.createFromProj4Params("+init=EPSG:900913") instanceof WebMercatorRenderProjection);
+		assertTrue(RenderProjection.createDefaultProjection() instanceof WebMercatorRenderProjection);
+	}
+
+	private static void assertBoxEquals(Box2d expected, Box2d actual) {
+		assertEquals(expected.minx, actual.minx, EPSILON);
+		assertEquals(expected.miny, actual.miny, EPSILON);
+		assertEquals(expected.maxx, actual.maxx, EPSILON);
+		assertEquals(expected.maxy, actual.maxy, EPSILON);
+	}
+
+	@Test
+	public void testTileRange() {
+		WebMercatorRenderProjection projection=new WebMercatorRenderProjection();
+		Box2d world=projection.projectTile(0, 0, 0, 256, 256);
+		assertArrayEquals(new int[] { 0, 0, 3, 3 }, projection.tileRange(world, 2, 256, 256));
+		
+		// The tile of a point and the tiles around a corner
+		Box2d tile=projection.projectTile(10, 300, 400, 256, 256);
+		double cx=(tile.minx+tile.maxx)/2, cy=(tile.miny+tile.maxy)/2;
+		assertArrayEquals(new int[] { 300, 400, 300, 400 }, projection.tileRange(new Box2d(cx, cy, cx, cy), 10, 256, 256));
+		assertArrayEquals(new int[] { 299, 399, 300, 400 },
+				projection.tileRange(new Box2d(tile.minx-1, tile.miny, tile.maxx, tile.maxy+1), 10, 256, 256));
+	}
+	
+	@Test
+	public void testTileRangeWholeWorld() {
+		WebMercatorRenderProjection projection=new WebMercatorRenderProjection();
+		Box2d world=new Box2d(-180, -90, 180, 90);
+		projection.clampToGrid(world);
+		assertEquals(WebMercatorRenderProjection.MAX_LATITUDE, world.maxy, 0);
+		projection.forward(world);
+		assertFalse(Double.isInfinite(world.miny) || Double.isInfinite(world.maxy));
+		assertArrayEquals(new int[] { 0, 0, 0, 0 }, projection.tileRange(world, 0, 256, 256));
+		assertArrayEquals(new int[] { 0, 0, 3, 3 }, projection.tileRange(world, 2, 256, 256));
+		assertArrayEquals(new int[] { 0, 0, 1023, 1023 }, projection.tileRange(world, 10, 256, 256));
+		
+		// Areas past the edge of the grid only cover the tiles that exist
+		Box2d beyond=new Box2d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+				Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		assertArrayEquals(new int[] { 0, 0, 7, 7 }, projection.tileRange(beyond, 3, 256, 256));
+		Box2d tile=projection.projectTile(3, 7, 0, 256, 256);
+		assertArrayEquals(new int[] { 7, 0, 7, 0 },
+				projection.tileRange(new Box2d(tile.minx+1, tile.miny+1, tile.maxx*2, tile.maxy*2), 3, 256, 256));
+	}
+}
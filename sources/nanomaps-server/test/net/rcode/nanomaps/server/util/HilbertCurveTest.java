@@ -0,0 +1,53 @@
+package net.rcode.nanomaps.server.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class HilbertCurveTest {
+	@Test
+	public void testCurveVisitsNeighbours() {
+		int n=16;
+		int[] xy=new int[2];
+		Set<Integer> seen=new HashSet<Integer>();
+		int lastX=0, lastY=0;
+		for (int d=0; d<n*n; d++) {
+			HilbertCurve.d2xy(n, d, xy);
+			assertTrue(xy[0]>=0 && xy[0]<n && xy[1]>=0 && xy[1]<n);
+			assertTrue(seen.add(xy[0]*n + xy[1]));
+			if (d>0) {
+				assertEquals(1, Math.abs(xy[0]-lastX) + Math.abs(xy[1]-lastY));
+			}
+			lastX=xy[0];
+			lastY=xy[1];
+		}
+	}
+	
+	@Test
+	public void testRangeWalkerCoversRange() {
+		// Wider than a block and not a power of two
+		int minX=-3, minY=10, maxX=300, maxY=14;
+		HilbertCurve.RangeWalker walker=new HilbertCurve.RangeWalker(minX, minY, maxX, maxY);
+		assertEquals(304L*5, walker.size());
+		
+		Set<Long> seen=new HashSet<Long>();
+		while (walker.next()) {
+			int x=walker.getX(), y=walker.getY();
+			assertTrue(x>=minX && x<=maxX && y>=minY && y<=maxY);
+			assertTrue(seen.add((long)x<<32 | (y & 0xffffffffL)));
+		}
+		assertEquals(walker.size(), seen.size());
+	}
+	
+	@Test
+	public void testSingleCell() {
+		HilbertCurve.RangeWalker walker=new HilbertCurve.RangeWalker(7, 9, 7, 9);
+		assertTrue(walker.next());
+		assertEquals(7, walker.getX());
+		assertEquals(9, walker.getY());
+		assertFalse(walker.next());
+	}
+}
@@ -0,0 +1,85 @@
+package net.rcode.nanomaps.server.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MapnikFileReferencesTest {
+	private static final String MAP_XML=
+		"<Map srs=\"+proj=latlong\">" +
+		"<FileSource name=\"data\">/srv/data</FileSource>" +
+		"<Style name=\"s\"><Rule><PointSymbolizer file=\"icons/dot.png\"/></Rule></Style>" +
+		"<Layer name=\"a\"><Datasource>" +
+		"<Parameter name=\"type\">shape</Parameter>" +
+		"<Parameter name=\"file\">world/borders</Parameter>" +
+		"</Datasource></Layer>" +
+		"<Layer name=\"b\"><Datasource>" +
+		"<Parameter name=\"type\">sqlite</Parameter>" +
+		"<Parameter name=\"base\">data</Parameter>" +
+		"<Parameter name=\"file\">roads.sqlite</Parameter>" +
+		"</Datasource></Layer>" +
+		"<Layer name=\"c\"><Datasource>" +
+		"<Parameter name=\"type\">postgis</Parameter>" +
+		"<Parameter name=\"dbname\">osm</Parameter>" +
+		"</Datasource></Layer>" +
+		"</Map>";
+
+	@Test
+	public void testFind() throws Exception {
+		File base=new File("/maps");
+		List<File> files=MapnikFileReferences.find(MAP_XML, base);
+		assertEquals(3, files.size());
+		assertEquals(new File(base, "icons/dot.png"), files.get(0));
+		assertEquals(new File(base, "world/borders.shp"), files.get(1));
+		assertEquals(new File("/srv/data/roads.sqlite"), files.get(2));
+	}
+
+	@Test
+	public void testIdentityFollowsData() throws Exception {
+		File dir=File.createTempFile("refs", "");
+		dir.delete();
+		File shapeDir=new File(dir, "world");
+		shapeDir.mkdirs();
+		File shp=new File(shapeDir, "borders.shp");
+		File dbf=new File(shapeDir, "borders.dbf");
+		try {
+			write(shp, 10);
+			write(dbf, 10);
+			List<File> files=MapnikFileReferences.find(MAP_XML, dir);
+			assertTrue(files.contains(dbf));
+
+			// Deterministic for the same inputs
+			String first=hash(files);
+			assertEquals(first, hash(files));
+
+			// Replacing a companion file changes it
+			write(dbf, 20);
+			assertFalse(first.equals(hash(files)));
+		} finally {
+			shp.delete();
+			dbf.delete();
+			shapeDir.delete();
+			dir.delete();
+		}
+	}
+
+	private static String hash(List<File> files) {
+		IdentityHasher hasher=new IdentityHasher();
+		hasher.append(MAP_XML);
+		for (File file: files) hasher.appendFileState(file);
+		return hasher.getHash();
+	}
+
+	private static void write(File file, int size) throws Exception {
+		FileOutputStream out=new FileOutputStream(file);
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+	}
+}
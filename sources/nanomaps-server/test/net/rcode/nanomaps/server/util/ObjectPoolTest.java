@@ -0,0 +1,138 @@
+package net.rcode.nanomaps.server.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ObjectPoolTest {
+	private static class CountingPool extends ObjectPool<Integer> {
+		AtomicInteger next=new AtomicInteger();
+		Set<Integer> destroyed=new HashSet<Integer>();
+
+		CountingPool(int minIdle, int maxIdle, long idleTimeoutMillis) {
+			super(minIdle, maxIdle, idleTimeoutMillis);
+		}
+
+		@Override
+		protected Integer create() {
+			return next.incrementAndGet();
+		}
+
+		@Override
+		protected synchronized void destroy(Integer object) {
+			destroyed.add(object);
+		}
+	}
+
+	@Test
+	public void testPrewarmAndReuse() {
+		CountingPool pool=new CountingPool(3, 4, 0);
+		pool.prewarm();
+		assertEquals(3, pool.getIdleCount());
+		assertEquals(3, pool.getCreated());
+
+		Integer a=pool.borrow();
+		Integer b=pool.borrow();
+		assertNotSame(a, b);
+		assertEquals(2, pool.getHits());
+		assertEquals(0, pool.getMisses());
+		pool.release(b);
+		pool.release(a);
+		assertEquals(3, pool.getIdleCount());
+		assertEquals(3, pool.getCreated());
+	}
+
+	@Test
+	public void testMaxIdle() {
+		CountingPool pool=new CountingPool(0, 2, 0);
+		List<Integer> borrowed=new ArrayList<Integer>();
+		for (int i=0; i<5; i++) borrowed.add(pool.borrow());
+		assertEquals(5, pool.getMisses());
+
+		for (Integer object: borrowed) pool.release(object);
+		assertEquals(2, pool.getIdleCount());
+		assertEquals(3, pool.getDestroyed());
+		assertEquals(3, pool.destroyed.size());
+
+		pool.clear();
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(5, pool.destroyed.size());
+	}
+
+	@Test
+	public void testIdleTrim() {
+		CountingPool pool=new CountingPool(1, 10, 1000);
+		List<Integer> borrowed=new ArrayList<Integer>();
+		for (int i=0; i<4; i++) borrowed.add(pool.borrow());
+		for (Integer object: borrowed) pool.release(object);
+		assertEquals(4, pool.getIdleCount());
+
+		long now=System.currentTimeMillis();
+		assertEquals(0, pool.trim(now));
+		assertEquals(3, pool.trim(now + 5000));
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(0, pool.trim(now + 10000));
+	}
+
+	@Test
+	public void testClose() {
+		CountingPool pool=new CountingPool(2, 4, 0);
+		pool.prewarm();
+		Integer borrowed=pool.borrow();
+		pool.close();
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(1, pool.destroyed.size());
+
+		// Objects checked out before the close are not kept
+		pool.release(borrowed);
+		assertEquals(0, pool.getIdleCount());
+		assertTrue(pool.destroyed.contains(borrowed));
+
+		// Nor are new ones
+		pool.prewarm();
+		pool.release(pool.borrow());
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(3, pool.destroyed.size());
+	}
+
+	@Test
+	public void testMaxTotal() throws Exception {
+		final CountingPool pool=new CountingPool(0, 4, 0);
+		pool.setMaxTotal(2);
+		Integer a=pool.borrow();
+		pool.borrow();
+
+		// A third has to wait for one of the two
+		final AtomicReference<Integer> third=new AtomicReference<Integer>();
+		Thread borrower=new Thread() {
+			@Override
+			public void run() {
+				third.set(pool.borrow());
+			}
+		};
+		borrower.start();
+		borrower.join(200);
+		assertTrue(borrower.isAlive());
+		assertNull(third.get());
+
+		pool.release(a);
+		borrower.join(5000);
+		assertFalse(borrower.isAlive());
+		assertEquals(a, third.get());
+		assertEquals(2, pool.getCreated());
+
+		// Destroying one makes room for a new one
+		pool.setLimits(0, 0, 0);
+		pool.release(third.get());
+		assertEquals(1, pool.getDestroyed());
+		pool.borrow();
+		assertEquals(3, pool.getCreated());
+	}
+}
@@ -0,0 +1,100 @@
+package net.rcode.nanomaps.server.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class Png8EncoderTest {
+	private static BufferedImage decode(byte[] png) throws Exception {
+		BufferedImage image=ImageIO.read(new ByteArrayInputStream(png));
+		assertNotNull(image);
+		return image;
+	}
+	
+	@Test
+	public void testFormats() {
+		assertTrue(Png8Encoder.isPng8("png8"));
+		assertTrue(Png8Encoder.isPng8("png8:colors=16"));
+		assertFalse(Png8Encoder.isPng8("png"));
+		assertFalse(Png8Encoder.isPng8("png256"));
+		assertEquals(256, Png8Encoder.colorsOf("png8"));
+		assertEquals(16, Png8Encoder.colorsOf("png8:colors=16"));
+		for (String bad: new String[] { "png8:colors=1", "png8:colors=257", "png8:colors=x", "png8:dither=1" }) {
+			try {
+				Png8Encoder.colorsOf(bad);
+				fail(bad);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+	
+	@Test
+	public void testExactWhenFewColors() throws Exception {
+		int width=64, height=48;
+		int[] colors={ 0xffff0000, 0xff00ff00, 0x800000ff, 0x00000000 };
+		int[] argb=new int[width*height];
+		for (int i=0; i<argb.length; i++) argb[i]=colors[(i/7) % colors.length];
+		int[] expected=argb.clone();
+		
+		BufferedImage image=decode(Png8Encoder.encode(argb, width, height, 256));
+		assertEquals(width, image.getWidth());
+		assertEquals(height, image.getHeight());
+		for (int y=0; y<height; y++) {
+			for (int x=0; x<width; x++) {
+				assertEquals(expected[y*width+x], image.getRGB(x, y));
+			}
+		}
+	}
+	
+	@Test
+	public void testQuantizedGradient() throws Exception {
+		int width=256, height=256;
+		int[] argb=new int[width*height];
+		for (int y=0; y<height; y++) {
+			for (int x=0; x<width; x++) {
+				argb[y*width+x]=0xff000000 | x<<16 | y<<8 | (x+y)/2;
+			}
+		}
+		int[] expected=argb.clone();
+		
+		BufferedImage image=decode(Png8Encoder.encode(argb, width, height, 32));
+		Set<Integer> seen=new HashSet<Integer>();
+		long error=0;
+		for (int y=0; y<height; y++) {
+			for (int x=0; x<width; x++) {
+				int actual=image.getRGB(x, y), wanted=expected[y*width+x];
+				seen.add(actual);
+				assertEquals(0xff, actual>>>24);
+				error+=Math.abs((actual>>16 & 0xff) - (wanted>>16 & 0xff)) +
+						Math.abs((actual>>8 & 0xff) - (wanted>>8 & 0xff));
+			}
+		}
+		assertTrue(seen.size()<=32);
+		// 32 boxes over a 256x256 plane: mean error per channel well under 32
+		assertTrue(error / (2.0*width*height) < 32);
+	}
+	
+	@Test
+	public void testTransparencyKept() throws Exception {
+		int width=32, height=32;
+		int[] argb=new int[width*height];
+		for (int i=0; i<argb.length; i++) {
+			// Many distinct fully transparent pixels collapse to one entry
+			argb[i]=(i%2==0) ? (i & 0x00ffffff) : 0xff336699;
+		}
+		BufferedImage image=decode(Png8Encoder.encode(argb, width, height, 2));
+		for (int i=0; i<argb.length; i++) {
+			int actual=image.getRGB(i%width, i/width);
+			if (i%2==0) assertEquals(0, actual>>>24);
+			else assertEquals(0xff336699, actual);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package net.rcode.nanomaps.server.util;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class TileSlicerTest {
+	private static final int TOP_LEFT=0xffffff;
+	private static final int BOTTOM_RIGHT=0x000000;
+
+	private static int colorOf(int column, int row) {
+		return (column*40)<<16 | (row*40)<<8 | 200;
+	}
+
+	/**
+	 * A metatile with each tile filled with its own color and its top left and
+	 * bottom right pixels marked
+	 */
+	private static byte[] metatile(int columns, int rows, int tileSize) throws Exception {
+		BufferedImage image=new BufferedImage(columns*tileSize, rows*tileSize, BufferedImage.TYPE_INT_RGB);
+		for (int row=0; row<rows; row++) {
+			for (int column=0; column<columns; column++) {
+				int x0=column*tileSize, y0=row*tileSize;
+				for (int y=0; y<tileSize; y++) {
+					for (int x=0; x<tileSize; x++) {
+						image.setRGB(x0+x, y0+y, colorOf(column, row));
+					}
+				}
+				image.setRGB(x0, y0, TOP_LEFT);
+				image.setRGB(x0+tileSize-1, y0+tileSize-1, BOTTOM_RIGHT);
+			}
+		}
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+
+	private static BufferedImage decode(byte[] contents) throws Exception {
+		BufferedImage image=ImageIO.read(new ByteArrayInputStream(contents));
+		assertNotNull(image);
+		return image;
+	}
+
+	private static void assertTile(BufferedImage tile, int column, int row, int tileSize) {
+		assertEquals(tileSize, tile.getWidth());
+		assertEquals(tileSize, tile.getHeight());
+		assertEquals(TOP_LEFT, tile.getRGB(0, 0) & 0xffffff);
+		assertEquals(colorOf(column, row), tile.getRGB(1, 0) & 0xffffff);
+		assertEquals(colorOf(column, row), tile.getRGB(tileSize/2, tileSize/2) & 0xffffff);
+		assertEquals(colorOf(column, row), tile.getRGB(tileSize-2, tileSize-1) & 0xffffff);
+		assertEquals(BOTTOM_RIGHT, tile.getRGB(tileSize-1, tileSize-1) & 0xffffff);
+	}
+
+	@Test
+	public void testSliceOffsets() throws Exception {
+		byte[][] tiles=TileSlicer.slice(metatile(4, 4, 256), 4, 4, "png");
+		assertEquals(16, tiles.length);
+		for (int row=0; row<4; row++) {
+			for (int column=0; column<4; column++) {
+				// Row major order
+				assertTile(decode(tiles[row*4 + column]), column, row, 256);
+			}
+		}
+	}
+
+	@Test
+	public void testEdgeTiles() throws Exception {
+		// Tiles on the right and bottom edges end at the metatile's last pixel
+		byte[][] tiles=TileSlicer.slice(metatile(3, 2, 256), 3, 2, "png");
+		assertEquals(6, tiles.length);
+		assertTile(decode(tiles[2]), 2, 0, 256);
+		assertTile(decode(tiles[3]), 0, 1, 256);
+		assertTile(decode(tiles[5]), 2, 1, 256);
+
+		// A 1x1 metatile is the tile itself
+		tiles=TileSlicer.slice(metatile(1, 1, 256), 1, 1, "png");
+		assertTile(decode(tiles[0]), 0, 0, 256);
+	}
+
+	@Test
+	public void testPixelRatio() throws Exception {
+		// At pixelRatio=2 tiles are 512 pixels on a side
+		byte[][] tiles=TileSlicer.slice(metatile(2, 2, 512), 2, 2, "png");
+		assertEquals(4, tiles.length);
+		for (int i=0; i<4; i++) {
+			assertTile(decode(tiles[i]), i%2, i/2, 512);
+		}
+	}
+
+	@Test
+	public void testFormats() throws Exception {
+		byte[] metatile=metatile(2, 2, 256);
+		assertTile(decode(TileSlicer.slice(metatile, 2, 2, "png8")[3]), 1, 1, 256);
+
+		// Lossy, so only the size is exact
+		BufferedImage jpeg=decode(TileSlicer.slice(metatile, 2, 2, "jpeg")[3]);
+		assertEquals(256, jpeg.getWidth());
+		assertEquals(256, jpeg.getHeight());
+
+		assertTrue(TileSlicer.canSlice("png"));
+		assertFalse(TileSlicer.canSlice("svg"));
+		try {
+			TileSlicer.slice(metatile, 2, 2, "svg");
+			fail("Expected svg to be refused");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}